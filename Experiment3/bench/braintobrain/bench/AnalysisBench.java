@@ -0,0 +1,215 @@
+package braintobrain.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import braintobrain.analysis.BatchAnalysis;
+import braintobrain.analysis.Butterworth;
+import braintobrain.analysis.Envelope;
+import braintobrain.analysis.FilterTask;
+import braintobrain.analysis.OpenBCIReader;
+import braintobrain.analysis.PairScores;
+import braintobrain.analysis.Recording;
+import braintobrain.analysis.SegmentIndex;
+import braintobrain.analysis.Slice;
+import braintobrain.analysis.SosFilter;
+import braintobrain.analysis.Spectrum;
+import braintobrain.analysis.SynchronyTask;
+import braintobrain.online.SaccadeDetector;
+
+/**
+ * The analysis kernels, on synthetic recordings of a configurable
+ * length: text ingest, segmentation, zero-phase filtering (of a whole
+ * column, and of every trial in parallel), the 15 s FFT, the sliding
+ * EOG RMS, and pair synchrony (envelopes of one subject, and scoring
+ * every pair of a cohort).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBench {
+
+    /** Length of each recording (in seconds). */
+    @Param({ "600" })
+    int seconds;
+
+    /** Number of subjects in the cohort, for pair synchrony. */
+    @Param({ "8" })
+    int subjects;
+
+
+    /** Text of the recording. */
+    ByteBuffer text;
+
+    /** The recording. */
+    Recording rec;
+
+    /** Its segment index. */
+    SegmentIndex index;
+
+    /** SSVEP bandpass. */
+    SosFilter ssvep;
+
+    /** Work array for filtfilt. */
+    double[] work;
+
+    /** Output of filtfilt. */
+    float[] filtered;
+
+    /** Every trial of Oz. */
+    Slice[] trials;
+
+    /** Output of each trial's filtfilt. */
+    float[][] trialsOut;
+
+    /** FFT arrays. */
+    double[] re, im, amp;
+
+    /** EOG detector. */
+    SaccadeDetector saccades;
+
+    /** Fp2, filtered to the EOG band. */
+    float[] eog;
+
+    /** Envelopes of each subject. */
+    Envelope[] envelopes;
+
+
+    /**
+     * Generate the recordings and preallocate every output.
+     */
+    @Setup
+    public void setup() {
+        text = Synthetic.text(seconds, 0);
+        rec = Synthetic.recording(seconds, 0);
+        index = new SegmentIndex(rec);
+        ssvep = Butterworth.bandpass(BatchAnalysis.ORDER,
+                BatchAnalysis.SSVEPLOW, BatchAnalysis.SSVEPHIGH,
+                Recording.SAMPLERATE);
+        work = new double[ssvep.workLength(rec.length())];
+        filtered = new float[rec.length()];
+        int count = 0;
+        for (int s = 0; s < index.size(); s++) {
+            if (index.isTrialStart(s)) {
+                count++;
+            }
+        }
+        trials = new Slice[count];
+        trialsOut = new float[count][];
+        float[] oz = rec.getColumn(Recording.OZ);
+        for (int s = 0, t = 0; s < index.size(); s++) {
+            if (index.isTrialStart(s)) {
+                trials[t] = new Slice(oz, index.start(s),
+                        index.end(index.trialEnd(s) - 1));
+                trialsOut[t] = new float[trials[t].length()];
+                t++;
+            }
+        }
+        int n = Spectrum.length(BatchAnalysis.FFTWINDOW);
+        re = new double[n];
+        im = new double[n];
+        amp = new double[n / 2 + 1];
+        saccades = new SaccadeDetector();
+        SosFilter eogBand = Butterworth.bandpass(BatchAnalysis.ORDER,
+                BatchAnalysis.EOGLOW, BatchAnalysis.EOGHIGH,
+                Recording.SAMPLERATE);
+        eog = new float[rec.length()];
+        eogBand.filtfilt(rec.getColumn(Recording.FP2), 0, rec.length(), eog,
+                0, new double[eogBand.workLength(rec.length())]);
+        envelopes = new Envelope[subjects];
+        for (int i = 0; i < subjects; i++) {
+            Recording r = i == 0 ? rec : Synthetic.recording(seconds, i);
+            envelopes[i] = Envelope.of(r, new SegmentIndex(r),
+                    BatchAnalysis.STATES[1]);
+        }
+    }
+
+    /**
+     * @return  the parsed recording
+     * @throws Exception    never
+     */
+    @Benchmark
+    public Recording ingest() throws Exception {
+        return OpenBCIReader.read(text.duplicate(), "bench");
+    }
+
+    /**
+     * @return  the segment index
+     */
+    @Benchmark
+    public SegmentIndex segment() {
+        return new SegmentIndex(rec);
+    }
+
+    /**
+     * @return  the filtered column
+     */
+    @Benchmark
+    public float[] filtfilt() {
+        ssvep.filtfilt(rec.getColumn(Recording.OZ), 0, rec.length(),
+                filtered, 0, work);
+        return filtered;
+    }
+
+    /**
+     * @return  the filtered trials
+     */
+    @Benchmark
+    public float[][] filtfiltTrials() {
+        return FilterTask.filtfilt(ssvep, trials, trialsOut);
+    }
+
+    /**
+     * @return  the spectrum of the first trial
+     */
+    @Benchmark
+    public double[] fft() {
+        Slice t = trials[0];
+        Spectrum.amplitude(t.array(), t.offset(), t.offset() + t.length(),
+                Math.min(BatchAnalysis.FFTWINDOW, t.length()), re, im, amp);
+        return amp;
+    }
+
+    /**
+     * @return  number of saccades detected over the recording
+     */
+    @Benchmark
+    public long slidingRms() {
+        saccades.reset();
+        for (int i = 0; i < eog.length; i++) {
+            saccades.update(i, eog[i]);
+        }
+        return saccades.getSaccades();
+    }
+
+    /**
+     * @return  envelopes of one subject
+     */
+    @Benchmark
+    public Envelope envelope() {
+        return Envelope.of(rec, index, BatchAnalysis.STATES[1]);
+    }
+
+    /**
+     * @return  scores of every pair of the cohort
+     */
+    @Benchmark
+    public PairScores pairs() {
+        return SynchronyTask.score(envelopes);
+    }
+}
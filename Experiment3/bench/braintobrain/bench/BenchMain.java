@@ -0,0 +1,41 @@
+package braintobrain.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run every benchmark, with the GC profiler reporting the bytes each
+ * operation allocates (gc.alloc.rate.norm), which should be close to
+ * zero for the per-frame and per-sample paths.
+ *
+ * The benchmarks are compiled with src/ against JMH (jmh-core, with
+ * jmh-generator-annprocess as annotation processor) and the sketch's
+ * jars in lib/, then run from the Experiment3 directory, headless; from
+ * there, bench/pom.xml does both:
+ *
+ *   mvn -f bench/pom.xml compile exec:exec
+ *
+ * An argument is a regular expression selecting benchmarks, e.g.
+ * "AnalysisBench.fft" (with Maven, -Dbench=AnalysisBench.fft). The
+ * usual JMH command line (org.openjdk.jmh.Main, with -prof gc) works
+ * too.
+ */
+public class BenchMain {
+
+    /**
+     * @param args              benchmarks to run (default: all)
+     * @throws RunnerException  if a benchmark fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0]
+                        : BenchMain.class.getPackage().getName() + ".*")
+                .jvmArgsAppend("-Djava.awt.headless=true")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
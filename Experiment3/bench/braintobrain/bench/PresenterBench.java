@@ -0,0 +1,188 @@
+package braintobrain.bench;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import braintobrain.experiment3.HeadlessPresenter;
+import braintobrain.experiment3.MultiTargetStimulus;
+import braintobrain.experiment3.Protocol;
+import braintobrain.experiment3.Timeline;
+import braintobrain.experiment3.TrialSequence;
+import netP5.NetAddress;
+import oscP5.OscMessage;
+import oscP5.OscP5;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+
+/**
+ * The presenter's per-session and per-frame work: generating the trial
+ * order (what chooseState() and getRandom() used to do) and compiling
+ * the timeline, encoding and sending a marker, drawing the
+ * multi-target stimulus, and stepping a whole session headless.
+ *
+ * The flicker rectangle is not benchmarked: its cost is the P2D PShape
+ * fill swap and shape() call, and a P2D surface needs a GL context from
+ * a running sketch, which Processing cannot start without a screen
+ * (PApplet.runSketch() throws a HeadlessException). Timing it on JAVA2D
+ * would measure another renderer; on screen, FrameTelemetry reports the
+ * real per-frame drawing times. The multi-target stimulus is drawn
+ * offscreen with the JAVA2D renderer, which runs headless
+ * (-Djava.awt.headless=true).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenterBench {
+
+    /** Protocol to compile, relative to the Experiment3 directory. */
+    @Param({ "src/data/experiment3.protocol" })
+    String protocolFile;
+
+    /** Width of the offscreen surface. */
+    @Param({ "1920" })
+    int width;
+
+    /** Height of the offscreen surface. */
+    @Param({ "1080" })
+    int height;
+
+
+    /** The protocol. */
+    Protocol protocol;
+
+    /** A trial order. */
+    int[] order;
+
+    /** Source of randomness for trial orders. */
+    final Random rnd = new Random(1);
+
+    /** Reused marker message. */
+    final OscMessage message = new OscMessage("/marker");
+
+    /** Socket the markers are sent from. */
+    OscP5 osc;
+
+    /** Destination of the markers, an unused local port. */
+    final NetAddress target = new NetAddress("127.0.0.1", 12398);
+
+    /** Offscreen surface. */
+    PGraphics g;
+
+    /** The multi-target stimulus. */
+    MultiTargetStimulus multi;
+
+    /** Frames drawn. */
+    int frame = 0;
+
+
+    /**
+     * Load the protocol, open the marker socket, and create the surface.
+     * @throws IOException  if the protocol cannot be read
+     */
+    @Setup
+    public void setup() throws IOException {
+        InputStream in = new FileInputStream(protocolFile);
+        try {
+            protocol = new Protocol(in);
+        } finally {
+            in.close();
+        }
+        order = protocol.sequence();
+        osc = new OscP5(new Object(), 12399);
+        g = new PGraphicsJava2D();
+        g.setPrimary(false);
+        g.setSize(width, height);
+        g.beginDraw();
+        g.noStroke();
+        multi = new MultiTargetStimulus(new double[] { 6, 7.5, 8.57, 10 },
+                new double[4], width / 2, height / 2, height / 4,
+                width / 10);
+    }
+
+    /**
+     * Close the marker socket and release the surface.
+     */
+    @TearDown
+    public void tearDown() {
+        g.endDraw();
+        osc.stop();
+    }
+
+    /**
+     * @return  a random trial order, as the default protocol asks
+     */
+    @Benchmark
+    public int[] trialOrder() {
+        return TrialSequence.generate(TrialSequence.RANDOM, 3, 5, 0, rnd);
+    }
+
+    /**
+     * @return  the compiled timeline
+     */
+    @Benchmark
+    public Timeline compile() {
+        return protocol.compile(order);
+    }
+
+    /**
+     * @return  number of frames of a whole session, run headless at 60 Hz
+     */
+    @Benchmark
+    public int session() {
+        return new HeadlessPresenter(protocol, order, 60).run();
+    }
+
+    /**
+     * @return  the encoded marker packet
+     */
+    @Benchmark
+    public byte[] markerEncode() {
+        message.clearArguments();
+        message.add(321);
+        message.add((double) System.nanoTime());
+        return message.getBytes();
+    }
+
+    /**
+     * Encode and send a marker, as MarkerSender's thread does for each
+     * one. (Queueing it with mark() is a few stores; timed in a loop, it
+     * would only fill the ring and measure dropping.)
+     * @return  the message sent
+     */
+    @Benchmark
+    public OscMessage markerSend() {
+        message.clearArguments();
+        message.add(321);
+        message.add((double) System.nanoTime());
+        osc.send(message, target);
+        return message;
+    }
+
+    /**
+     * @return  the surface, with the multi-target stimulus drawn
+     */
+    @Benchmark
+    public PGraphics multiTargetDraw() {
+        multi.draw(g, ++frame / 60.0);
+        return g;
+    }
+}
@@ -0,0 +1,72 @@
+package braintobrain.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import braintobrain.analysis.OpenBCIReader;
+import braintobrain.analysis.Recording;
+import braintobrain.analysis.SyntheticSession;
+
+/**
+ * Synthetic 250 Hz recordings for the benchmarks: sessions of the
+ * default protocol (see SyntheticSession), stretched to the requested
+ * length, held in memory.
+ */
+public class Synthetic {
+
+    /** Protocol of the sessions, relative to the Experiment3 directory. */
+    public static final String PROTOCOL = "src/data/experiment3.protocol";
+
+    /** Seed of every session. */
+    public static final long SEED = 1;
+
+
+    /** This class cannot be instantiated. */
+    private Synthetic() {
+    }
+
+    /**
+     * Generate a recording as OpenBCI text.
+     * @param seconds   length of the recording
+     * @param subject   subject number (from 0)
+     * @return          the text
+     */
+    public static ByteBuffer text(int seconds, int subject) {
+        try {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(PROTOCOL);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            SyntheticSession session = new SyntheticSession(props, 8,
+                    Recording.SAMPLERATE, seconds, SEED);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    session.length() * 80);
+            session.writeText(subject, out);
+            return ByteBuffer.wrap(out.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Generate a recording.
+     * @param seconds   length of the recording
+     * @param subject   subject number (from 0)
+     * @return          the recording
+     */
+    public static Recording recording(int seconds, int subject) {
+        try {
+            return OpenBCIReader.read(text(seconds, subject), "synthetic-"
+                    + subject);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
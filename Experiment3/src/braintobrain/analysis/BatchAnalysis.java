@@ -0,0 +1,164 @@
+package braintobrain.analysis;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The analysis of Experiment3cAnalysis.m over a whole directory of
+ * sessions, on every core.
+ *
+ * The MATLAB sections loop over subjects, trials, conditions and
+ * channels one after the other. Here each level is a fork/join task on
+ * the shared FilterTask.POOL: a SubjectTask per session, a TrialTask per
+ * trial of each condition, and a ChannelTask per channel spectrum, so
+ * idle threads steal work from whichever subject still has some. Each
+ * subject gets the analysis's results (SaccMeanRMS, AvgDelays, AvgRMS and
+ * the average spectra), in a SubjectResult.
+ *
+ * The analysis is at Recording.SAMPLERATE: a session sampled at any other
+ * rate (such as a fast SyntheticSession) is rejected once it is loaded,
+ * and reported as its subject's error instead of results.
+ */
+public class BatchAnalysis extends RecursiveAction {
+
+    /** Explicit serialVersionUID to avoid class conflicts. */
+    public static final long serialVersionUID = 1L;
+
+    /** State numbers of the control and experimental conditions. */
+    public static final int[] STATES = { 2, 3 };
+
+    /** Gazes per trial (idle and saccade in turn). */
+    public static final int GAZES = 4;
+
+    /** Channels with spectra (Oz and Fp2). */
+    public static final int[] CHANNELS = { Recording.OZ, Recording.FP2 };
+
+    /** Samples per spectrum (15 s). */
+    public static final int FFTWINDOW = 3750;
+
+    /** Samples per RMS window (1 s). */
+    public static final int RMSWINDOW = 250;
+
+    /** Detection threshold, as a fraction of SaccMeanRMS. */
+    public static final double RATIO = 0.6;
+
+    /** RMS above which a window is a blink. */
+    public static final double BLINK = 35;
+
+    /** Samples on either side of a blink without EOG votes. */
+    public static final int BLINKSPAN = 75;
+
+    /** Order of the bandpass filters. */
+    public static final int ORDER = 3;
+
+    /** SSVEP band (in Hz). */
+    public static final double SSVEPLOW = 7, SSVEPHIGH = 8;
+
+    /** EOG band (in Hz). */
+    public static final double EOGLOW = 1.5, EOGHIGH = 10;
+
+
+    /** Sessions to analyse. */
+    final File[] files;
+
+    /** Results of each session. */
+    final SubjectResult[] results;
+
+
+    /**
+     * Create a task for a list of sessions.
+     * @param files sessions to analyse
+     */
+    BatchAnalysis(File[] files) {
+        this.files = files;
+        results = new SubjectResult[files.length];
+    }
+
+    /**
+     * Analyse sessions in parallel.
+     * @param files OpenBCI text exports or session files
+     * @return      results of each session, in the same order
+     */
+    public static SubjectResult[] analyse(File[] files) {
+        BatchAnalysis batch = new BatchAnalysis(files);
+        FilterTask.POOL.invoke(batch);
+        return batch.results;
+    }
+
+    @Override
+    protected void compute() {
+        SubjectTask[] tasks = new SubjectTask[files.length];
+        for (int i = 0; i < files.length; i++) {
+            tasks[i] = new SubjectTask(files[i]);
+        }
+        invokeAll(tasks);
+        for (int i = 0; i < files.length; i++) {
+            results[i] = tasks[i].join();
+        }
+    }
+
+    /**
+     * Analyse every session in a directory, and report each subject's
+     * results, their averages, and the time taken.
+     * @param args  directory of sessions (default: current)
+     */
+    public static void main(String[] args) {
+        File dir = new File(args.length > 0 ? args[0] : ".");
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(".txt") || name.endsWith(".b2b");
+            }
+        });
+        if (files == null) {
+            System.err.println("Not a directory: " + dir);
+            return;
+        }
+        Arrays.sort(files);
+        long start = System.nanoTime();
+        SubjectResult[] results = analyse(files);
+        long time = System.nanoTime() - start;
+
+        System.out.println("Subject: SaccMeanRMS, AvgDelays (s), AvgRMS"
+                + " (control / experimental)");
+        double[][] all = new double[6][results.length];
+        for (int i = 0; i < results.length; i++) {
+            SubjectResult r = results[i];
+            if (r.getError() != null) {
+                System.out.println(r.getName() + ": " + r.getError());
+                for (double[] column : all) {
+                    column[i] = Double.NaN;
+                }
+                continue;
+            }
+            for (int c = 0; c < 2; c++) {
+                all[c][i] = r.getSaccMeanRms(c);
+                all[2 + c][i] = r.getAvgDelay(c);
+                all[4 + c][i] = r.getAvgRms(c);
+            }
+            print(r.getName(), all, i);
+        }
+        double[][] means = new double[6][1];
+        for (int k = 0; k < 6; k++) {
+            means[k][0] = SubjectResult.mean(all[k]);
+        }
+        print("Mean", means, 0);
+        System.out.printf("%d sessions in %.1f ms on %d threads%n",
+                files.length, time / 1e6,
+                FilterTask.POOL.getParallelism());
+    }
+
+    /**
+     * Print one row of results.
+     * @param name  label of the row
+     * @param all   results, by [measure][row]
+     * @param i     the row
+     */
+    static void print(String name, double[][] all, int i) {
+        System.out.printf("%s: %.2f / %.2f, %.3f / %.3f, %.2f / %.2f%n",
+                name, all[0][i], all[1][i], all[2][i], all[3][i],
+                all[4][i], all[5][i]);
+    }
+}
@@ -0,0 +1,223 @@
+package braintobrain.analysis;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Butterworth filter design, as cascaded second-order sections.
+ *
+ * Equivalent to MATLAB's butter(order, cutoff / (fs / 2)) (with the
+ * 'high' option for highpass()), followed by tf2sos(): analog prototype
+ * poles, frequency transformation, prewarped bilinear transform, then
+ * conjugate poles paired into sections. Designs are cached by type,
+ * order, band and sampling rate, so the same filter asked for in every
+ * section of the analysis is designed only once.
+ */
+public class Butterworth {
+
+    /** Filters designed so far. */
+    static final ConcurrentHashMap<String, SosFilter> CACHE =
+            new ConcurrentHashMap<String, SosFilter>();
+
+
+    /** This class cannot be instantiated. */
+    private Butterworth() {
+    }
+
+    /**
+     * Lowpass filter.
+     * @param order     filter order
+     * @param cutoff    -3 dB frequency (in Hz)
+     * @param fs        sampling rate (in Hz)
+     * @return          the (shared) filter
+     */
+    public static SosFilter lowpass(int order, double cutoff, double fs) {
+        return get("lowpass", order, cutoff, cutoff, fs);
+    }
+
+    /**
+     * Highpass filter.
+     * @param order     filter order
+     * @param cutoff    -3 dB frequency (in Hz)
+     * @param fs        sampling rate (in Hz)
+     * @return          the (shared) filter
+     */
+    public static SosFilter highpass(int order, double cutoff, double fs) {
+        return get("highpass", order, cutoff, cutoff, fs);
+    }
+
+    /**
+     * Bandpass filter, of order 2 * order like MATLAB's.
+     * @param order     order of the lowpass prototype
+     * @param low       lower -3 dB frequency (in Hz)
+     * @param high      upper -3 dB frequency (in Hz)
+     * @param fs        sampling rate (in Hz)
+     * @return          the (shared) filter
+     */
+    public static SosFilter bandpass(int order, double low, double high,
+            double fs) {
+        return get("bandpass", order, low, high, fs);
+    }
+
+    /**
+     * Look up a design, designing it if needed.
+     * @param type      lowpass, highpass or bandpass
+     * @param order     prototype order
+     * @param low       lower (or only) cutoff (in Hz)
+     * @param high      upper (or only) cutoff (in Hz)
+     * @param fs        sampling rate (in Hz)
+     * @return          the filter
+     */
+    static SosFilter get(String type, int order, double low, double high,
+            double fs) {
+        String key = type + ' ' + order + ' ' + low + ' ' + high + ' ' + fs;
+        SosFilter filter = CACHE.get(key);
+        if (filter == null) {
+            filter = design(type, order, low, high, fs);
+            SosFilter raced = CACHE.putIfAbsent(key, filter);
+            if (raced != null) {
+                filter = raced;
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Design a filter.
+     * @param type      lowpass, highpass or bandpass
+     * @param order     prototype order
+     * @param low       lower (or only) cutoff (in Hz)
+     * @param high      upper (or only) cutoff (in Hz)
+     * @param fs        sampling rate (in Hz)
+     * @return          the filter
+     */
+    static SosFilter design(String type, int order, double low, double high,
+            double fs) {
+        if (order < 1 || low <= 0 || high < low || high >= fs / 2) {
+            throw new IllegalArgumentException("Invalid Butterworth "
+                    + type + " of order " + order + ", " + low + " to "
+                    + high + " Hz at " + fs + " Hz");
+        }
+        boolean band = "bandpass".equals(type);
+        boolean highpass = "highpass".equals(type);
+        // Prewarped analog frequencies (in rad/s, for the bilinear
+        // transform with T = 1 / fs)
+        double w1 = 2 * fs * Math.tan(Math.PI * low / fs);
+        double w2 = 2 * fs * Math.tan(Math.PI * high / fs);
+
+        int poles = band ? 2 * order : order;
+        double[] re = new double[poles];
+        double[] im = new double[poles];
+        int n = 0;
+        for (int k = 0; k < order; k++) {
+            // Analog prototype pole, on the left half of the unit circle
+            double theta = Math.PI * (2 * k + order + 1) / (2 * order);
+            double pr = Math.cos(theta);
+            double pi = Math.sin(theta);
+            if (band) {
+                // s = p * bw / 2 +- sqrt((p * bw / 2)^2 - w1 * w2)
+                double bw = w2 - w1;
+                double hr = pr * bw / 2, hi = pi * bw / 2;
+                double dr = hr * hr - hi * hi - w1 * w2;
+                double di = 2 * hr * hi;
+                double mod = Math.hypot(dr, di);
+                double sr = Math.sqrt((mod + dr) / 2);
+                double si = Math.copySign(Math.sqrt((mod - dr) / 2), di);
+                re[n] = hr + sr;
+                im[n++] = hi + si;
+                re[n] = hr - sr;
+                im[n++] = hi - si;
+            } else if (highpass) {
+                // s = w / p
+                double d = pr * pr + pi * pi;
+                re[n] = w1 * pr / d;
+                im[n++] = -w1 * pi / d;
+            } else {
+                re[n] = w1 * pr;
+                im[n++] = w1 * pi;
+            }
+        }
+        for (int i = 0; i < poles; i++) {
+            // Bilinear transform: z = (2 fs + s) / (2 fs - s)
+            double nr = 2 * fs + re[i], ni = im[i];
+            double dr = 2 * fs - re[i], di = -im[i];
+            double d = dr * dr + di * di;
+            re[i] = (nr * dr + ni * di) / d;
+            im[i] = (ni * dr - nr * di) / d;
+        }
+
+        // Pair each pole with its conjugate, and real poles together
+        int sections = (poles + 1) / 2;
+        double[] b = new double[3 * sections];
+        double[] a = new double[2 * sections];
+        boolean[] used = new boolean[poles];
+        int s = 0;
+        double eps = 1e-10;
+        for (int i = 0; i < poles; i++) {
+            if (used[i] || im[i] < eps) {
+                continue;
+            }
+            used[i] = true;
+            for (int j = 0; j < poles; j++) {
+                if (!used[j] && Math.abs(im[j] + im[i]) < 1e-8
+                        && Math.abs(re[j] - re[i]) < 1e-8) {
+                    used[j] = true;
+                    break;
+                }
+            }
+            a[2 * s] = -2 * re[i];
+            a[2 * s + 1] = re[i] * re[i] + im[i] * im[i];
+            s++;
+        }
+        int single = -1;
+        for (int i = 0; i < poles; i++) {
+            if (used[i]) {
+                continue;
+            }
+            used[i] = true;
+            if (single < 0) {
+                single = i;
+            } else {
+                a[2 * s] = -(re[single] + re[i]);
+                a[2 * s + 1] = re[single] * re[i];
+                s++;
+                single = -1;
+            }
+        }
+        if (single >= 0) {
+            a[2 * s] = -re[single];
+            a[2 * s + 1] = 0;
+            s++;
+        }
+
+        // Zeros: at z = -1 (lowpass), z = 1 (highpass), or one of each
+        // per section (bandpass)
+        for (s = 0; s < sections; s++) {
+            boolean firstOrder = a[2 * s + 1] == 0 && !band;
+            if (band) {
+                b[3 * s] = 1;
+                b[3 * s + 2] = -1;
+            } else if (firstOrder) {
+                b[3 * s] = 1;
+                b[3 * s + 1] = highpass ? -1 : 1;
+            } else {
+                b[3 * s] = 1;
+                b[3 * s + 1] = highpass ? -2 : 2;
+                b[3 * s + 2] = 1;
+            }
+        }
+
+        // Unit gain at DC, Nyquist, or the band's center
+        double center = 0;
+        if (band) {
+            center = Math.atan(Math.sqrt(w1 * w2) / (2 * fs)) * fs / Math.PI;
+        } else if (highpass) {
+            center = fs / 2;
+        }
+        SosFilter raw = new SosFilter(b, a, poles);
+        double k = 1 / raw.magnitude(center, fs);
+        for (int i = 0; i < 3; i++) {
+            b[i] *= k;
+        }
+        return new SosFilter(b, a, poles);
+    }
+}
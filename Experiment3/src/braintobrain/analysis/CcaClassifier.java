@@ -0,0 +1,442 @@
+package braintobrain.analysis;
+
+import java.util.Arrays;
+
+/**
+ * SSVEP classification by canonical correlation analysis (CCA).
+ *
+ * For each candidate stimulus frequency, the EEG channels are correlated
+ * against sine and cosine references at that frequency and its
+ * harmonics: the largest canonical correlation between the two sets
+ * measures how much of the EEG follows the stimulus, whatever its phase
+ * and whatever mix of channels carries it. The candidate with the
+ * highest correlation wins.
+ *
+ * Samples are added one at a time into a sliding window. The window's
+ * sums (and sums of products) of channels and references are updated
+ * incrementally, adding the new sample and removing the one leaving the
+ * window, so covariances never have to be recomputed from scratch;
+ * the sums are rebuilt from the window once per window length to stop
+ * rounding errors from accumulating. classify() then only solves a few
+ * small eigenproblems. Nothing is allocated after construction.
+ *
+ * Instances are not thread-safe: add samples and classify on one thread.
+ */
+public class CcaClassifier {
+
+    /** Jacobi sweeps for the eigenvalue problem (plenty for 8 x 8). */
+    public static final int SWEEPS = 12;
+
+
+    /** Number of EEG channels. */
+    final int channels;
+
+    /** Number of reference signals per frequency (2 per harmonic). */
+    final int refs;
+
+    /** Candidate frequencies. */
+    final double[] freqs;
+
+    /** Window length (in samples). */
+    final int window;
+
+    /** Channel samples in the window, channels per sample. */
+    final double[] xRing;
+
+    /** Reference samples in the window, freqs * refs per sample. */
+    final double[] yRing;
+
+    /** Reference phasors (cos, sin) of each frequency and harmonic. */
+    final double[] phaseRe, phaseIm;
+
+    /** Per-sample rotation of each reference phasor. */
+    final double[] stepRe, stepIm;
+
+    /** Sum of each channel. */
+    final double[] sx;
+
+    /** Sum of products of channels (channels x channels). */
+    final double[] sxx;
+
+    /** Sum of each reference, per frequency. */
+    final double[] sy;
+
+    /** Sum of products of references, per frequency (refs x refs). */
+    final double[] syy;
+
+    /** Sum of products of channels and references, per frequency
+     *  (channels x refs). */
+    final double[] sxy;
+
+    /** Samples added since reset(). */
+    long count = 0;
+
+    // Work arrays for classify()
+    final double[] cxx, cyy, cxy, lx, ly, a, t, b, v;
+
+
+    /**
+     * Create a classifier.
+     * @param channels  number of EEG channels
+     * @param freqs     candidate stimulus frequencies (in Hz)
+     * @param harmonics number of harmonics in the references, including
+     *                  the fundamental
+     * @param window    window length (in samples)
+     * @param fs        sampling rate (in Hz)
+     */
+    public CcaClassifier(int channels, double[] freqs, int harmonics,
+            int window, double fs) {
+        this.channels = channels;
+        this.freqs = freqs.clone();
+        this.refs = 2 * harmonics;
+        this.window = window;
+        int k = freqs.length;
+        xRing = new double[window * channels];
+        yRing = new double[window * k * refs];
+        phaseRe = new double[k * harmonics];
+        phaseIm = new double[k * harmonics];
+        stepRe = new double[k * harmonics];
+        stepIm = new double[k * harmonics];
+        for (int f = 0; f < k; f++) {
+            for (int h = 0; h < harmonics; h++) {
+                double w = 2 * Math.PI * (h + 1) * freqs[f] / fs;
+                stepRe[f * harmonics + h] = Math.cos(w);
+                stepIm[f * harmonics + h] = Math.sin(w);
+            }
+        }
+        sx = new double[channels];
+        sxx = new double[channels * channels];
+        sy = new double[k * refs];
+        syy = new double[k * refs * refs];
+        sxy = new double[k * channels * refs];
+        cxx = new double[channels * channels];
+        cyy = new double[refs * refs];
+        cxy = new double[channels * refs];
+        lx = new double[channels * channels];
+        ly = new double[refs * refs];
+        a = new double[channels * refs];
+        t = new double[channels * refs];
+        b = new double[channels * channels];
+        v = new double[channels];
+        reset();
+    }
+
+    /**
+     * Empty the window, and restart the references at phase 0.
+     */
+    public void reset() {
+        count = 0;
+        for (int i = 0; i < phaseRe.length; i++) {
+            phaseRe[i] = 1;
+            phaseIm[i] = 0;
+        }
+        clearSums();
+    }
+
+    /**
+     * Set every running sum to 0.
+     */
+    void clearSums() {
+        Arrays.fill(sx, 0);
+        Arrays.fill(sxx, 0);
+        Arrays.fill(sy, 0);
+        Arrays.fill(syy, 0);
+        Arrays.fill(sxy, 0);
+    }
+
+    /**
+     * @return  number of samples in the window
+     */
+    public int size() {
+        return (int) Math.min(count, window);
+    }
+
+    /**
+     * Add the next sample of every channel.
+     * @param x one value per channel (only read during the call)
+     */
+    public void add(double[] x) {
+        int slot = (int) (count % window);
+        int harmonics = refs / 2;
+        int k = freqs.length;
+        boolean full = count >= window;
+        if (full) {
+            accumulate(slot, -1); // Remove the sample leaving the window
+        }
+        System.arraycopy(x, 0, xRing, slot * channels, channels);
+        int y = slot * k * refs;
+        for (int p = 0; p < k * harmonics; p++) {
+            yRing[y + 2 * p] = phaseRe[p];
+            yRing[y + 2 * p + 1] = phaseIm[p];
+            double re = phaseRe[p] * stepRe[p] - phaseIm[p] * stepIm[p];
+            double im = phaseRe[p] * stepIm[p] + phaseIm[p] * stepRe[p];
+            phaseRe[p] = re;
+            phaseIm[p] = im;
+        }
+        count++;
+        if (full && slot == window - 1) {
+            // Rebuild the sums from the window, and renormalize phasors
+            clearSums();
+            for (int s = 0; s < window; s++) {
+                accumulate(s, 1);
+            }
+            for (int p = 0; p < k * harmonics; p++) {
+                double norm = 1 / Math.hypot(phaseRe[p], phaseIm[p]);
+                phaseRe[p] *= norm;
+                phaseIm[p] *= norm;
+            }
+        } else {
+            accumulate(slot, 1);
+        }
+    }
+
+    /**
+     * Add a sample of the window to the sums, or remove it.
+     * @param slot  position of the sample in the rings
+     * @param sign  1 to add, -1 to remove
+     */
+    void accumulate(int slot, double sign) {
+        int xo = slot * channels;
+        int k = freqs.length;
+        for (int i = 0; i < channels; i++) {
+            double xi = sign * xRing[xo + i];
+            sx[i] += xi;
+            for (int j = 0; j < channels; j++) {
+                sxx[i * channels + j] += xi * xRing[xo + j];
+            }
+        }
+        for (int f = 0; f < k; f++) {
+            int yo = (slot * k + f) * refs;
+            for (int i = 0; i < refs; i++) {
+                double yi = sign * yRing[yo + i];
+                sy[f * refs + i] += yi;
+                for (int j = 0; j < refs; j++) {
+                    syy[(f * refs + i) * refs + j] += yi * yRing[yo + j];
+                }
+                for (int c = 0; c < channels; c++) {
+                    sxy[(f * channels + c) * refs + i] += yi * xRing[xo + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the canonical correlation of every candidate frequency.
+     * @param rho   receives the correlation of each frequency
+     * @return      index of the best frequency, or -1 if the window
+     *              holds too few samples
+     */
+    public int classify(double[] rho) {
+        int n = size();
+        if (n <= channels + refs) {
+            return -1;
+        }
+        // Channel covariance (shared by every frequency)
+        for (int i = 0; i < channels; i++) {
+            for (int j = 0; j < channels; j++) {
+                cxx[i * channels + j] = sxx[i * channels + j]
+                        - sx[i] * sx[j] / n;
+            }
+        }
+        if (!cholesky(cxx, lx, channels)) {
+            Arrays.fill(rho, 0, freqs.length, 0);
+            return -1; // A flat or duplicated channel
+        }
+        int best = -1;
+        for (int f = 0; f < freqs.length; f++) {
+            for (int i = 0; i < refs; i++) {
+                for (int j = 0; j < refs; j++) {
+                    cyy[i * refs + j] = syy[(f * refs + i) * refs + j]
+                            - sy[f * refs + i] * sy[f * refs + j] / n;
+                }
+                for (int c = 0; c < channels; c++) {
+                    cxy[c * refs + i] = sxy[(f * channels + c) * refs + i]
+                            - sx[c] * sy[f * refs + i] / n;
+                }
+            }
+            if (!cholesky(cyy, ly, refs)) {
+                rho[f] = 0;
+                continue;
+            }
+            // a = Lx^-1 Cxy Ly^-T: its largest singular value is rho
+            for (int i = 0; i < refs; i++) {
+                for (int c = 0; c < channels; c++) {
+                    double sum = cxy[c * refs + i];
+                    for (int d = 0; d < c; d++) {
+                        sum -= lx[c * channels + d] * t[d * refs + i];
+                    }
+                    t[c * refs + i] = sum / lx[c * channels + c];
+                }
+            }
+            for (int c = 0; c < channels; c++) {
+                for (int i = 0; i < refs; i++) {
+                    double sum = t[c * refs + i];
+                    for (int d = 0; d < i; d++) {
+                        sum -= ly[i * refs + d] * a[c * refs + d];
+                    }
+                    a[c * refs + i] = sum / ly[i * refs + i];
+                }
+            }
+            for (int i = 0; i < channels; i++) {
+                for (int j = 0; j < channels; j++) {
+                    double sum = 0;
+                    for (int r = 0; r < refs; r++) {
+                        sum += a[i * refs + r] * a[j * refs + r];
+                    }
+                    b[i * channels + j] = sum;
+                }
+            }
+            rho[f] = Math.sqrt(Math.max(0,
+                    Math.min(1, largestEigenvalue(b, v, channels))));
+            if (best < 0 || rho[f] > rho[best]) {
+                best = f;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return  the candidate frequencies (in Hz)
+     */
+    public double[] getFrequencies() {
+        return freqs.clone();
+    }
+
+    /**
+     * Cholesky factorization of a symmetric positive definite matrix.
+     * @param m     the matrix (n x n, row-major)
+     * @param l     receives the lower triangular factor
+     * @param n     size of the matrix
+     * @return      false if m is not positive definite
+     */
+    static boolean cholesky(double[] m, double[] l, int n) {
+        double scale = 0;
+        for (int i = 0; i < n; i++) {
+            scale = Math.max(scale, m[i * n + i]);
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = m[i * n + j];
+                for (int d = 0; d < j; d++) {
+                    sum -= l[i * n + d] * l[j * n + d];
+                }
+                if (i == j) {
+                    if (sum <= 1e-12 * scale) {
+                        return false;
+                    }
+                    l[i * n + i] = Math.sqrt(sum);
+                } else {
+                    l[i * n + j] = sum / l[j * n + j];
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Largest eigenvalue of a small symmetric matrix, by cyclic Jacobi
+     * rotations.
+     * @param m     the matrix (n x n, row-major), destroyed
+     * @param diag  work array of n values
+     * @param n     size of the matrix
+     * @return      the largest eigenvalue
+     */
+    static double largestEigenvalue(double[] m, double[] diag, int n) {
+        for (int sweep = 0; sweep < SWEEPS; sweep++) {
+            double off = 0;
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    off += m[p * n + q] * m[p * n + q];
+                }
+            }
+            if (off < 1e-30) {
+                break;
+            }
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    double apq = m[p * n + q];
+                    if (apq == 0) {
+                        continue;
+                    }
+                    double theta = (m[q * n + q] - m[p * n + p]) / (2 * apq);
+                    double tan = Math.signum(theta) / (Math.abs(theta)
+                            + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        tan = 1;
+                    }
+                    double cos = 1 / Math.sqrt(tan * tan + 1);
+                    double sin = tan * cos;
+                    for (int r = 0; r < n; r++) {
+                        double mrp = m[r * n + p], mrq = m[r * n + q];
+                        m[r * n + p] = cos * mrp - sin * mrq;
+                        m[r * n + q] = sin * mrp + cos * mrq;
+                    }
+                    for (int r = 0; r < n; r++) {
+                        double mpr = m[p * n + r], mqr = m[q * n + r];
+                        m[p * n + r] = cos * mpr - sin * mqr;
+                        m[q * n + r] = sin * mpr + cos * mqr;
+                    }
+                }
+            }
+        }
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            diag[i] = m[i * n + i];
+            max = Math.max(max, diag[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Score whole trials offline: the canonical correlation of each
+     * trial of a condition with each candidate frequency. Columns are
+     * used as they are, so pass filtered ones (see SosFilter) to keep
+     * drift out of the correlations.
+     * @param rec       the recording
+     * @param index     its segment index
+     * @param state     state number of the condition (such as 3 for
+     *                  experimental)
+     * @param columns   recording columns to use as channels
+     * @param freqs     candidate frequencies (in Hz)
+     * @param harmonics number of harmonics in the references
+     * @return          correlations, [trial - 1][frequency], with a row
+     *                  of zeros for missing trials
+     */
+    public static double[][] scoreTrials(Recording rec, SegmentIndex index,
+            int state, int[] columns, double[] freqs, int harmonics) {
+        int trials = 0;
+        int longest = 0;
+        for (int s = 0; s < index.size(); s++) {
+            if (index.state(s) == state && index.trial(s) > 0) {
+                trials = Math.max(trials, index.trial(s));
+                Slice slice = index.trialSlice(rec.getColumn(columns[0]),
+                        state, index.trial(s));
+                longest = Math.max(longest, slice.length());
+            }
+        }
+        double[][] rho = new double[trials][freqs.length];
+        if (trials == 0) {
+            return rho;
+        }
+        CcaClassifier cca = new CcaClassifier(columns.length, freqs,
+                harmonics, longest, Recording.SAMPLERATE);
+        double[] x = new double[columns.length];
+        for (int trial = 1; trial <= trials; trial++) {
+            int first = index.findTrial(state, trial);
+            if (first < 0) {
+                continue;
+            }
+            int from = index.start(first);
+            int to = index.end(index.trialEnd(first) - 1);
+            cca.reset();
+            for (int i = from; i < to; i++) {
+                for (int c = 0; c < columns.length; c++) {
+                    x[c] = rec.getColumn(columns[c])[i];
+                }
+                cca.add(x);
+            }
+            cca.classify(rho[trial - 1]);
+        }
+        return rho;
+    }
+}
@@ -0,0 +1,59 @@
+package braintobrain.analysis;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Amplitude spectrum of one channel of one trial (Section 4 of the
+ * analysis), the leaves of the batch analysis. Each thread reuses one
+ * pair of transform arrays.
+ */
+class ChannelTask extends RecursiveAction {
+
+    /** Explicit serialVersionUID to avoid class conflicts. */
+    public static final long serialVersionUID = 1L;
+
+    /** Transform arrays of each thread (real and imaginary parts). */
+    static final ThreadLocal<double[][]> WORK =
+            new ThreadLocal<double[][]>() {
+        @Override
+        protected double[][] initialValue() {
+            int n = Spectrum.length(BatchAnalysis.FFTWINDOW);
+            return new double[][] { new double[n], new double[n] };
+        }
+    };
+
+
+    /** Samples of the channel. */
+    final float[] column;
+
+    /** Index of the trial's first sample. */
+    final int from;
+
+    /** Index after the trial's last sample. */
+    final int to;
+
+    /** Output spectrum. */
+    final double[] amp;
+
+
+    /**
+     * Create a task for one channel of one trial.
+     * @param column    samples of the channel
+     * @param from      index of the trial's first sample
+     * @param to        index after the trial's last sample
+     * @param amp       output spectrum, of at least n / 2 + 1 bins
+     */
+    ChannelTask(float[] column, int from, int to, double[] amp) {
+        this.column = column;
+        this.from = from;
+        this.to = to;
+        this.amp = amp;
+    }
+
+    @Override
+    protected void compute() {
+        double[][] work = WORK.get();
+        int window = Math.min(BatchAnalysis.FFTWINDOW, to - from);
+        Spectrum.amplitude(column, from, to, window, work[0], work[1], amp);
+    }
+}
@@ -0,0 +1,157 @@
+package braintobrain.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Phase and amplitude of one subject's SSVEP in every trial of a
+ * condition, computed once and shared by all of the subject's pairs.
+ *
+ * Oz is filtered to the SSVEP band and detrended, as Section 13 of the
+ * analysis does, and turned into its analytic signal. Each trial keeps
+ * the analytic signal and its unit phasor (cos and sin of the phase) as
+ * float columns, so that scoring a pair is plain multiply-adds with no
+ * trigonometry.
+ */
+public class Envelope {
+
+    /** Name of the recording. */
+    final String name;
+
+    /** Real part of the analytic signal (the filtered signal), by
+     *  [trial - 1][sample], or null for absent trials. */
+    final float[][] re;
+
+    /** Imaginary part of the analytic signal (its Hilbert transform). */
+    final float[][] im;
+
+    /** Cosine of the instantaneous phase. */
+    final float[][] cos;
+
+    /** Sine of the instantaneous phase. */
+    final float[][] sin;
+
+    /** RMS of the filtered signal of each trial. */
+    final double[] rms;
+
+
+    /**
+     * Create an empty envelope.
+     * @param name      name of the recording
+     * @param trials    number of trials
+     */
+    Envelope(String name, int trials) {
+        this.name = name;
+        re = new float[trials][];
+        im = new float[trials][];
+        cos = new float[trials][];
+        sin = new float[trials][];
+        rms = new double[trials];
+        Arrays.fill(rms, Double.NaN);
+    }
+
+    /**
+     * Compute the envelopes of Oz over every trial of a condition.
+     * @param rec       the recording
+     * @param index     its segment index
+     * @param state     state number of the condition
+     * @return          the envelopes
+     */
+    public static Envelope of(Recording rec, SegmentIndex index,
+            int state) {
+        int trials = 0;
+        int longest = 0;
+        for (int s = 0; s < index.size(); s++) {
+            if (index.state(s) == state && index.isTrialStart(s)) {
+                trials = Math.max(trials, index.trial(s));
+                longest = Math.max(longest,
+                        index.end(index.trialEnd(s) - 1) - index.start(s));
+            }
+        }
+        Envelope env = new Envelope(rec.getName(), trials);
+        SosFilter band = Butterworth.bandpass(BatchAnalysis.ORDER,
+                BatchAnalysis.SSVEPLOW, BatchAnalysis.SSVEPHIGH,
+                Recording.SAMPLERATE);
+        int n = Spectrum.length(longest);
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int t = 1; t <= trials; t++) {
+            int first = index.findTrial(state, t);
+            if (first < 0) {
+                continue;
+            }
+            int from = index.start(first);
+            int to = index.end(index.trialEnd(first) - 1);
+            float[] x = TrialTask.filter(band, rec.getColumn(Recording.OZ),
+                    from, to);
+            env.add(t, x, re, im);
+        }
+        return env;
+    }
+
+    /**
+     * Detrend one trial and store its analytic signal.
+     * @param trial trial number, from 1
+     * @param x     the trial, filtered to the SSVEP band
+     * @param re    scratch space of a power of two length, at least that
+     *              of x
+     * @param im    scratch space of the same length
+     */
+    void add(int trial, float[] x, double[] re, double[] im) {
+        int m = x.length;
+        double mt = (m - 1) / 2.0;
+        double mean = 0;
+        for (int i = 0; i < m; i++) {
+            mean += x[i];
+        }
+        mean = m > 0 ? mean / m : 0;
+        double stx = 0, stt = 0;
+        for (int i = 0; i < m; i++) {
+            stx += (i - mt) * (x[i] - mean);
+            stt += (i - mt) * (i - mt);
+        }
+        double slope = stt > 0 ? stx / stt : 0;
+        double sq = 0;
+        for (int i = 0; i < re.length; i++) {
+            re[i] = i < m ? x[i] - mean - slope * (i - mt) : 0;
+            im[i] = 0;
+            sq += re[i] * re[i];
+        }
+        Spectrum.analytic(re, im);
+        float[] r = new float[m], j = new float[m];
+        float[] c = new float[m], s = new float[m];
+        for (int i = 0; i < m; i++) {
+            r[i] = (float) re[i];
+            j[i] = (float) im[i];
+            double amp = Math.sqrt(re[i] * re[i] + im[i] * im[i]);
+            c[i] = amp > 0 ? (float) (re[i] / amp) : 1;
+            s[i] = amp > 0 ? (float) (im[i] / amp) : 0;
+        }
+        this.re[trial - 1] = r;
+        this.im[trial - 1] = j;
+        cos[trial - 1] = c;
+        sin[trial - 1] = s;
+        rms[trial - 1] = m > 0 ? Math.sqrt(sq / m) : Double.NaN;
+    }
+
+    /**
+     * @return  name of the recording
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return  number of trials
+     */
+    public int getTrials() {
+        return rms.length;
+    }
+
+    /**
+     * @param trial trial number, from 1
+     * @return      RMS of the trial's filtered signal, or NaN if absent
+     */
+    public double getRms(int trial) {
+        return rms[trial - 1];
+    }
+}
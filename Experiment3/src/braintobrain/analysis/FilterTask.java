@@ -0,0 +1,106 @@
+package braintobrain.analysis;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Zero-phase filtering of many segments in parallel.
+ *
+ * Segments are split recursively between the threads of a fork/join
+ * pool. Each thread reuses one work array, grown only when a longer
+ * segment comes along, so the filtering itself allocates nothing.
+ */
+public class FilterTask extends RecursiveAction {
+
+    /** Explicit serialVersionUID to avoid class conflicts. */
+    public static final long serialVersionUID = 1L;
+
+    /** Segments filtered by one task without splitting further. */
+    public static final int BATCH = 4;
+
+    /** Pool shared by every analysis task. */
+    public static final ForkJoinPool POOL = new ForkJoinPool();
+
+    /** Work array of each thread. */
+    static final ThreadLocal<double[]> WORK = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[0];
+        }
+    };
+
+
+    /** Filter to apply. */
+    final SosFilter filter;
+
+    /** Segments to filter. */
+    final Slice[] in;
+
+    /** Output array for each segment, at least as long as it. */
+    final float[][] out;
+
+    /** First segment of this task. */
+    final int from;
+
+    /** Segment after the last of this task. */
+    final int to;
+
+
+    /**
+     * Create a task for part of the segments.
+     * @param filter    filter to apply
+     * @param in        segments to filter
+     * @param out       output array for each segment
+     * @param from      first segment of this task
+     * @param to        segment after the last of this task
+     */
+    FilterTask(SosFilter filter, Slice[] in, float[][] out, int from,
+            int to) {
+        this.filter = filter;
+        this.in = in;
+        this.out = out;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Filter every segment forwards and backwards, in parallel.
+     * @param filter    filter to apply
+     * @param in        segments to filter
+     * @param out       output array for each segment, at least as long
+     *                  as it (may be null, to allocate them)
+     * @return          the output arrays
+     */
+    public static float[][] filtfilt(SosFilter filter, Slice[] in,
+            float[][] out) {
+        if (out == null) {
+            out = new float[in.length][];
+            for (int i = 0; i < in.length; i++) {
+                out[i] = new float[in[i].length()];
+            }
+        }
+        POOL.invoke(new FilterTask(filter, in, out, 0, in.length));
+        return out;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > BATCH) {
+            int mid = (from + to) >>> 1;
+            invokeAll(new FilterTask(filter, in, out, from, mid),
+                    new FilterTask(filter, in, out, mid, to));
+            return;
+        }
+        double[] work = WORK.get();
+        for (int i = from; i < to; i++) {
+            Slice s = in[i];
+            int needed = filter.workLength(s.length());
+            if (work.length < needed) {
+                work = new double[needed];
+                WORK.set(work);
+            }
+            filter.filtfilt(s.array(), s.offset(), s.offset() + s.length(),
+                    out[i], 0, work);
+        }
+    }
+}
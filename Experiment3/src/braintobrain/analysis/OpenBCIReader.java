@@ -0,0 +1,372 @@
+package braintobrain.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Loader for OpenBCI text exports (OpenBCI-RAW-*.txt).
+ *
+ * Replaces csvread() in the MATLAB analysis. The file is memory-mapped
+ * and parsed byte by byte, straight into the primitive columns of a
+ * Recording: no Strings, boxed numbers or row objects are created. A
+ * first pass counts the lines, so the columns are allocated once at
+ * their final size.
+ *
+ * Header lines (starting with '%', or with anything that is not part of
+ * a number) are skipped. The number of columns is taken from the first
+ * data line; missing fields, and fields that are not numbers (such as
+ * time stamps), read as NaN.
+ *
+ * The sample rate is read from the "%Sample Rate" header, and taken to
+ * be Recording.SAMPLERATE if there is none.
+ */
+public class OpenBCIReader {
+
+    /** Start of the header line giving the sample rate. */
+    static final byte[] RATE = { '%', 'S', 'a', 'm', 'p', 'l', 'e', ' ',
+        'R', 'a', 't', 'e' };
+
+    /** Exact powers of ten, for decimal fractions. */
+    static final double[] POWERS = new double[23];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+
+    /** Text being parsed. */
+    final ByteBuffer buf;
+
+    /** End of the text. */
+    final int limit;
+
+    /** Position of the next byte to read. */
+    int pos;
+
+    /** Sample rate given by the header, or NaN if it has none. */
+    float rate = Float.NaN;
+
+
+    /**
+     * Create a parser over some text.
+     * @param buf   the text, from its position to its limit
+     */
+    OpenBCIReader(ByteBuffer buf) {
+        this.buf = buf;
+        this.pos = buf.position();
+        this.limit = buf.limit();
+    }
+
+    /**
+     * Load a recording from a file.
+     * @param file          the OpenBCI text export
+     * @return              the recording, named after the file
+     * @throws IOException  if the file cannot be read or has no data
+     */
+    public static Recording read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            return read(map, file.getName());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Load a recording from text already in memory.
+     * @param text          the OpenBCI text export
+     * @param name          name to give the recording
+     * @return              the recording
+     * @throws IOException  if the text has no data
+     */
+    public static Recording read(ByteBuffer text, String name)
+            throws IOException {
+        return new OpenBCIReader(text).parse(name);
+    }
+
+    /**
+     * Parse the whole text.
+     * @param name          name to give the recording
+     * @return              the recording
+     * @throws IOException  if the text has no data
+     */
+    Recording parse(String name) throws IOException {
+        skipHeader();
+        int start = pos;
+        int cols = countFields();
+        if (cols < 2) {
+            throw new IOException(name + " has no OpenBCI data");
+        }
+        int rows = countLines();
+
+        short[] markers = new short[rows];
+        float[][] columns = new float[cols][];
+        for (int c = 1; c < cols; c++) {
+            columns[c] = new float[rows];
+        }
+        pos = start;
+        int row = 0;
+        while (pos < limit && row < rows) {
+            if (isBlank()) {
+                skipLine();
+                continue;
+            }
+            float marker = number();
+            markers[row] = marker == marker ? (short) Math.round(marker) : 0;
+            int c = 1;
+            for (; c < cols && skipComma(); c++) {
+                columns[c][row] = number();
+            }
+            for (; c < cols; c++) {
+                columns[c][row] = Float.NaN;
+            }
+            skipLine();
+            row++;
+        }
+        return new Recording(name, markers, columns, row,
+                rate == rate ? rate : Recording.SAMPLERATE);
+    }
+
+    /**
+     * Move past every header line, to the first line starting with a
+     * number, and read the sample rate if one is given.
+     */
+    void skipHeader() {
+        while (pos < limit) {
+            int p = pos;
+            while (p < limit && (buf.get(p) == ' ' || buf.get(p) == '\t')) {
+                p++;
+            }
+            if (p < limit && isNumberStart(buf.get(p))) {
+                return;
+            }
+            if (startsWith(p, RATE)) {
+                for (pos = p + RATE.length; pos < limit
+                        && buf.get(pos) != '=' && buf.get(pos) != '\n';) {
+                    pos++;
+                }
+                if (pos < limit && buf.get(pos) == '=') {
+                    pos++;
+                    rate = number();
+                }
+            }
+            skipLine();
+        }
+    }
+
+    /**
+     * @param p         position in the text
+     * @param prefix    bytes to look for
+     * @return          true if the text at p starts with prefix
+     */
+    boolean startsWith(int p, byte[] prefix) {
+        if (limit - p < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(p + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return  number of comma-separated fields on the current line
+     */
+    int countFields() {
+        if (pos >= limit) {
+            return 0;
+        }
+        int fields = 1;
+        for (int p = pos; p < limit; p++) {
+            byte b = buf.get(p);
+            if (b == '\n') {
+                break;
+            } else if (b == ',') {
+                fields++;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return  number of lines from the current position to the end
+     *          (an upper bound on the number of data rows)
+     */
+    int countLines() {
+        int lines = 0;
+        for (int p = pos; p < limit; p++) {
+            if (buf.get(p) == '\n') {
+                lines++;
+            }
+        }
+        if (limit > pos && buf.get(limit - 1) != '\n') {
+            lines++; // Last line has no terminator
+        }
+        return lines;
+    }
+
+    /**
+     * @return  true if the current line has nothing but whitespace
+     */
+    boolean isBlank() {
+        for (int p = pos; p < limit; p++) {
+            byte b = buf.get(p);
+            if (b == '\n') {
+                return true;
+            } else if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move to the start of the next line.
+     */
+    void skipLine() {
+        while (pos < limit && buf.get(pos++) != '\n') {
+            // Skip
+        }
+    }
+
+    /**
+     * Move past the comma ending the current field, if the line has one.
+     * @return  true if another field follows on this line
+     */
+    boolean skipComma() {
+        while (pos < limit) {
+            byte b = buf.get(pos);
+            if (b == ',') {
+                pos++;
+                return true;
+            } else if (b == '\n') {
+                return false;
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    /**
+     * Parse a decimal number (with optional sign, fraction and exponent)
+     * at the current position, leaving the position on the byte after
+     * it. Leading spaces are skipped.
+     * @return  the number, or NaN if the field is not a number
+     */
+    float number() {
+        while (pos < limit && buf.get(pos) == ' ') {
+            pos++;
+        }
+        boolean negative = false;
+        if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+            negative = buf.get(pos) == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        byte b = 0;
+        for (; pos < limit; pos++) {
+            b = buf.get(pos);
+            if (b >= '0' && b <= '9') {
+                if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                    mantissa = 10 * mantissa + (b - '0');
+                } else {
+                    scale++; // Too many digits: drop the least significant
+                }
+                digits++;
+            } else if (b == '.') {
+                for (pos++; pos < limit; pos++) {
+                    b = buf.get(pos);
+                    if (b < '0' || b > '9') {
+                        break;
+                    }
+                    if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                        mantissa = 10 * mantissa + (b - '0');
+                        scale--;
+                    }
+                    digits++;
+                }
+                break;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Float.NaN;
+        }
+        if (pos < limit && (b == 'e' || b == 'E')) {
+            pos++;
+            boolean negExp = false;
+            if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+                negExp = buf.get(pos) == '-';
+                pos++;
+            }
+            int exp = 0;
+            for (; pos < limit && (b = buf.get(pos)) >= '0' && b <= '9';
+                    pos++) {
+                exp = Math.min(10 * exp + (b - '0'), 1000);
+            }
+            scale += negExp ? -exp : exp;
+        }
+        if (pos < limit && !isDelimiter(buf.get(pos))) {
+            return Float.NaN; // Not a number, such as a time stamp
+        }
+        double value = mantissa;
+        if (scale < 0) {
+            value = -scale < POWERS.length ? value / POWERS[-scale]
+                    : value * Math.pow(10, scale);
+        } else if (scale > 0) {
+            value = scale < POWERS.length ? value * POWERS[scale]
+                    : value * Math.pow(10, scale);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * @param b a byte
+     * @return  true if b may start a number
+     */
+    static boolean isNumberStart(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.';
+    }
+
+    /**
+     * @param b a byte
+     * @return  true if b may follow a number
+     */
+    static boolean isDelimiter(byte b) {
+        return b == ',' || b == '\n' || b == '\r' || b == ' ' || b == '\t';
+    }
+
+    /**
+     * Load recordings and report their size and loading time.
+     * @param args  OpenBCI text exports
+     * @throws IOException  if a file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            long start = System.nanoTime();
+            Recording rec = read(new File(arg));
+            long time = System.nanoTime() - start;
+            System.out.printf("%s: %d samples x %d columns in %.1f ms%n",
+                    rec.getName(), rec.length(), rec.getColumnCount(),
+                    time / 1e6);
+        }
+    }
+}
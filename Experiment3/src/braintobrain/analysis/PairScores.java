@@ -0,0 +1,144 @@
+package braintobrain.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Synchrony of every pair of subjects, trial by trial, as scored by
+ * SynchronyTask. Pairs are numbered in the order of MATLAB's nchoosek():
+ * (0, 1), (0, 2), ... (1, 2), ...
+ *
+ * Each trial of a pair has:
+ *  - the phase-locking value: the length of the mean of the two
+ *    subjects' phase differences as unit phasors, from 0 (unrelated) to
+ *    1 (constant phase difference)
+ *  - the RMS similarity: the smaller RMS over the larger, from 0 to 1
+ *  - the aligned RMS: the RMS of the first subject's SSVEP plus the
+ *    second's shifted by their mean phase difference, the counterpart of
+ *    the synchronized signal of Section 13
+ * Values are NaN for trials either subject lacks.
+ */
+public class PairScores {
+
+    /** Subjects scored. */
+    final Envelope[] subjects;
+
+    /** First subject of each pair. */
+    final int[] first;
+
+    /** Second subject of each pair. */
+    final int[] second;
+
+    /** Phase-locking value, by [pair][trial - 1]. */
+    final double[][] plv;
+
+    /** RMS similarity, by [pair][trial - 1]. */
+    final double[][] similarity;
+
+    /** RMS of the phase-aligned sum, by [pair][trial - 1]. */
+    final double[][] aligned;
+
+
+    /**
+     * Create empty scores for every pair of subjects.
+     * @param subjects  the subjects
+     */
+    PairScores(Envelope[] subjects) {
+        this.subjects = subjects;
+        int n = subjects.length;
+        int pairs = n * (n - 1) / 2;
+        int trials = 0;
+        for (Envelope env : subjects) {
+            trials = Math.max(trials, env.getTrials());
+        }
+        first = new int[pairs];
+        second = new int[pairs];
+        plv = new double[pairs][trials];
+        similarity = new double[pairs][trials];
+        aligned = new double[pairs][trials];
+        int p = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                first[p] = i;
+                second[p] = j;
+                Arrays.fill(plv[p], Double.NaN);
+                Arrays.fill(similarity[p], Double.NaN);
+                Arrays.fill(aligned[p], Double.NaN);
+                p++;
+            }
+        }
+    }
+
+    /**
+     * @return  number of pairs
+     */
+    public int size() {
+        return first.length;
+    }
+
+    /**
+     * @param p index of a pair
+     * @return  its first subject
+     */
+    public Envelope first(int p) {
+        return subjects[first[p]];
+    }
+
+    /**
+     * @param p index of a pair
+     * @return  its second subject
+     */
+    public Envelope second(int p) {
+        return subjects[second[p]];
+    }
+
+    /**
+     * @param p     index of a pair
+     * @param trial trial number, from 1
+     * @return      phase-locking value of the trial
+     */
+    public double getPlv(int p, int trial) {
+        return plv[p][trial - 1];
+    }
+
+    /**
+     * @param p     index of a pair
+     * @param trial trial number, from 1
+     * @return      RMS similarity of the trial
+     */
+    public double getSimilarity(int p, int trial) {
+        return similarity[p][trial - 1];
+    }
+
+    /**
+     * @param p     index of a pair
+     * @param trial trial number, from 1
+     * @return      RMS of the trial's phase-aligned sum
+     */
+    public double getAlignedRms(int p, int trial) {
+        return aligned[p][trial - 1];
+    }
+
+    /**
+     * @param p index of a pair
+     * @return  mean phase-locking value over its trials
+     */
+    public double getMeanPlv(int p) {
+        return SubjectResult.mean(plv[p]);
+    }
+
+    /**
+     * @param p index of a pair
+     * @return  mean RMS similarity over its trials
+     */
+    public double getMeanSimilarity(int p) {
+        return SubjectResult.mean(similarity[p]);
+    }
+
+    /**
+     * @param p index of a pair
+     * @return  mean RMS of the phase-aligned sums over its trials
+     */
+    public double getMeanAlignedRms(int p) {
+        return SubjectResult.mean(aligned[p]);
+    }
+}
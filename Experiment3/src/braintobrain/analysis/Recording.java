@@ -0,0 +1,152 @@
+package braintobrain.analysis;
+
+import java.io.IOException;
+
+/**
+ * One OpenBCI recording session, held in primitive columns.
+ *
+ * Columns are numbered as in the text export (from 0), so column c here
+ * is column c + 1 in the MATLAB analysis. Column 0 holds the experiment
+ * markers sent by Experiment3 (state * 100 + 10 * trial + gaze), and is
+ * kept apart as a compact short[]; every other column is a float[] of
+ * samples. With the electrode placement of Experiment3, Oz is in column
+ * OZ and Fp2 (EOG) in column FP2.
+ *
+ * A recording keeps the sample rate it was read with, which may be any;
+ * the analysis itself only handles SAMPLERATE (see checkRate()).
+ */
+public class Recording {
+
+    /** Sampling rate of the OpenBCI board (in Hz). */
+    public static final float SAMPLERATE = 250f;
+
+    /** Column of the experiment markers. */
+    public static final int MARKER = 0;
+
+    /** Column of channel 1 (N1P, on Oz). */
+    public static final int OZ = 2;
+
+    /** Column of channel 2 (N2P, on Fp2). */
+    public static final int FP2 = 3;
+
+    /** Number of auxiliary (accelerometer) columns, last in an export. */
+    public static final int AUX = 3;
+
+
+    /** Name of the recording (usually its file name). */
+    final String name;
+
+    /** Marker of each sample. */
+    final short[] markers;
+
+    /** Samples of each column, with null for column MARKER. */
+    final float[][] columns;
+
+    /** Number of samples. */
+    final int length;
+
+    /** Sample rate (in Hz). */
+    final float rate;
+
+
+    /**
+     * Wrap already parsed columns, sampled at SAMPLERATE.
+     * @param name      name of the recording
+     * @param markers   marker of each sample
+     * @param columns   samples of each column (index MARKER is ignored)
+     * @param length    number of samples (the arrays may be longer)
+     */
+    public Recording(String name, short[] markers, float[][] columns,
+            int length) {
+        this(name, markers, columns, length, SAMPLERATE);
+    }
+
+    /**
+     * Wrap already parsed columns.
+     * @param name      name of the recording
+     * @param markers   marker of each sample
+     * @param columns   samples of each column (index MARKER is ignored)
+     * @param length    number of samples (the arrays may be longer)
+     * @param rate      sample rate (in Hz)
+     */
+    public Recording(String name, short[] markers, float[][] columns,
+            int length, float rate) {
+        this.name = name;
+        this.markers = markers;
+        this.columns = columns;
+        this.columns[MARKER] = null;
+        this.length = length;
+        this.rate = rate;
+    }
+
+    /**
+     * @return  name of the recording
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return  number of samples
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return  sample rate (in Hz)
+     */
+    public float getSampleRate() {
+        return rate;
+    }
+
+    /**
+     * Check that the recording can be analysed: the analysis works at
+     * SAMPLERATE only, and would misread the timing of any other rate.
+     * @throws IOException  if the recording is sampled at another rate
+     */
+    public void checkRate() throws IOException {
+        if (rate != SAMPLERATE) {
+            throw new IOException(name + " is sampled at " + rate
+                    + " Hz; the analysis needs " + SAMPLERATE);
+        }
+    }
+
+    /**
+     * @return  number of columns, including MARKER
+     */
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * @param i index of a sample
+     * @return  the marker of the sample
+     */
+    public int marker(int i) {
+        return markers[i];
+    }
+
+    /**
+     * Markers of every sample. The array is shared, not copied, and may
+     * be longer than length().
+     * @return  the marker column
+     */
+    public short[] getMarkers() {
+        return markers;
+    }
+
+    /**
+     * Samples of a column. The array is shared, not copied, and may be
+     * longer than length().
+     * @param c column number, other than MARKER
+     * @return  the samples
+     */
+    public float[] getColumn(int c) {
+        if (c == MARKER) {
+            throw new IllegalArgumentException(
+                    "Markers are read with getMarkers()");
+        }
+        return columns[c];
+    }
+}
@@ -0,0 +1,236 @@
+package braintobrain.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Run-length index of the marker column of a Recording.
+ *
+ * Experiment3 marks every sample with state * 100 + 10 * trial + gaze
+ * during trials, and with the bare state number before and after them.
+ * One linear pass over the markers turns them into segments: maximal
+ * runs of one code, decoded into (state, trial, gaze) and stored with
+ * their first and end sample in parallel primitive arrays. This replaces
+ * Sections 2 and 5 of the MATLAB analysis, which appended rows one at a
+ * time to grow each trial's matrix.
+ *
+ * Any segment, or a whole trial (all of its gaze segments), can then be
+ * viewed as a Slice of any column, without copying samples.
+ */
+public class SegmentIndex {
+
+    /** Initial number of segments to allocate room for. */
+    public static final int CAPACITY = 64;
+
+
+    /** Marker code of each segment. */
+    int[] codes = new int[CAPACITY];
+
+    /** State (condition) number of each segment. */
+    int[] states = new int[CAPACITY];
+
+    /** Trial number of each segment, or 0 outside trials. */
+    int[] trials = new int[CAPACITY];
+
+    /** Gaze number of each segment, or 0 for none. */
+    int[] gazes = new int[CAPACITY];
+
+    /** First sample of each segment. */
+    int[] starts = new int[CAPACITY];
+
+    /** Sample after the last of each segment. */
+    int[] ends = new int[CAPACITY];
+
+    /** Number of segments. */
+    int size = 0;
+
+
+    /**
+     * Index the markers of a recording.
+     * @param rec   the recording
+     */
+    public SegmentIndex(Recording rec) {
+        this(rec.getMarkers(), rec.length());
+    }
+
+    /**
+     * Index a marker column.
+     * @param markers   marker of each sample
+     * @param length    number of samples
+     */
+    public SegmentIndex(short[] markers, int length) {
+        int start = 0;
+        for (int i = 1; i <= length; i++) {
+            if (i == length || markers[i] != markers[start]) {
+                add(markers[start], start, i);
+                start = i;
+            }
+        }
+    }
+
+    /**
+     * Append a segment.
+     * @param code  marker code
+     * @param start first sample
+     * @param end   sample after the last
+     */
+    void add(int code, int start, int end) {
+        if (size == codes.length) {
+            int capacity = 2 * size;
+            codes = Arrays.copyOf(codes, capacity);
+            states = Arrays.copyOf(states, capacity);
+            trials = Arrays.copyOf(trials, capacity);
+            gazes = Arrays.copyOf(gazes, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        codes[size] = code;
+        if (code >= 100) {
+            // First digit is state, second is trial #, last is gaze #
+            states[size] = code / 100;
+            trials[size] = code / 10 % 10;
+            gazes[size] = code % 10;
+        } else {
+            states[size] = code;
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /**
+     * @return  number of segments
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param s index of a segment
+     * @return  its marker code
+     */
+    public int code(int s) {
+        return codes[s];
+    }
+
+    /**
+     * @param s index of a segment
+     * @return  its state (condition) number
+     */
+    public int state(int s) {
+        return states[s];
+    }
+
+    /**
+     * @param s index of a segment
+     * @return  its trial number, or 0 outside trials
+     */
+    public int trial(int s) {
+        return trials[s];
+    }
+
+    /**
+     * @param s index of a segment
+     * @return  its gaze number, or 0 for none
+     */
+    public int gaze(int s) {
+        return gazes[s];
+    }
+
+    /**
+     * @param s index of a segment
+     * @return  its first sample
+     */
+    public int start(int s) {
+        return starts[s];
+    }
+
+    /**
+     * @param s index of a segment
+     * @return  the sample after its last
+     */
+    public int end(int s) {
+        return ends[s];
+    }
+
+    /**
+     * Find the first segment with the given code.
+     * @param state state number
+     * @param trial trial number
+     * @param gaze  gaze number
+     * @return      index of the segment, or -1 if there is none
+     */
+    public int find(int state, int trial, int gaze) {
+        for (int s = 0; s < size; s++) {
+            if (states[s] == state && trials[s] == trial
+                    && gazes[s] == gaze) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first segment of a trial.
+     * @param state state number
+     * @param trial trial number
+     * @return      index of the segment, or -1 if the trial is absent
+     */
+    public int findTrial(int state, int trial) {
+        for (int s = 0; s < size; s++) {
+            if (states[s] == state && trials[s] == trial) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param s index of a segment
+     * @return  true if the segment is the first of a trial
+     */
+    public boolean isTrialStart(int s) {
+        return trials[s] > 0 && (s == 0 || states[s - 1] != states[s]
+                || trials[s - 1] != trials[s]);
+    }
+
+    /**
+     * Find the segment after the last one of the trial starting at a
+     * segment, i.e. the next one with a different state or trial.
+     * @param first index of the first segment of the trial
+     * @return      index after its last segment
+     */
+    public int trialEnd(int first) {
+        int s = first + 1;
+        while (s < size && states[s] == states[first]
+                && trials[s] == trials[first]) {
+            s++;
+        }
+        return s;
+    }
+
+    /**
+     * View one segment of a column.
+     * @param column    samples of a Recording column
+     * @param s         index of the segment
+     * @return          the segment's samples
+     */
+    public Slice slice(float[] column, int s) {
+        return new Slice(column, starts[s], ends[s]);
+    }
+
+    /**
+     * View a whole trial of a column, over all its gaze segments.
+     * @param column    samples of a Recording column
+     * @param state     state number
+     * @param trial     trial number
+     * @return          the trial's samples, or null if it is absent
+     */
+    public Slice trialSlice(float[] column, int state, int trial) {
+        int first = findTrial(state, trial);
+        if (first < 0) {
+            return null;
+        }
+        return new Slice(column, starts[first],
+                ends[trialEnd(first) - 1]);
+    }
+}
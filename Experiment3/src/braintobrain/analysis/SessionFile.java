@@ -0,0 +1,544 @@
+package braintobrain.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Binary session files (*.b2b): a Recording stored by column, read
+ * through a memory mapping.
+ *
+ * The layout, little-endian, is:
+ *  - header: MAGIC, VERSION, number of columns, sample rate, number of
+ *    samples, number of marker runs, and length of the labels
+ *  - one COLUMN-byte entry per column: encoding, scale, and file offset
+ *    of its block
+ *  - labels, one line per column (the electrode on each channel), then
+ *    one for the reference electrode
+ *  - marker table: the first sample and code of each run of one marker
+ *    (the changeState() codes), RUN bytes each
+ *  - column blocks, each 8-byte aligned: FLOAT samples, or INT24
+ *    samples times the column's scale (the ADS1299's own resolution)
+ * Columns that are all NaN (such as time stamps) are ABSENT, with no
+ * block. The marker column is always ABSENT, since the table holds it.
+ *
+ * Any part of any column can be read without touching the rest, so a
+ * trial is found from the marker table and read in one bulk copy.
+ */
+public class SessionFile {
+
+    /** First bytes of every session file ("B2BS"). */
+    public static final int MAGIC = 0x53423242;
+
+    /** Version of the layout. */
+    public static final int VERSION = 1;
+
+    /** Bytes in the fixed header. */
+    public static final int HEADER = 24;
+
+    /** Bytes in each column entry. */
+    public static final int COLUMN = 16;
+
+    /** Bytes in each marker run. */
+    public static final int RUN = 8;
+
+    /** Encoding of a column with no samples stored (all NaN). */
+    public static final int ABSENT = 0;
+
+    /** Encoding of a column of 32-bit floats. */
+    public static final int FLOAT = 1;
+
+    /** Encoding of a column of 24-bit integers, times a scale. */
+    public static final int INT24 = 2;
+
+    /** INT24 code for NaN. */
+    public static final int INT24NAN = -0x800000;
+
+    /** Microvolts per count of the ADS1299 (4.5 V reference, gain 24). */
+    public static final float INT24SCALE = (float) (4.5 / 24 / 8388607 * 1e6);
+
+    /** Label of the reference electrode (ear clips). */
+    public static final String REFERENCE = "A1/A2";
+
+    /** Charset of the labels. */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+    /** Name of the session (its file name). */
+    final String name;
+
+    /** The mapped file. */
+    final ByteBuffer map;
+
+    /** Sample rate (in Hz). */
+    final float rate;
+
+    /** Number of samples. */
+    final int length;
+
+    /** Encoding of each column. */
+    final int[] encodings;
+
+    /** Scale of each INT24 column. */
+    final float[] scales;
+
+    /** Offset of each column's block. */
+    final int[] offsets;
+
+    /** Label of each column. */
+    final String[] labels;
+
+    /** Label of the reference electrode. */
+    final String reference;
+
+    /** First sample of each marker run. */
+    final int[] runStarts;
+
+    /** Code of each marker run. */
+    final short[] runCodes;
+
+
+    /**
+     * Parse the header and marker table of a mapped session.
+     * @param map   the session, positioned at its start
+     * @param name  name of the session
+     * @throws IOException  if it is not a session file
+     */
+    SessionFile(ByteBuffer map, String name) throws IOException {
+        this.map = map.order(ByteOrder.LITTLE_ENDIAN);
+        this.name = name;
+        if (map.remaining() < HEADER || map.getInt(0) != MAGIC) {
+            throw new IOException(name + " is not a session file");
+        }
+        if (map.getShort(4) != VERSION) {
+            throw new IOException(name + " has unknown version "
+                    + map.getShort(4));
+        }
+        int columns = map.getShort(6);
+        rate = map.getFloat(8);
+        length = map.getInt(12);
+        int runs = map.getInt(16);
+        int labelBytes = map.getInt(20);
+        encodings = new int[columns];
+        scales = new float[columns];
+        offsets = new int[columns];
+        for (int c = 0; c < columns; c++) {
+            int p = HEADER + c * COLUMN;
+            encodings[c] = map.get(p);
+            scales[c] = map.getFloat(p + 4);
+            offsets[c] = (int) map.getLong(p + 8);
+        }
+        int p = HEADER + columns * COLUMN;
+        byte[] text = new byte[labelBytes];
+        ByteBuffer view = map.duplicate();
+        view.position(p);
+        view.get(text);
+        String[] lines = new String(text, UTF8).split("\n", -1);
+        labels = new String[columns];
+        for (int c = 0; c < columns; c++) {
+            labels[c] = c < lines.length ? lines[c] : "";
+        }
+        reference = columns < lines.length ? lines[columns] : "";
+        p += labelBytes;
+        runStarts = new int[runs];
+        runCodes = new short[runs];
+        for (int r = 0; r < runs; r++, p += RUN) {
+            runStarts[r] = map.getInt(p);
+            runCodes[r] = map.getShort(p + 4);
+        }
+    }
+
+    /**
+     * Open a session file. Only the header and marker table are read.
+     * @param file          the session file
+     * @return              the session
+     * @throws IOException  if the file cannot be read, or is not a
+     *                      session file
+     */
+    public static SessionFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            return new SessionFile(map, file.getName());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Default label of a column of an OpenBCI export, with the electrode
+     * placement of Experiment3.
+     * @param c         column number
+     * @param columns   number of columns
+     * @return          its label
+     */
+    public static String label(int c, int columns) {
+        switch (c) {
+        case Recording.MARKER:
+            return "Marker";
+        case 1:
+            return "Index";
+        case Recording.OZ:
+            return "Oz";
+        case Recording.FP2:
+            return "Fp2";
+        default:
+            return c < columns - Recording.AUX ? "Ch" + (c - 1)
+                    : "Aux" + (c - columns + Recording.AUX + 1);
+        }
+    }
+
+    /**
+     * Labels of every column of an OpenBCI export, then the reference.
+     * @param columns   number of columns
+     * @return          the labels, as written in a session file
+     */
+    static byte[] labels(int columns) {
+        StringBuilder text = new StringBuilder();
+        for (int c = 0; c < columns; c++) {
+            text.append(label(c, columns)).append('\n');
+        }
+        text.append(REFERENCE);
+        return text.toString().getBytes(UTF8);
+    }
+
+    /**
+     * Place the column blocks of a session file, each 8-byte aligned,
+     * after its header, labels and marker table.
+     * @param encodings encoding of each column
+     * @param length    number of samples
+     * @param labels    the labels
+     * @param runs      number of marker runs
+     * @param offsets   offset of each column's block (output)
+     * @return          size of the file
+     * @throws IOException  if the file would be too large to map
+     */
+    static long layout(int[] encodings, int length, byte[] labels, int runs,
+            long[] offsets) throws IOException {
+        long size = HEADER + encodings.length * COLUMN + labels.length
+                + (long) runs * RUN;
+        for (int c = 1; c < encodings.length; c++) {
+            if (encodings[c] == ABSENT) {
+                continue;
+            }
+            size = (size + 7) & ~7;
+            offsets[c] = size;
+            size += (long) length * (encodings[c] == INT24 ? 3 : 4);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Session of " + length
+                    + " samples is too large to map");
+        }
+        return size;
+    }
+
+    /**
+     * Write everything before the column blocks: header, column entries,
+     * labels and marker table.
+     * @param out       little-endian buffer, at the start of the file
+     * @param rate      sample rate (in Hz)
+     * @param length    number of samples
+     * @param encodings encoding of each column
+     * @param offsets   offset of each column's block, from layout()
+     * @param labels    the labels
+     * @param runStarts first sample of each marker run
+     * @param runCodes  code of each marker run
+     */
+    static void putHeader(ByteBuffer out, float rate, int length,
+            int[] encodings, long[] offsets, byte[] labels, int[] runStarts,
+            short[] runCodes) {
+        out.putInt(MAGIC).putShort((short) VERSION)
+                .putShort((short) encodings.length).putFloat(rate)
+                .putInt(length).putInt(runStarts.length)
+                .putInt(labels.length);
+        for (int c = 0; c < encodings.length; c++) {
+            out.put((byte) encodings[c]).put((byte) 0).putShort((short) 0)
+                    .putFloat(encodings[c] == INT24 ? INT24SCALE : 1)
+                    .putLong(offsets[c]);
+        }
+        out.put(labels);
+        for (int r = 0; r < runStarts.length; r++) {
+            out.putInt(runStarts[r]).putShort(runCodes[r])
+                    .putShort((short) 0);
+        }
+    }
+
+    /**
+     * Pack a sample as INT24.
+     * @param out   little-endian buffer
+     * @param x     the sample
+     */
+    static void putInt24(ByteBuffer out, float x) {
+        int v = x != x ? INT24NAN : Math.max(INT24NAN + 1,
+                Math.min(-INT24NAN - 1, Math.round(x / INT24SCALE)));
+        out.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+    }
+
+    /**
+     * Write a recording as a session file.
+     * @param rec       the recording
+     * @param file      the session file to create
+     * @param packed    true to store the EEG channels as INT24 rather
+     *                  than FLOAT
+     * @throws IOException  if the file cannot be written
+     */
+    public static void write(Recording rec, File file, boolean packed)
+            throws IOException {
+        int columns = rec.getColumnCount();
+        int length = rec.length();
+        SegmentIndex index = new SegmentIndex(rec);
+        int[] runStarts = new int[index.size()];
+        short[] runCodes = new short[index.size()];
+        for (int s = 0; s < index.size(); s++) {
+            runStarts[s] = index.start(s);
+            runCodes[s] = (short) index.code(s);
+        }
+        byte[] labels = labels(columns);
+        int[] encodings = new int[columns];
+        for (int c = 1; c < columns; c++) {
+            if (!isAbsent(rec.getColumn(c), length)) {
+                encodings[c] = packed && c >= Recording.OZ
+                        && c < columns - Recording.AUX ? INT24
+                        : FLOAT;
+            }
+        }
+        long[] offsets = new long[columns];
+        long size = layout(encodings, length, labels, runStarts.length,
+                offsets);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer map = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            putHeader(map, rec.getSampleRate(), length, encodings, offsets,
+                    labels, runStarts, runCodes);
+            for (int c = 1; c < columns; c++) {
+                map.position((int) offsets[c]);
+                float[] x = rec.getColumn(c);
+                if (encodings[c] == FLOAT) {
+                    map.asFloatBuffer().put(x, 0, length);
+                } else if (encodings[c] == INT24) {
+                    for (int i = 0; i < length; i++) {
+                        putInt24(map, x[i]);
+                    }
+                }
+            }
+            map.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param x         samples of a column
+     * @param length    number of samples
+     * @return          true if every sample is NaN
+     */
+    static boolean isAbsent(float[] x, int length) {
+        for (int i = 0; i < length; i++) {
+            if (x[i] == x[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return  name of the session
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return  sample rate (in Hz)
+     */
+    public float getSampleRate() {
+        return rate;
+    }
+
+    /**
+     * @return  number of samples
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return  number of columns, including MARKER
+     */
+    public int getColumnCount() {
+        return encodings.length;
+    }
+
+    /**
+     * @param c column number
+     * @return  its label, such as the electrode on a channel
+     */
+    public String getLabel(int c) {
+        return labels[c];
+    }
+
+    /**
+     * @return  label of the reference electrode
+     */
+    public String getReference() {
+        return reference;
+    }
+
+    /**
+     * @param c column number
+     * @return  its encoding: ABSENT, FLOAT or INT24
+     */
+    public int getEncoding(int c) {
+        return encodings[c];
+    }
+
+    /**
+     * Expand the marker table into a marker per sample.
+     * @return  the marker column
+     */
+    public short[] markers() {
+        short[] markers = new short[length];
+        for (int r = 0; r < runStarts.length; r++) {
+            int end = r + 1 < runStarts.length ? runStarts[r + 1] : length;
+            for (int i = runStarts[r]; i < end; i++) {
+                markers[i] = runCodes[r];
+            }
+        }
+        return markers;
+    }
+
+    /**
+     * Read part of a column.
+     * @param c     column number, other than MARKER
+     * @param from  index of the first sample
+     * @param to    index after the last sample
+     * @param out   output array
+     * @param pos   index in out of the first sample
+     */
+    public void read(int c, int from, int to, float[] out, int pos) {
+        if (c == Recording.MARKER) {
+            throw new IllegalArgumentException(
+                    "Markers are read with markers()");
+        }
+        int n = to - from;
+        if (encodings[c] == ABSENT) {
+            for (int i = 0; i < n; i++) {
+                out[pos + i] = Float.NaN;
+            }
+        } else if (encodings[c] == FLOAT) {
+            ByteBuffer view = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            view.position(offsets[c] + 4 * from);
+            view.asFloatBuffer().get(out, pos, n);
+        } else {
+            float scale = scales[c];
+            for (int i = 0, p = offsets[c] + 3 * from; i < n; i++, p += 3) {
+                int v = (map.get(p) & 0xff) | (map.get(p + 1) & 0xff) << 8
+                        | map.get(p + 2) << 16;
+                out[pos + i] = v == INT24NAN ? Float.NaN : v * scale;
+            }
+        }
+    }
+
+    /**
+     * Read one trial of a column, found from the marker table.
+     * @param c     column number, other than MARKER
+     * @param state state number
+     * @param trial trial number
+     * @return      the trial's samples, or null if it is absent
+     */
+    public float[] readTrial(int c, int state, int trial) {
+        int from = -1;
+        int to = -1;
+        for (int r = 0; r < runStarts.length; r++) {
+            int code = runCodes[r];
+            if (code / 100 == state && code / 10 % 10 == trial) {
+                if (from < 0) {
+                    from = runStarts[r];
+                }
+                to = r + 1 < runStarts.length ? runStarts[r + 1] : length;
+            } else if (from >= 0) {
+                break;
+            }
+        }
+        if (from < 0) {
+            return null;
+        }
+        float[] out = new float[to - from];
+        read(c, from, to, out, 0);
+        return out;
+    }
+
+    /**
+     * Load the whole session, at its own sample rate.
+     * @return              the recording
+     */
+    public Recording toRecording() {
+        float[][] columns = new float[encodings.length][];
+        for (int c = 1; c < columns.length; c++) {
+            columns[c] = new float[length];
+            read(c, 0, length, columns[c], 0);
+        }
+        return new Recording(name, markers(), columns, length, rate);
+    }
+
+    /**
+     * Load a recording from either format: a session file, or an OpenBCI
+     * text export.
+     * @param file          the file
+     * @return              the recording, at the file's sample rate
+     * @throws IOException  if the file cannot be read
+     */
+    public static Recording load(File file) throws IOException {
+        if (file.getName().endsWith(".b2b")) {
+            return open(file).toRecording();
+        }
+        return OpenBCIReader.read(file);
+    }
+
+    /**
+     * Convert OpenBCI text exports to session files, next to them, and
+     * report the sizes and times.
+     * @param args  text exports, optionally preceded by -packed to store
+     *              the EEG channels as INT24
+     * @throws IOException  if a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        boolean packed = false;
+        for (String arg : args) {
+            if (arg.equals("-packed")) {
+                packed = true;
+                continue;
+            }
+            File in = new File(arg);
+            String base = arg.endsWith(".txt")
+                    ? arg.substring(0, arg.length() - 4) : arg;
+            File out = new File(base + ".b2b");
+            long start = System.nanoTime();
+            Recording rec = OpenBCIReader.read(in);
+            long parsed = System.nanoTime();
+            write(rec, out, packed);
+            long written = System.nanoTime();
+            open(out).toRecording();
+            long loaded = System.nanoTime();
+            System.out.printf("%s: %d -> %d bytes (%.1fx); parsed in %.1f"
+                    + " ms, written in %.1f ms, loaded in %.1f ms%n",
+                    out.getName(), in.length(), out.length(),
+                    (double) in.length() / out.length(), (parsed - start) / 1e6,
+                    (written - parsed) / 1e6, (loaded - written) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package braintobrain.analysis;
+
+/**
+ * View of a range of samples in a column, without copying them.
+ *
+ * Samples are read through get(), or straight from array() between
+ * offset() and offset() + length() in tight loops.
+ */
+public final class Slice {
+
+    /** Underlying column. */
+    final float[] data;
+
+    /** Index of the first sample in data. */
+    final int offset;
+
+    /** Number of samples. */
+    final int length;
+
+
+    /**
+     * Create a view.
+     * @param data      underlying column
+     * @param from      index of the first sample
+     * @param to        index after the last sample
+     */
+    public Slice(float[] data, int from, int to) {
+        if (from < 0 || to < from || to > data.length) {
+            throw new IndexOutOfBoundsException("Slice " + from + " to "
+                    + to + " of " + data.length + " samples");
+        }
+        this.data = data;
+        this.offset = from;
+        this.length = to - from;
+    }
+
+    /**
+     * @param i index of a sample in the slice
+     * @return  the sample
+     */
+    public float get(int i) {
+        if (i < 0 || i >= length) {
+            throw new IndexOutOfBoundsException("Sample " + i + " of "
+                    + length);
+        }
+        return data[offset + i];
+    }
+
+    /**
+     * @return  number of samples
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return  the underlying column (shared, not copied)
+     */
+    public float[] array() {
+        return data;
+    }
+
+    /**
+     * @return  index of the first sample in array()
+     */
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * View of part of this slice.
+     * @param from  index of the first sample, in this slice
+     * @param to    index after the last sample, in this slice
+     * @return      the narrower view
+     */
+    public Slice slice(int from, int to) {
+        if (to > length) {
+            throw new IndexOutOfBoundsException("Slice " + from + " to "
+                    + to + " of " + length + " samples");
+        }
+        return new Slice(data, offset + from, offset + to);
+    }
+
+    /**
+     * Copy the samples out.
+     * @param dest      array to copy to
+     * @param destPos   index in dest of the first sample
+     */
+    public void copyTo(float[] dest, int destPos) {
+        System.arraycopy(data, offset, dest, destPos, length);
+    }
+
+    /**
+     * @return  a new array with a copy of the samples
+     */
+    public float[] toArray() {
+        float[] copy = new float[length];
+        copyTo(copy, 0);
+        return copy;
+    }
+}
@@ -0,0 +1,228 @@
+package braintobrain.analysis;
+
+/**
+ * IIR filter as a cascade of second-order sections (biquads).
+ *
+ * Sections run in transposed direct form II, in double precision, which
+ * stays stable for the narrow bands of the analysis (such as 7-8 Hz at
+ * 250 Hz) where a single high-order polynomial, as butter() returns by
+ * default, loses precision.
+ *
+ * filtfilt() matches MATLAB's: the input is extended at both ends by an
+ * odd reflection of 3 * order samples, each section starts from its
+ * steady state for the first sample, and the result is filtered forwards
+ * then backwards for zero phase. Filters are immutable, so one instance
+ * can be shared by any number of threads, each with its own work array.
+ */
+public class SosFilter {
+
+    /** Feedforward coefficients b0, b1, b2 of each section. */
+    final double[] b;
+
+    /** Feedback coefficients a1, a2 of each section (a0 is 1). */
+    final double[] a;
+
+    /** Steady-state gain of each section. */
+    final double[] gain;
+
+    /** Number of sections. */
+    final int sections;
+
+    /** Samples of reflection added at each end by filtfilt(). */
+    final int padding;
+
+
+    /**
+     * Create a filter from its sections.
+     * @param b         b0, b1, b2 of each section, in order
+     * @param a         a1, a2 of each section, in order (a0 is 1)
+     * @param order     order of the whole filter, for edge padding
+     */
+    public SosFilter(double[] b, double[] a, int order) {
+        if (b.length % 3 != 0 || a.length != 2 * (b.length / 3)) {
+            throw new IllegalArgumentException(
+                    "Need 3 b and 2 a coefficients per section");
+        }
+        this.b = b.clone();
+        this.a = a.clone();
+        sections = b.length / 3;
+        padding = 3 * order;
+        gain = new double[sections];
+        for (int s = 0; s < sections; s++) {
+            gain[s] = (b[3 * s] + b[3 * s + 1] + b[3 * s + 2])
+                    / (1 + a[2 * s] + a[2 * s + 1]);
+        }
+    }
+
+    /**
+     * @return  number of second-order sections
+     */
+    public int getSections() {
+        return sections;
+    }
+
+    /**
+     * @return  samples added at each end of the input by filtfilt()
+     */
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * Length of work array filtfilt() needs for an input.
+     * @param length    number of input samples
+     * @return          the minimum work array length
+     */
+    public int workLength(int length) {
+        return length + 2 * Math.min(padding, Math.max(0, length - 1));
+    }
+
+    /**
+     * Filter a slice forwards and backwards, into a new array.
+     * @param in    the samples
+     * @return      the zero-phase filtered samples
+     */
+    public float[] filtfilt(Slice in) {
+        float[] out = new float[in.length()];
+        filtfilt(in.array(), in.offset(), in.offset() + in.length(), out, 0,
+                new double[workLength(in.length())]);
+        return out;
+    }
+
+    /**
+     * Filter samples forwards and backwards, with no allocation.
+     * @param x         input column
+     * @param from      index of the first input sample
+     * @param to        index after the last input sample
+     * @param out       output array (may be x, to filter in place)
+     * @param outPos    index in out of the first output sample
+     * @param work      scratch space of at least workLength(to - from)
+     */
+    public void filtfilt(float[] x, int from, int to, float[] out,
+            int outPos, double[] work) {
+        int n = to - from;
+        if (n == 0) {
+            return;
+        }
+        // MATLAB needs more than 3 * order samples; shorter inputs just
+        // get a shorter reflection
+        int pad = Math.min(padding, n - 1);
+        int total = n + 2 * pad;
+        double first = x[from];
+        double last = x[to - 1];
+        for (int i = 0; i < pad; i++) {
+            work[i] = 2 * first - x[from + pad - i];
+            work[pad + n + i] = 2 * last - x[to - 2 - i];
+        }
+        for (int i = 0; i < n; i++) {
+            work[pad + i] = x[from + i];
+        }
+        run(work, 0, total, 1);
+        run(work, total - 1, -1, -1);
+        for (int i = 0; i < n; i++) {
+            out[outPos + i] = (float) work[pad + i];
+        }
+    }
+
+    /**
+     * Run every section over part of an array, in place, starting each
+     * from its steady state for the first sample.
+     * @param w     the samples
+     * @param from  index of the first sample
+     * @param to    index after the last sample, in the direction of step
+     * @param step  1 for forwards, -1 for backwards
+     */
+    void run(double[] w, int from, int to, int step) {
+        double level = w[from];
+        for (int s = 0; s < sections; s++) {
+            double b0 = b[3 * s], b1 = b[3 * s + 1], b2 = b[3 * s + 2];
+            double a1 = a[2 * s], a2 = a[2 * s + 1];
+            // Steady state for a constant input at this section's level
+            double out = gain[s] * level;
+            double z1 = out - b0 * level;
+            double z2 = (b2 - a2 * gain[s]) * level;
+            for (int i = from; i != to; i += step) {
+                double xi = w[i];
+                double yi = b0 * xi + z1;
+                z1 = b1 * xi - a1 * yi + z2;
+                z2 = b2 * xi - a2 * yi;
+                w[i] = yi;
+            }
+            level = out;
+        }
+    }
+
+    /**
+     * Filter samples forwards only (causal, with a phase delay), starting
+     * from rest.
+     * @param x     the samples, filtered in place
+     */
+    public void filter(double[] x) {
+        for (int s = 0; s < sections; s++) {
+            double b0 = b[3 * s], b1 = b[3 * s + 1], b2 = b[3 * s + 2];
+            double a1 = a[2 * s], a2 = a[2 * s + 1];
+            double z1 = 0, z2 = 0;
+            for (int i = 0; i < x.length; i++) {
+                double xi = x[i];
+                double yi = b0 * xi + z1;
+                z1 = b1 * xi - a1 * yi + z2;
+                z2 = b2 * xi - a2 * yi;
+                x[i] = yi;
+            }
+        }
+    }
+
+    /**
+     * Set a streaming state to the filter's steady state for a constant
+     * input, so that step() starts without the transient a DC offset
+     * would otherwise cause.
+     * @param x     the first sample
+     * @param state 2 * getSections() values, set by this method
+     */
+    public void prime(double x, double[] state) {
+        for (int s = 0; s < sections; s++) {
+            double y = gain[s] * x;
+            state[2 * s] = y - b[3 * s] * x;
+            state[2 * s + 1] = (b[3 * s + 2] - a[2 * s + 1] * gain[s]) * x;
+            x = y;
+        }
+    }
+
+    /**
+     * Filter one sample forwards (causally), for streaming. Carry the
+     * same state array from one sample to the next.
+     * @param x     the sample
+     * @param state 2 * getSections() values, zero before the first sample
+     * @return      the filtered sample
+     */
+    public double step(double x, double[] state) {
+        for (int s = 0; s < sections; s++) {
+            double y = b[3 * s] * x + state[2 * s];
+            state[2 * s] = b[3 * s + 1] * x - a[2 * s] * y + state[2 * s + 1];
+            state[2 * s + 1] = b[3 * s + 2] * x - a[2 * s + 1] * y;
+            x = y;
+        }
+        return x;
+    }
+
+    /**
+     * Magnitude of the frequency response.
+     * @param freq  frequency (in Hz)
+     * @param fs    sampling rate (in Hz)
+     * @return      the gain at freq, of one (forward) pass
+     */
+    public double magnitude(double freq, double fs) {
+        double w = 2 * Math.PI * freq / fs;
+        double c1 = Math.cos(w), s1 = Math.sin(w);
+        double c2 = Math.cos(2 * w), s2 = Math.sin(2 * w);
+        double mag = 1;
+        for (int s = 0; s < sections; s++) {
+            double nr = b[3 * s] + b[3 * s + 1] * c1 + b[3 * s + 2] * c2;
+            double ni = -b[3 * s + 1] * s1 - b[3 * s + 2] * s2;
+            double dr = 1 + a[2 * s] * c1 + a[2 * s + 1] * c2;
+            double di = -a[2 * s] * s1 - a[2 * s + 1] * s2;
+            mag *= Math.sqrt((nr * nr + ni * ni) / (dr * dr + di * di));
+        }
+        return mag;
+    }
+}
@@ -0,0 +1,149 @@
+package braintobrain.analysis;
+
+/**
+ * Amplitude spectra, as computed by Sections 3 and 4 of the analysis:
+ * the samples are detrended, zero-padded to a power of two and
+ * transformed, and each bin's magnitude divided by the transform length.
+ *
+ * The transform is an iterative radix-2 FFT, in place in caller-owned
+ * arrays so that batch analysis allocates nothing per trial. The same
+ * transform gives analytic signals, for phase and amplitude envelopes.
+ */
+public class Spectrum {
+
+    /**
+     * Transform length for a window, as MATLAB's pow2(nextpow2(m)).
+     * @param window    number of samples
+     * @return          the smallest power of two at least window
+     */
+    public static int length(int window) {
+        int n = 1;
+        while (n < window) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * Compute the amplitude spectrum of part of a column, up to the
+     * Nyquist frequency. The whole part is detrended, but only its first
+     * window samples are transformed.
+     * @param x         input column
+     * @param from      index of the first sample
+     * @param to        index after the last sample
+     * @param window    number of samples to transform (at most to - from)
+     * @param re        scratch space of transform length n
+     * @param im        scratch space of transform length n
+     * @param amp       output, of at least n / 2 + 1 bins, with bin k at
+     *                  k * fs / n
+     */
+    public static void amplitude(float[] x, int from, int to, int window,
+            double[] re, double[] im, double[] amp) {
+        int n = re.length;
+        // Least-squares line through the samples, as detrend()
+        int m = to - from;
+        double mt = (m - 1) / 2.0;
+        double sx = 0, stx = 0, stt = 0;
+        for (int i = 0; i < m; i++) {
+            sx += x[from + i];
+        }
+        double mean = m > 0 ? sx / m : 0;
+        for (int i = 0; i < m; i++) {
+            double t = i - mt;
+            stx += t * (x[from + i] - mean);
+            stt += t * t;
+        }
+        double slope = stt > 0 ? stx / stt : 0;
+        for (int i = 0; i < n; i++) {
+            re[i] = i < window ? x[from + i] - mean - slope * (i - mt) : 0;
+            im[i] = 0;
+        }
+        fft(re, im);
+        for (int k = 0; k <= n / 2; k++) {
+            amp[k] = Math.sqrt(re[k] * re[k] + im[k] * im[k]) / n;
+        }
+    }
+
+    /**
+     * Turn a real signal into its analytic signal, as MATLAB's hilbert():
+     * the real part is kept and the imaginary part becomes its Hilbert
+     * transform, so that the magnitude is the amplitude envelope and the
+     * angle the instantaneous phase.
+     * @param re    the signal, of a power of two length (zero-padded)
+     * @param im    scratch space of the same length, zeroed; receives the
+     *              Hilbert transform
+     */
+    public static void analytic(double[] re, double[] im) {
+        int n = re.length;
+        fft(re, im);
+        // Double the positive frequencies and drop the negative ones
+        for (int k = 1; k < n; k++) {
+            double h = k < n / 2 ? 2 : k == n / 2 ? 1 : 0;
+            re[k] *= h;
+            im[k] *= h;
+        }
+        inverse(re, im);
+    }
+
+    /**
+     * Inverse discrete Fourier transform, in place.
+     * @param re    real parts, of a power of two length
+     * @param im    imaginary parts, of the same length
+     */
+    public static void inverse(double[] re, double[] im) {
+        int n = re.length;
+        for (int k = 0; k < n; k++) {
+            im[k] = -im[k];
+        }
+        fft(re, im);
+        for (int k = 0; k < n; k++) {
+            re[k] /= n;
+            im[k] = -im[k] / n;
+        }
+    }
+
+    /**
+     * Discrete Fourier transform, in place.
+     * @param re    real parts, of a power of two length
+     * @param im    imaginary parts, of the same length
+     */
+    public static void fft(double[] re, double[] im) {
+        int n = re.length;
+        // Bit-reversal permutation
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int size = 2; size <= n; size <<= 1) {
+            double angle = -2 * Math.PI / size;
+            double wr = Math.cos(angle), wi = Math.sin(angle);
+            int half = size >> 1;
+            for (int start = 0; start < n; start += size) {
+                double cr = 1, ci = 0;
+                for (int k = 0; k < half; k++) {
+                    int a = start + k, b = a + half;
+                    double tr = re[b] * cr - im[b] * ci;
+                    double ti = re[b] * ci + im[b] * cr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                    double nr = cr * wr - ci * wi;
+                    ci = cr * wi + ci * wr;
+                    cr = nr;
+                }
+            }
+        }
+    }
+}
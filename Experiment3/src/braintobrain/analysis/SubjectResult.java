@@ -0,0 +1,169 @@
+package braintobrain.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Results of the batch analysis of one subject's session, for the
+ * control and experimental conditions (numbered 0 and 1 here, as the
+ * columns of the analysis's subject fields).
+ *
+ * Missing values (trials or gazes absent from the recording) are NaN,
+ * and left out of the averages.
+ */
+public class SubjectResult {
+
+    /** Name of the recording. */
+    final String name;
+
+    /** Why the recording could not be analysed, or null. */
+    String error;
+
+    /** Number of trials per condition. */
+    int trials;
+
+    /** Mean RMS of the first second of saccades (SaccMeanRMS). */
+    final double[] saccMeanRms = { Double.NaN, Double.NaN };
+
+    /** Average delay from saccade cue to detection (AvgDelays, in s). */
+    final double[] avgDelays = { Double.NaN, Double.NaN };
+
+    /** Average RMS of the summed SSVEP and EOG signals (AvgRMS). */
+    final double[] avgRms = { Double.NaN, Double.NaN };
+
+    /** Mean saccade RMS of each trial, by [condition][trial - 1]. */
+    double[][] trialRms;
+
+    /** Delay to each saccade's detection (in samples), by
+     *  [condition][trial - 1][saccade - 1]. */
+    double[][][] delays;
+
+    /** RMS of each saccade's summed signal, by
+     *  [condition][trial - 1][saccade - 1]. */
+    double[][][] transitionRms;
+
+    /** Average amplitude spectrum of the trials, by
+     *  [condition][channel][bin]. */
+    double[][][] spectra;
+
+
+    /**
+     * Create empty results.
+     * @param name  name of the recording
+     */
+    SubjectResult(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Make room for the per-trial results.
+     * @param trials    number of trials per condition
+     * @param saccades  number of saccades per trial
+     * @param channels  number of channels with spectra
+     */
+    void allocate(int trials, int saccades, int channels) {
+        this.trials = trials;
+        trialRms = new double[2][trials];
+        delays = new double[2][trials][saccades];
+        transitionRms = new double[2][trials][saccades];
+        spectra = new double[2][channels][];
+        for (int c = 0; c < 2; c++) {
+            Arrays.fill(trialRms[c], Double.NaN);
+            for (int t = 0; t < trials; t++) {
+                Arrays.fill(delays[c][t], Double.NaN);
+                Arrays.fill(transitionRms[c][t], Double.NaN);
+            }
+        }
+    }
+
+    /**
+     * @return  name of the recording
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return  why the recording could not be analysed, or null if it was
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return  number of trials per condition
+     */
+    public int getTrials() {
+        return trials;
+    }
+
+    /**
+     * @param condition 0 for control, 1 for experimental
+     * @return          mean RMS of the first second of saccades
+     */
+    public double getSaccMeanRms(int condition) {
+        return saccMeanRms[condition];
+    }
+
+    /**
+     * @param condition 0 for control, 1 for experimental
+     * @return          average delay to saccade detection (in seconds)
+     */
+    public double getAvgDelay(int condition) {
+        return avgDelays[condition];
+    }
+
+    /**
+     * @param condition 0 for control, 1 for experimental
+     * @return          average RMS of the summed signals
+     */
+    public double getAvgRms(int condition) {
+        return avgRms[condition];
+    }
+
+    /**
+     * @param condition 0 for control, 1 for experimental
+     * @param trial     trial number, from 1
+     * @param saccade   saccade number in the trial, from 1
+     * @return          delay to the saccade's detection (in samples)
+     */
+    public double getDelay(int condition, int trial, int saccade) {
+        return delays[condition][trial - 1][saccade - 1];
+    }
+
+    /**
+     * @param condition 0 for control, 1 for experimental
+     * @param trial     trial number, from 1
+     * @param saccade   saccade number in the trial, from 1
+     * @return          RMS of the saccade's summed signal
+     */
+    public double getTransitionRms(int condition, int trial, int saccade) {
+        return transitionRms[condition][trial - 1][saccade - 1];
+    }
+
+    /**
+     * @param condition 0 for control, 1 for experimental
+     * @param channel   index of the channel in BatchAnalysis.CHANNELS
+     * @return          average amplitude spectrum over the trials (bin k
+     *                  at k * fs / n), or null if there were none
+     */
+    public double[] getSpectrum(int condition, int channel) {
+        return spectra[condition][channel];
+    }
+
+    /**
+     * Average the values that are not NaN.
+     * @param values    the values
+     * @return          their mean, or NaN if there are none
+     */
+    static double mean(double[] values) {
+        double sum = 0;
+        int n = 0;
+        for (double v : values) {
+            if (!Double.isNaN(v)) {
+                sum += v;
+                n++;
+            }
+        }
+        return n > 0 ? sum / n : Double.NaN;
+    }
+}
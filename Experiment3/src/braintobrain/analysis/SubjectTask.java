@@ -0,0 +1,138 @@
+package braintobrain.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Analysis of one subject's session: the recording is read and indexed,
+ * then every trial of both conditions is analysed as a TrialTask, in two
+ * phases around the per-condition saccade threshold.
+ */
+class SubjectTask extends RecursiveTask<SubjectResult> {
+
+    /** Explicit serialVersionUID to avoid class conflicts. */
+    public static final long serialVersionUID = 1L;
+
+
+    /** The session's text export or session file. */
+    final File file;
+
+
+    /**
+     * Create a task for one session.
+     * @param file  the session's OpenBCI text export
+     */
+    SubjectTask(File file) {
+        this.file = file;
+    }
+
+    @Override
+    protected SubjectResult compute() {
+        SubjectResult result = new SubjectResult(file.getName());
+        Recording rec;
+        try {
+            rec = SessionFile.load(file);
+            rec.checkRate();
+        } catch (IOException e) {
+            result.error = e.toString();
+            return result;
+        }
+        SegmentIndex index = new SegmentIndex(rec);
+        int trials = 0;
+        for (int s = 0; s < index.size(); s++) {
+            for (int state : BatchAnalysis.STATES) {
+                if (index.state(s) == state) {
+                    trials = Math.max(trials, index.trial(s));
+                }
+            }
+        }
+        int channels = BatchAnalysis.CHANNELS.length;
+        int bins = Spectrum.length(BatchAnalysis.FFTWINDOW) / 2 + 1;
+        result.allocate(trials, BatchAnalysis.GAZES / 2, channels);
+
+        double[][][][] spectra = new double[2][channels][trials][];
+        List<TrialTask> tasks = new ArrayList<TrialTask>();
+        for (int c = 0; c < 2; c++) {
+            for (int t = 1; t <= trials; t++) {
+                int first = index.findTrial(BatchAnalysis.STATES[c], t);
+                if (first < 0) {
+                    continue;
+                }
+                double[][] out = new double[channels][];
+                for (int ch = 0; ch < channels; ch++) {
+                    out[ch] = new double[bins];
+                    spectra[c][ch][t - 1] = out[ch];
+                }
+                tasks.add(new TrialTask(result, rec, index, c, t, first,
+                        out));
+            }
+        }
+        invokeAll(tasks);
+        for (int c = 0; c < 2; c++) {
+            result.saccMeanRms[c] = SubjectResult.mean(result.trialRms[c]);
+        }
+        for (TrialTask task : tasks) {
+            task.reinitialize();
+            task.phase = TrialTask.DETECT;
+        }
+        invokeAll(tasks);
+
+        for (int c = 0; c < 2; c++) {
+            double[] delays = new double[0];
+            double[] rms = new double[0];
+            for (int t = 0; t < trials; t++) {
+                delays = concat(delays, result.delays[c][t]);
+                rms = concat(rms, result.transitionRms[c][t]);
+            }
+            result.avgDelays[c] = SubjectResult.mean(delays)
+                    / Recording.SAMPLERATE;
+            result.avgRms[c] = SubjectResult.mean(rms);
+            for (int ch = 0; ch < channels; ch++) {
+                result.spectra[c][ch] = average(spectra[c][ch], bins);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Join two arrays.
+     * @param a first array
+     * @param b second array
+     * @return  a new array with the values of a, then b
+     */
+    static double[] concat(double[] a, double[] b) {
+        double[] both = new double[a.length + b.length];
+        System.arraycopy(a, 0, both, 0, a.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    /**
+     * Average the spectra of the trials present.
+     * @param trials    spectrum of each trial, or null if it is absent
+     * @param bins      number of bins
+     * @return          the average spectrum, or null if there are none
+     */
+    static double[] average(double[][] trials, int bins) {
+        double[] avg = new double[bins];
+        int n = 0;
+        for (double[] amp : trials) {
+            if (amp != null) {
+                for (int k = 0; k < bins; k++) {
+                    avg[k] += amp[k];
+                }
+                n++;
+            }
+        }
+        if (n == 0) {
+            return null;
+        }
+        for (int k = 0; k < bins; k++) {
+            avg[k] /= n;
+        }
+        return avg;
+    }
+}
@@ -0,0 +1,206 @@
+package braintobrain.analysis;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Brain-to-brain synchrony of every pair of subjects, in parallel.
+ *
+ * Section 13 of the analysis filters both subjects again for every pair
+ * and trial, then walks the samples one at a time, re-estimating the
+ * phase difference from short FFTs and shifting the second signal. Here
+ * each subject is filtered once into an Envelope, and a pair's trial is
+ * scored in one pass of multiply-adds over float columns: the mean phase
+ * difference (giving the phase-locking value), then the sum aligned by
+ * it. Pairs are split recursively between the threads of the shared
+ * FilterTask.POOL, BATCH pairs per task.
+ *
+ * Sessions must be sampled at Recording.SAMPLERATE; prepare() fails on
+ * any other rate rather than scoring it as if it were.
+ */
+public class SynchronyTask extends RecursiveAction {
+
+    /** Explicit serialVersionUID to avoid class conflicts. */
+    public static final long serialVersionUID = 1L;
+
+    /** Pairs scored by one task without splitting further. */
+    public static final int BATCH = 8;
+
+
+    /** Scores to fill in. */
+    final PairScores scores;
+
+    /** First pair of this task. */
+    final int from;
+
+    /** Pair after the last of this task. */
+    final int to;
+
+
+    /**
+     * Create a task for part of the pairs.
+     * @param scores    scores to fill in
+     * @param from      first pair of this task
+     * @param to        pair after the last of this task
+     */
+    SynchronyTask(PairScores scores, int from, int to) {
+        this.scores = scores;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Score every pair of subjects, in parallel.
+     * @param subjects  envelopes of each subject
+     * @return          the scores
+     */
+    public static PairScores score(Envelope[] subjects) {
+        PairScores scores = new PairScores(subjects);
+        FilterTask.POOL.invoke(new SynchronyTask(scores, 0, scores.size()));
+        return scores;
+    }
+
+    /**
+     * Read sessions and compute their envelopes, in parallel.
+     * @param files OpenBCI text exports or session files
+     * @param state state number of the condition
+     * @return      envelopes of each session, in the same order
+     * @throws IOException  if a file cannot be read, or is not sampled at
+     *                      Recording.SAMPLERATE
+     */
+    public static Envelope[] prepare(final File[] files, final int state)
+            throws IOException {
+        final Envelope[] envelopes = new Envelope[files.length];
+        final IOException[] error = new IOException[1];
+        FilterTask.POOL.invoke(new RecursiveAction() {
+            public static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                RecursiveAction[] tasks = new RecursiveAction[files.length];
+                for (int i = 0; i < files.length; i++) {
+                    final int f = i;
+                    tasks[i] = new RecursiveAction() {
+                        public static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            try {
+                                Recording rec = SessionFile.load(files[f]);
+                                rec.checkRate();
+                                envelopes[f] = Envelope.of(rec,
+                                        new SegmentIndex(rec), state);
+                            } catch (IOException e) {
+                                error[0] = e;
+                            }
+                        }
+                    };
+                }
+                invokeAll(tasks);
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return envelopes;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > BATCH) {
+            int mid = (from + to) >>> 1;
+            invokeAll(new SynchronyTask(scores, from, mid),
+                    new SynchronyTask(scores, mid, to));
+            return;
+        }
+        for (int p = from; p < to; p++) {
+            Envelope a = scores.first(p);
+            Envelope b = scores.second(p);
+            int trials = Math.min(a.getTrials(), b.getTrials());
+            for (int t = 0; t < trials; t++) {
+                if (a.re[t] != null && b.re[t] != null) {
+                    score(a, b, t, p);
+                }
+            }
+        }
+    }
+
+    /**
+     * Score one trial of one pair.
+     * @param a first subject
+     * @param b second subject
+     * @param t trial index (trial number - 1)
+     * @param p index of the pair
+     */
+    void score(Envelope a, Envelope b, int t, int p) {
+        float[] ca = a.cos[t], sa = a.sin[t];
+        float[] cb = b.cos[t], sb = b.sin[t];
+        int n = Math.min(ca.length, cb.length);
+        if (n == 0) {
+            return;
+        }
+        // Mean of e^(j(phase a - phase b))
+        double re = 0, im = 0;
+        for (int i = 0; i < n; i++) {
+            re += ca[i] * cb[i] + sa[i] * sb[i];
+            im += sa[i] * cb[i] - ca[i] * sb[i];
+        }
+        double plv = Math.sqrt(re * re + im * im) / n;
+        // Shift b by the mean phase difference, and add it to a
+        double length = Math.sqrt(re * re + im * im);
+        double cos = length > 0 ? re / length : 1;
+        double sin = length > 0 ? im / length : 0;
+        float[] xa = a.re[t];
+        float[] xb = b.re[t], hb = b.im[t];
+        double sq = 0;
+        for (int i = 0; i < n; i++) {
+            double sum = xa[i] + xb[i] * cos - hb[i] * sin;
+            sq += sum * sum;
+        }
+        double ra = a.rms[t], rb = b.rms[t];
+        scores.plv[p][t] = plv;
+        scores.similarity[p][t] = Math.max(ra, rb) > 0
+                ? Math.min(ra, rb) / Math.max(ra, rb) : Double.NaN;
+        scores.aligned[p][t] = Math.sqrt(sq / n);
+    }
+
+    /**
+     * Score every pair of sessions in a directory, in the experimental
+     * condition, and report each pair's mean scores and the time taken.
+     * @param args  directory of sessions (default: current)
+     * @throws IOException  if a file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : ".");
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(".txt") || name.endsWith(".b2b");
+            }
+        });
+        if (files == null) {
+            System.err.println("Not a directory: " + dir);
+            return;
+        }
+        Arrays.sort(files);
+        long start = System.nanoTime();
+        Envelope[] envelopes = prepare(files, BatchAnalysis.STATES[1]);
+        long prepared = System.nanoTime();
+        PairScores scores = score(envelopes);
+        long end = System.nanoTime();
+
+        System.out.println("Pair: PLV, RMS similarity, aligned RMS");
+        for (int p = 0; p < scores.size(); p++) {
+            System.out.printf("%s & %s: %.3f, %.3f, %.2f%n",
+                    scores.first(p).getName(), scores.second(p).getName(),
+                    scores.getMeanPlv(p), scores.getMeanSimilarity(p),
+                    scores.getMeanAlignedRms(p));
+        }
+        System.out.printf("%d subjects in %.1f ms, %d pairs in %.1f ms%n",
+                files.length, (prepared - start) / 1e6, scores.size(),
+                (end - prepared) / 1e6);
+    }
+}
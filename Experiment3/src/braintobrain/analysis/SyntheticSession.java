@@ -0,0 +1,626 @@
+package braintobrain.analysis;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+import braintobrain.experiment3.Protocol;
+import braintobrain.experiment3.Timeline;
+
+/**
+ * Synthetic OpenBCI sessions, for load and scaling tests of the analysis.
+ *
+ * A session follows a protocol as Experiment3 presents it: the
+ * pre-experiment state (marker 0) and the idle state for idle.time each,
+ * as changeState() marks them, then every event of the compiled Timeline
+ * on the sample its frame flips on, as fire() marks them, then TAIL
+ * milliseconds of the end state. The protocol's trial.time is stretched
+ * to give the session the requested length. Every subject sees the same
+ * trial order, as in a shared session.
+ *
+ * Each EEG channel is Gaussian noise of NOISE microvolts. While the
+ * condition flickers, Oz adds the SSVEP: a sine of SSVEP microvolts at
+ * the flicker frequency, phase-locked to the flicker with a latency of
+ * its own for each subject. Fp2 adds the EOG of the saccades: a step of
+ * STEP microvolts LATENCY seconds after each even gaze marker, and back
+ * after the next marker. The auxiliary channels are zero.
+ *
+ * Sessions are streamed through a CHUNK-byte buffer, the text export
+ * row by row and session files (see SessionFile) column by column, so
+ * files of several gigabytes are written at disk speed. Each column
+ * draws its noise from its own generator, so both formats hold the same
+ * samples (in hundredths, as the OpenBCI GUI writes them).
+ *
+ * Sessions at any rate can be read back and converted, carrying their
+ * rate; but the analysis works at Recording.SAMPLERATE, so only MINRATE
+ * sessions are valid for BatchAnalysis and SynchronyTask. Higher rates
+ * test ingest and I/O throughput.
+ */
+public class SyntheticSession {
+
+    /** Lowest sample rate (in Hz), that of the Cyton board. */
+    public static final float MINRATE = 250;
+
+    /** Highest sample rate (in Hz), that of the Cyton board over WiFi. */
+    public static final float MAXRATE = 16000;
+
+    /** Time in the end state (in milliseconds). */
+    public static final int TAIL = 2000;
+
+    /** Standard deviation of the noise (in microvolts). */
+    public static final double NOISE = 5;
+
+    /** Amplitude of the SSVEP (in microvolts). */
+    public static final double SSVEP = 4;
+
+    /** Mean latency of the SSVEP behind the flicker (in seconds). */
+    public static final double LAG = 0.1;
+
+    /** Standard deviation of the SSVEP latency between subjects. */
+    public static final double LAGSPREAD = 0.02;
+
+    /** Height of each saccade's EOG step (in microvolts). */
+    public static final double STEP = 30;
+
+    /** Time from a gaze marker to its saccade (in seconds). */
+    public static final double LATENCY = 0.2;
+
+    /** Length of each saccade (in seconds). */
+    public static final double RISE = 0.04;
+
+    /** Bytes buffered between writes. */
+    public static final int CHUNK = 1 << 20;
+
+
+    /**
+     * Samples of one column of one subject, in order.
+     */
+    final class Channel {
+        /** Column number. */
+        final int column;
+
+        /** Source of the noise. */
+        final Random rnd;
+
+        /** Phase of the SSVEP behind the flicker (in radians). */
+        final double phase;
+
+        /** Current marker run. */
+        int run = 0;
+
+        /** Next EOG step. */
+        int step = 0;
+
+        /** EOG level after the steps so far (in microvolts). */
+        double level = 0;
+
+        /**
+         * @param subject   subject number (from 0)
+         * @param column    column number, other than MARKER
+         */
+        Channel(int subject, int column) {
+            this.column = column;
+            rnd = new Random(mix(seed, subject, column));
+            phase = 2 * Math.PI * frequency * (LAG + LAGSPREAD
+                    * new Random(mix(seed, subject, 0)).nextGaussian());
+        }
+
+        /**
+         * @param i index of the sample, one more than the last call's
+         * @return  the sample
+         */
+        float next(int i) {
+            if (column == 1) {
+                return i & 255; // Sample counter of the board
+            } else if (column > channels + 1) {
+                return 0;
+            }
+            double x = NOISE * rnd.nextGaussian();
+            if (column == Recording.OZ) {
+                while (run + 1 < runStarts.length && i >= runStarts[run + 1]) {
+                    run++;
+                }
+                if (runFlicker[run]) {
+                    x += SSVEP * Math.sin(2 * Math.PI * frequency
+                            * (i - flickerStart) / rate - phase);
+                }
+            } else if (column == Recording.FP2) {
+                while (step < stepStarts.length
+                        && i >= stepStarts[step] + rise) {
+                    level += STEP * stepSigns[step++];
+                }
+                x += level;
+                if (step < stepStarts.length && i >= stepStarts[step]) {
+                    x += STEP * stepSigns[step] * (1 - Math.cos(Math.PI
+                            * (i - stepStarts[step]) / rise)) / 2;
+                }
+            }
+            return Math.round(x * 100) / 100f;
+        }
+    }
+
+
+    /** The protocol, with its trial time stretched. */
+    final Protocol protocol;
+
+    /** Number of EEG channels. */
+    final int channels;
+
+    /** Sample rate (in Hz). */
+    final float rate;
+
+    /** Seed of the noise and latencies. */
+    final long seed;
+
+    /** Flicker frequency (in Hz). */
+    final double frequency;
+
+    /** Number of samples. */
+    final int length;
+
+    /** First sample of each marker run. */
+    final int[] runStarts;
+
+    /** Code of each marker run. */
+    final short[] runCodes;
+
+    /** Whether the condition of each marker run flickers. */
+    final boolean[] runFlicker;
+
+    /** Sample the flicker starts on (that of the first trial). */
+    final int flickerStart;
+
+    /** First sample of each EOG step. */
+    final int[] stepStarts;
+
+    /** Direction of each EOG step (1 to the target, -1 back). */
+    final int[] stepSigns;
+
+    /** Samples in each EOG step. */
+    final int rise;
+
+
+    /**
+     * Lay out a session.
+     * @param props     the protocol; if it has no seed, the trial order
+     *                  is drawn from this seed
+     * @param channels  number of EEG channels (at least 2, for Oz and
+     *                  Fp2)
+     * @param rate      sample rate (in Hz), from MINRATE to MAXRATE
+     * @param seconds   length of the session, or 0 for the protocol's
+     * @param seed      seed of the noise and latencies
+     * @throws IllegalArgumentException if the protocol is invalid, or
+     *         the session too short for its idle and end states
+     */
+    public SyntheticSession(Properties props, int channels, float rate,
+            double seconds, long seed) {
+        if (channels < 2) {
+            throw new IllegalArgumentException(
+                    "Need at least 2 channels, for Oz and Fp2");
+        }
+        if (!(rate >= MINRATE && rate <= MAXRATE)) {
+            throw new IllegalArgumentException("Sample rate must be from "
+                    + MINRATE + " to " + MAXRATE + " Hz");
+        }
+        this.channels = channels;
+        this.rate = rate;
+        this.seed = seed;
+        props = (Properties) props.clone();
+        if (props.getProperty("seed") == null) {
+            props.setProperty("seed", String.valueOf(seed));
+        }
+        Protocol p = new Protocol(props);
+        if (seconds > 0) {
+            double trialTime = (seconds * 1000 - 2 * p.getIdleTime() - TAIL)
+                    / p.sequence().length;
+            if (trialTime < 1) {
+                throw new IllegalArgumentException("Session of " + seconds
+                        + " s is too short for the protocol");
+            }
+            props.setProperty("trial.time",
+                    String.valueOf(Math.round(trialTime)));
+            p = new Protocol(props);
+        }
+        protocol = p;
+        frequency = p.getFrequency();
+        rise = Math.max(1, (int) Math.round(RISE * rate));
+
+        // Replay the presenter: two states, then the timeline
+        Timeline timeline = p.compile(p.sequence());
+        int n = timeline.size() + 2;
+        int[] starts = new int[n];
+        short[] codes = new short[n];
+        boolean[] flicker = new boolean[n];
+        flickerStart = samples(2 * p.getIdleTime());
+        int[] eventStarts = new int[n];
+        int[] eventCodes = new int[n];
+        boolean[] eventFlicker = new boolean[n];
+        eventStarts[1] = samples(p.getIdleTime());
+        eventCodes[1] = p.getIdleState();
+        for (int e = 0; e < timeline.size(); e++) {
+            int condition = timeline.condition(e);
+            eventStarts[e + 2] = flickerStart + (int) Math.round(
+                    timeline.cycle(e) * rate / (2 * frequency));
+            eventCodes[e + 2] = timeline.code(e);
+            eventFlicker[e + 2] = condition >= 0
+                    && p.isFlickering(condition);
+        }
+        int runs = 0;
+        for (int e = 0; e < n; e++) {
+            if (runs > 0 && starts[runs - 1] == eventStarts[e]) {
+                runs--; // Sent on the same frame: the last one stays
+            }
+            if (runs > 0 && codes[runs - 1] == eventCodes[e]) {
+                continue;
+            }
+            starts[runs] = eventStarts[e];
+            codes[runs] = (short) eventCodes[e];
+            flicker[runs] = eventFlicker[e];
+            runs++;
+        }
+        runStarts = Arrays.copyOf(starts, runs);
+        runCodes = Arrays.copyOf(codes, runs);
+        runFlicker = Arrays.copyOf(flicker, runs);
+        length = eventStarts[n - 1] + samples(TAIL);
+
+        // A saccade to the target after each even gaze, and back after
+        // the next marker
+        int[] steps = new int[2 * timeline.size()];
+        int[] signs = new int[steps.length];
+        int count = 0;
+        int latency = (int) Math.round(LATENCY * rate);
+        for (int e = 0; e < timeline.size(); e++) {
+            if (timeline.type(e) != Timeline.GAZE
+                    || timeline.code(e) % 2 != 0) {
+                continue;
+            }
+            int back = e + 3;
+            while (back < n && eventStarts[back] == eventStarts[e + 2]) {
+                back++;
+            }
+            if (back < n) {
+                steps[count] = eventStarts[e + 2] + latency;
+                signs[count++] = 1;
+                steps[count] = eventStarts[back] + latency;
+                signs[count++] = -1;
+            }
+        }
+        stepStarts = Arrays.copyOf(steps, count);
+        stepSigns = Arrays.copyOf(signs, count);
+    }
+
+    /**
+     * Seed of a generator. Random's own scrambling leaves the first
+     * draws of neighbouring seeds correlated, so the seed is hashed
+     * (with the finalizer of MurmurHash3).
+     * @param seed      seed of the session
+     * @param subject   subject number
+     * @param column    column number, or 0 for the subject's latency
+     * @return          the seed
+     */
+    static long mix(long seed, int subject, int column) {
+        long x = seed * 0x9E3779B97F4A7C15L + ((long) subject << 16)
+                + column;
+        x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+        x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return x ^ (x >>> 33);
+    }
+
+    /**
+     * @param millis    a time (in milliseconds)
+     * @return          number of samples in it
+     */
+    int samples(long millis) {
+        return (int) Math.round(millis * (double) rate / 1000);
+    }
+
+    /**
+     * @return  number of samples of each session
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return  number of columns, including MARKER
+     */
+    public int getColumnCount() {
+        return 2 + channels + Recording.AUX;
+    }
+
+    /**
+     * Write a subject's session as an OpenBCI text export.
+     * @param subject       subject number (from 0)
+     * @param out           the text export; not closed
+     * @throws IOException  if the text cannot be written
+     */
+    public void writeText(int subject, OutputStream out) throws IOException {
+        int columns = getColumnCount();
+        out.write(("%OpenBCI Raw EEG Data\n%Number of channels = " + channels
+                + "\n%Sample Rate = " + rate + " Hz\n").getBytes("US-ASCII"));
+        Channel[] cols = new Channel[columns];
+        for (int c = 2; c < columns; c++) {
+            cols[c] = new Channel(subject, c);
+        }
+        byte[] buf = new byte[CHUNK];
+        int line = 24 * columns; // Longest line
+        int n = 0;
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            if (n > buf.length - line) {
+                out.write(buf, 0, n);
+                n = 0;
+            }
+            while (run + 1 < runStarts.length && i >= runStarts[run + 1]) {
+                run++;
+            }
+            n = putDigits(buf, n, runCodes[run]);
+            buf[n++] = ',';
+            buf[n++] = ' ';
+            n = putDigits(buf, n, i & 255); // Sample counter of the board
+            for (int c = 2; c < columns; c++) {
+                buf[n++] = ',';
+                buf[n++] = ' ';
+                long hundredths = Math.round(cols[c].next(i) * 100.0);
+                if (hundredths < 0) {
+                    buf[n++] = '-';
+                    hundredths = -hundredths;
+                }
+                n = putDigits(buf, n, hundredths / 100);
+                buf[n++] = '.';
+                buf[n++] = (byte) ('0' + hundredths / 10 % 10);
+                buf[n++] = (byte) ('0' + hundredths % 10);
+            }
+            buf[n++] = '\n';
+        }
+        out.write(buf, 0, n);
+    }
+
+    /**
+     * Write the decimal digits of a number.
+     * @param buf   output
+     * @param n     position in buf
+     * @param x     the number, at least 0
+     * @return      position after the digits
+     */
+    static int putDigits(byte[] buf, int n, long x) {
+        int end = n;
+        for (long y = x; y >= 10; y /= 10) {
+            end++;
+        }
+        for (int p = end; p >= n; p--, x /= 10) {
+            buf[p] = (byte) ('0' + x % 10);
+        }
+        return end + 1;
+    }
+
+    /**
+     * Write a subject's session as a session file.
+     * @param subject       subject number (from 0)
+     * @param file          the session file to create
+     * @param packed        true to store the EEG channels as INT24 rather
+     *                      than FLOAT
+     * @throws IOException  if the file cannot be written
+     */
+    public void writeSession(int subject, File file, boolean packed)
+            throws IOException {
+        int columns = getColumnCount();
+        int[] encodings = new int[columns];
+        for (int c = 1; c < columns; c++) {
+            encodings[c] = packed && c >= Recording.OZ && c <= channels + 1
+                    ? SessionFile.INT24 : SessionFile.FLOAT;
+        }
+        byte[] labels = SessionFile.labels(columns);
+        long[] offsets = new long[columns];
+        long size = SessionFile.layout(encodings, length, labels,
+                runStarts.length, offsets);
+        ByteBuffer header = ByteBuffer.allocate(SessionFile.HEADER
+                + columns * SessionFile.COLUMN + labels.length
+                + runStarts.length * SessionFile.RUN)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        SessionFile.putHeader(header, rate, length, encodings, offsets,
+                labels, runStarts, runCodes);
+        header.flip();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0); // Drop any old session
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+            write(channel, header, 0);
+            ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int c = 1; c < columns; c++) {
+                Channel col = new Channel(subject, c);
+                long pos = offsets[c];
+                for (int i = 0; i < length; i++) {
+                    if (buf.remaining() < 4) {
+                        buf.flip();
+                        pos += write(channel, buf, pos);
+                        buf.clear();
+                    }
+                    if (encodings[c] == SessionFile.INT24) {
+                        SessionFile.putInt24(buf, col.next(i));
+                    } else {
+                        buf.putFloat(col.next(i));
+                    }
+                }
+                buf.flip();
+                write(channel, buf, pos);
+                buf.clear();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write a whole buffer to a file.
+     * @param channel       the file
+     * @param buf           the buffer, from its position to its limit
+     * @param pos           position in the file
+     * @return              number of bytes written
+     * @throws IOException  if the file cannot be written
+     */
+    static int write(FileChannel channel, ByteBuffer buf, long pos)
+            throws IOException {
+        int n = buf.remaining();
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+        return n;
+    }
+
+    /**
+     * Write every subject's session into a directory, in parallel.
+     * @param dir       the directory
+     * @param subjects  number of subjects
+     * @param format    "txt" for text exports, "b2b" for session files,
+     *                  or "packed" for session files with INT24 channels
+     * @return          the files written
+     * @throws IOException  if a file cannot be written
+     */
+    public File[] write(File dir, int subjects, final String format)
+            throws IOException {
+        final File[] files = new File[subjects];
+        for (int s = 0; s < subjects; s++) {
+            files[s] = new File(dir, String.format("synthetic-%03d.%s", s + 1,
+                    format.equals("txt") ? "txt" : "b2b"));
+        }
+        final IOException[] error = new IOException[1];
+        FilterTask.POOL.invoke(new RecursiveAction() {
+            public static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                RecursiveAction[] tasks = new RecursiveAction[files.length];
+                for (int i = 0; i < files.length; i++) {
+                    final int s = i;
+                    tasks[i] = new RecursiveAction() {
+                        public static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            try {
+                                write(s, files[s], format);
+                            } catch (IOException e) {
+                                error[0] = e;
+                            }
+                        }
+                    };
+                }
+                invokeAll(tasks);
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return files;
+    }
+
+    /**
+     * Write one subject's session.
+     * @param subject       subject number (from 0)
+     * @param file          the file to create
+     * @param format        "txt", "b2b" or "packed"
+     * @throws IOException  if the file cannot be written
+     */
+    void write(int subject, File file, String format) throws IOException {
+        if (!format.equals("txt")) {
+            writeSession(subject, file, format.equals("packed"));
+            return;
+        }
+        OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(file), CHUNK);
+        try {
+            writeText(subject, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Generate a directory of sessions and report the size and time.
+     * @param args  options, then the protocol file and the directory:
+     *              -subjects N (default 2), -channels N (8), -rate HZ
+     *              (250; only 250 can be analysed), -seconds S (the
+     *              protocol's length), -seed N (1), -format txt, b2b or
+     *              packed (txt)
+     * @throws IOException  if a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        int subjects = 2;
+        int channels = 8;
+        float rate = MINRATE;
+        double seconds = 0;
+        long seed = 1;
+        String format = "txt";
+        int a = 0;
+        for (; a + 1 < args.length && args[a].startsWith("-"); a += 2) {
+            String value = args[a + 1];
+            if (args[a].equals("-subjects")) {
+                subjects = Integer.parseInt(value);
+            } else if (args[a].equals("-channels")) {
+                channels = Integer.parseInt(value);
+            } else if (args[a].equals("-rate")) {
+                rate = Float.parseFloat(value);
+            } else if (args[a].equals("-seconds")) {
+                seconds = Double.parseDouble(value);
+            } else if (args[a].equals("-seed")) {
+                seed = Long.parseLong(value);
+            } else if (args[a].equals("-format")) {
+                format = value;
+            } else {
+                System.err.println("Unknown option " + args[a]);
+                return;
+            }
+        }
+        if (args.length - a != 2 || !(format.equals("txt")
+                || format.equals("b2b") || format.equals("packed"))) {
+            System.err.println("Usage: SyntheticSession [-subjects N]"
+                    + " [-channels N] [-rate HZ] [-seconds S] [-seed N]"
+                    + " [-format txt|b2b|packed] protocol directory");
+            System.err.println("Only -rate " + (int) MINRATE
+                    + " sessions can be analysed; higher rates can"
+                    + " only be read and converted");
+            return;
+        }
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(args[a]);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        File dir = new File(args[a + 1]);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        SyntheticSession session = new SyntheticSession(props, channels,
+                rate, seconds, seed);
+        long start = System.nanoTime();
+        File[] files = session.write(dir, subjects, format);
+        long time = System.nanoTime() - start;
+        long bytes = 0;
+        for (File f : files) {
+            bytes += f.length();
+        }
+        System.out.printf("%d sessions of %d samples (%.1f s) x %d columns:"
+                + " %d bytes in %.1f s (%.1f MB/s)%n", files.length,
+                session.length(), session.length() / rate,
+                session.getColumnCount(), bytes, time / 1e9,
+                bytes / (time / 1e3));
+    }
+}
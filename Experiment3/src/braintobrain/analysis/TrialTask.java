@@ -0,0 +1,310 @@
+package braintobrain.analysis;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Analysis of one trial of one condition, run in two phases by its
+ * SubjectTask, since the detection threshold depends on every trial:
+ *  - FILTER: the spectrum of each channel (forked as ChannelTasks), the
+ *    EOG band of the whole trial, and of each gaze (Sections 4, 6, 7)
+ *  - DETECT: EOG votes from the sliding RMS, the delay from each saccade
+ *    cue to its detection, and the RMS of each saccade added to the
+ *    SSVEP of the idle gaze before it (Sections 8, 9, 12)
+ * The filtered samples are kept between the phases.
+ */
+class TrialTask extends RecursiveAction {
+
+    /** Explicit serialVersionUID to avoid class conflicts. */
+    public static final long serialVersionUID = 1L;
+
+    /** Phase: filter the trial and compute its spectra. */
+    static final int FILTER = 0;
+
+    /** Phase: detect the saccades. */
+    static final int DETECT = 1;
+
+
+    /** Results to fill in. */
+    final SubjectResult result;
+
+    /** The recording. */
+    final Recording rec;
+
+    /** Its segment index. */
+    final SegmentIndex index;
+
+    /** Condition number (0 for control, 1 for experimental). */
+    final int condition;
+
+    /** Trial number, from 1. */
+    final int trial;
+
+    /** Index of the trial's first sample. */
+    final int from;
+
+    /** Index after the trial's last sample. */
+    final int to;
+
+    /** Output spectrum of each channel. */
+    final double[][] spectra;
+
+    /** Current phase. */
+    int phase = FILTER;
+
+    /** Fp2 over the trial, filtered to the EOG band. */
+    float[] eog;
+
+    /** Oz over each idle gaze, filtered to the SSVEP band. */
+    final float[][] idle;
+
+    /** Fp2 over each saccade gaze, filtered to the EOG band. */
+    final float[][] saccades;
+
+    /** Offset of each saccade gaze from the start of the trial. */
+    final int[] offsets;
+
+
+    /**
+     * Create a task for one trial.
+     * @param result    results to fill in
+     * @param rec       the recording
+     * @param index     its segment index
+     * @param condition condition number (0 for control, 1 for
+     *                  experimental)
+     * @param trial     trial number, from 1
+     * @param first     index of the trial's first segment
+     * @param spectra   output spectrum of each channel
+     */
+    TrialTask(SubjectResult result, Recording rec, SegmentIndex index,
+            int condition, int trial, int first, double[][] spectra) {
+        this.result = result;
+        this.rec = rec;
+        this.index = index;
+        this.condition = condition;
+        this.trial = trial;
+        this.from = index.start(first);
+        this.to = index.end(index.trialEnd(first) - 1);
+        this.spectra = spectra;
+        idle = new float[BatchAnalysis.GAZES / 2][];
+        saccades = new float[BatchAnalysis.GAZES / 2][];
+        offsets = new int[BatchAnalysis.GAZES / 2];
+    }
+
+    @Override
+    protected void compute() {
+        if (phase == FILTER) {
+            filter();
+        } else {
+            detect();
+        }
+    }
+
+    /**
+     * Compute the spectra and filter the trial.
+     */
+    void filter() {
+        ChannelTask[] channels = new ChannelTask[spectra.length];
+        for (int c = 0; c < channels.length; c++) {
+            channels[c] = new ChannelTask(
+                    rec.getColumn(BatchAnalysis.CHANNELS[c]), from, to,
+                    spectra[c]);
+            channels[c].fork();
+        }
+        SosFilter eogBand = Butterworth.bandpass(BatchAnalysis.ORDER,
+                BatchAnalysis.EOGLOW, BatchAnalysis.EOGHIGH,
+                Recording.SAMPLERATE);
+        SosFilter ssvepBand = Butterworth.bandpass(BatchAnalysis.ORDER,
+                BatchAnalysis.SSVEPLOW, BatchAnalysis.SSVEPHIGH,
+                Recording.SAMPLERATE);
+        float[] oz = rec.getColumn(Recording.OZ);
+        float[] fp2 = rec.getColumn(Recording.FP2);
+        int state = BatchAnalysis.STATES[condition];
+        eog = filter(eogBand, fp2, from, to);
+        // Mean RMS of the first second of each saccade, filtered alone
+        double sum = 0;
+        int count = 0;
+        for (int k = 0; k < saccades.length; k++) {
+            int s = index.find(state, trial, 2 * k + 2);
+            if (s < 0) {
+                continue;
+            }
+            float[] x = filter(eogBand, fp2, index.start(s), index.end(s));
+            saccades[k] = x;
+            offsets[k] = index.start(s) - from;
+            int n = Math.min(x.length, BatchAnalysis.RMSWINDOW);
+            double sq = 0;
+            for (int i = 0; i < n; i++) {
+                sq += (double) x[i] * x[i];
+            }
+            if (n > 0) {
+                sum += Math.sqrt(sq / n);
+                count++;
+            }
+            s = index.find(state, trial, 2 * k + 1);
+            if (s >= 0) {
+                idle[k] = filter(ssvepBand, oz, index.start(s),
+                        index.end(s));
+            }
+        }
+        result.trialRms[condition][trial - 1] = count > 0 ? sum / count
+                : Double.NaN;
+        for (int c = channels.length - 1; c >= 0; c--) {
+            channels[c].join();
+        }
+    }
+
+    /**
+     * Detect the saccades, with the condition's threshold.
+     */
+    void detect() {
+        boolean[] votes = vote(eog, BatchAnalysis.RATIO
+                * result.saccMeanRms[condition]);
+        for (int k = 0; k < saccades.length; k++) {
+            float[] x = saccades[k];
+            if (x == null) {
+                continue;
+            }
+            int offset = offsets[k];
+            // Samples from the cue to the first vote (Section 9)
+            int delay = 1;
+            while (delay < x.length && !votes[offset + delay - 1]) {
+                delay++;
+            }
+            result.delays[condition][trial - 1][k] = delay;
+            if (idle[k] != null) {
+                result.transitionRms[condition][trial - 1][k] =
+                        summedRms(idle[k], x, votes, offset);
+            }
+        }
+    }
+
+    /**
+     * Vote for EOG at each sample of a trial, as Section 8: a sample is
+     * EOG if the RMS of the window ending there is above the threshold
+     * (samples before the first full window take its vote), and no
+     * sample within BLINKSPAN of a window above the BLINK RMS is.
+     * @param x         the trial, filtered to the EOG band
+     * @param threshold RMS threshold
+     * @return          the vote of each sample
+     */
+    static boolean[] vote(float[] x, double threshold) {
+        int window = BatchAnalysis.RMSWINDOW;
+        boolean[] votes = new boolean[x.length];
+        if (x.length < window) {
+            return votes;
+        }
+        double[] rms = new double[x.length];
+        double sq = 0;
+        for (int i = 0; i < x.length; i++) {
+            sq += (double) x[i] * x[i];
+            if (i >= window) {
+                sq -= (double) x[i - window] * x[i - window];
+            }
+            if (i >= window - 1) {
+                rms[i] = Math.sqrt(Math.max(0, sq) / window);
+                votes[i] = rms[i] > threshold;
+            }
+        }
+        for (int i = 0; i < window - 1; i++) {
+            rms[i] = rms[window - 1];
+            votes[i] = votes[window - 1];
+        }
+        int span = BatchAnalysis.BLINKSPAN;
+        int cleared = -1;
+        for (int i = 0; i < x.length; i++) {
+            if (rms[i] > BatchAnalysis.BLINK) {
+                int end = Math.min(x.length - 1, i + span);
+                for (int j = Math.max(cleared + 1, i - span); j <= end;
+                        j++) {
+                    votes[j] = false;
+                }
+                cleared = end;
+            }
+        }
+        return votes;
+    }
+
+    /**
+     * RMS of a saccade added to the SSVEP before it, as Section 12: the
+     * EOG (where voted) is added wherever its gradient has the same sign
+     * as the SSVEP's.
+     * @param ssvep     the idle gaze, filtered to the SSVEP band
+     * @param eog       the saccade gaze, filtered to the EOG band
+     * @param votes     EOG votes over the trial
+     * @param offset    offset of the saccade gaze in the trial
+     * @return          RMS of the summed signal
+     */
+    static double summedRms(float[] ssvep, float[] eog, boolean[] votes,
+            int offset) {
+        int n = Math.min(ssvep.length, eog.length);
+        double sq = 0;
+        for (int i = 0; i < n; i++) {
+            double sum = ssvep[i];
+            if (votes[offset + i] && Math.signum(gradient(ssvep, i))
+                    == Math.signum(gated(eog, votes, offset, i))) {
+                sum += eog[i];
+            }
+            sq += sum * sum;
+        }
+        return n > 0 ? Math.sqrt(sq / n) : Double.NaN;
+    }
+
+    /**
+     * Gradient of a signal, as MATLAB's gradient() (in samples).
+     * @param x signal
+     * @param i index
+     * @return  central difference, or one-sided at the ends
+     */
+    static double gradient(float[] x, int i) {
+        if (x.length < 2) {
+            return 0;
+        }
+        if (i == 0) {
+            return x[1] - x[0];
+        }
+        if (i == x.length - 1) {
+            return x[i] - x[i - 1];
+        }
+        return (x[i + 1] - x[i - 1]) / 2.0;
+    }
+
+    /**
+     * Gradient of the EOG after zeroing the samples not voted EOG.
+     * @param eog       the saccade gaze, filtered to the EOG band
+     * @param votes     EOG votes over the trial
+     * @param offset    offset of the saccade gaze in the trial
+     * @param i         index in the saccade gaze
+     * @return          central difference, or one-sided at the ends
+     */
+    static double gated(float[] eog, boolean[] votes, int offset, int i) {
+        int n = eog.length;
+        if (n < 2) {
+            return 0;
+        }
+        int lo = i == 0 ? 0 : i - 1;
+        int hi = i == n - 1 ? n - 1 : i + 1;
+        double a = votes[offset + lo] ? eog[lo] : 0;
+        double b = votes[offset + hi] ? eog[hi] : 0;
+        return (b - a) / (hi - lo);
+    }
+
+    /**
+     * Filter part of a column forwards and backwards, with the thread's
+     * work array.
+     * @param filter    filter to apply
+     * @param x         input column
+     * @param from      index of the first sample
+     * @param to        index after the last sample
+     * @return          the filtered samples
+     */
+    static float[] filter(SosFilter filter, float[] x, int from, int to) {
+        float[] out = new float[to - from];
+        double[] work = FilterTask.WORK.get();
+        if (work.length < filter.workLength(to - from)) {
+            work = new double[filter.workLength(to - from)];
+            FilterTask.WORK.set(work);
+        }
+        filter.filtfilt(x, from, to, out, 0, work);
+        return out;
+    }
+}
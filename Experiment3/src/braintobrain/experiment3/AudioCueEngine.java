@@ -0,0 +1,310 @@
+package braintobrain.experiment3;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Low-latency, sample-scheduled audio cues.
+ *
+ * Cue files are decoded once (at setup) into mono 16-bit PCM buffers,
+ * with any leading silence trimmed so that a cue's first sample is its
+ * onset. A SourceDataLine is kept open with a small buffer and fed
+ * continuously by a maximum-priority thread, which mixes each cue in
+ * starting at the sample that will be played at the cue's scheduled
+ * System.nanoTime(). Onset latency therefore depends only on the line
+ * buffer, not on how long the animation thread takes to render.
+ */
+public class AudioCueEngine implements Runnable, CueSink {
+
+    /** Output sample rate (in Hz). */
+    public static final float RATE = 44100f;
+
+    /** Number of frames mixed and written at a time (~1.5 ms). */
+    public static final int BLOCK = 64;
+
+    /** Size of the line's buffer, in frames (~12 ms). */
+    public static final int BUFFER = 8 * BLOCK;
+
+    /** Maximum number of cues that can sound at once. */
+    public static final int VOICES = 4;
+
+    /** Maximum number of cues waiting to be picked up by the audio thread
+     *  (must be a power of two). */
+    public static final int QUEUE = 16;
+
+    /** Samples at or below this magnitude count as leading silence. */
+    public static final int SILENCE = 512;
+
+
+    /** Output format: mono, 16-bit signed, little-endian. */
+    final AudioFormat format = new AudioFormat(RATE, 16, 1, true, false);
+
+    /** Decoded cues. */
+    final ArrayList<short[]> cues = new ArrayList<short[]>();
+
+    /** Cue ids waiting for the audio thread. */
+    final int[] queuedCues = new int[QUEUE];
+
+    /** Scheduled onset times of the waiting cues. */
+    final long[] queuedTimes = new long[QUEUE];
+
+    /** Sequence number of the next queued cue the audio thread reads. */
+    final AtomicLong head = new AtomicLong();
+
+    /** Sequence number of the next queued cue play() writes. */
+    final AtomicLong tail = new AtomicLong();
+
+    /** Cue played by each voice, or -1 if the voice is free. */
+    final int[] voiceCue = new int[VOICES];
+
+    /** Frame (counted from line start) at which each voice begins. */
+    final long[] voiceStart = new long[VOICES];
+
+    /** Mixing buffer for one block. */
+    final int[] mix = new int[BLOCK];
+
+    /** Output bytes for one block. */
+    final byte[] out = new byte[2 * BLOCK];
+
+    /** Number of frames written to the line so far. */
+    long written = 0;
+
+    /** Open output line, or null if audio is unavailable. */
+    SourceDataLine line;
+
+    /** Audio thread. */
+    Thread thread;
+
+    /** False once close() has been called. */
+    volatile boolean running = true;
+
+
+    /**
+     * Create an engine with no cues loaded. Load cues, then call start().
+     */
+    public AudioCueEngine() {
+        for (int i = 0; i < VOICES; i++) {
+            voiceCue[i] = -1;
+        }
+    }
+
+    /**
+     * Decode a WAV (or other supported) file into a cue.
+     * @param in            the file contents
+     * @param maxMillis     maximum length of the cue after trimming
+     *                      leading silence (in milliseconds), or 0 for all
+     * @return              id of the cue, for play()
+     * @throws IOException  if the file cannot be read or decoded
+     */
+    public int load(InputStream in, int maxMillis) throws IOException {
+        AudioInputStream stream;
+        try {
+            stream = AudioSystem.getAudioInputStream(
+                    new BufferedInputStream(in));
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Unsupported audio file", e);
+        }
+        AudioFormat source = stream.getFormat();
+        AudioFormat pcm = new AudioFormat(source.getSampleRate(), 16,
+                source.getChannels(), true, false);
+        if (!source.matches(pcm)) {
+            stream = AudioSystem.getAudioInputStream(pcm, stream);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        for (int n; (n = stream.read(chunk)) > 0;) {
+            bytes.write(chunk, 0, n);
+        }
+        stream.close();
+        short[] samples = downmix(bytes.toByteArray(), pcm.getChannels(),
+                pcm.getSampleRate());
+
+        int first = 0;
+        while (first < samples.length && Math.abs(samples[first]) <= SILENCE) {
+            first++;
+        }
+        int last = samples.length;
+        if (maxMillis > 0) {
+            last = Math.min(last, first + (int) (RATE * maxMillis / 1000));
+        }
+        short[] cue = new short[last - first];
+        System.arraycopy(samples, first, cue, 0, cue.length);
+        cues.add(cue);
+        return cues.size() - 1;
+    }
+
+    /**
+     * Open the output line and start the audio thread. If no line is
+     * available, an error is printed and play() does nothing. Calling it
+     * again does nothing.
+     */
+    public void start() {
+        if (thread != null) {
+            return; // A second consumer would race the first
+        }
+        try {
+            line = AudioSystem.getSourceDataLine(format);
+            line.open(format, 2 * BUFFER);
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            // IllegalArgumentException: no mixer supports the format
+            System.err.println("Audio cues disabled: " + e.getMessage());
+            line = null;
+            return;
+        }
+        line.start();
+        thread = new Thread(this, "audio-cues");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedule a cue. Never blocks; must only be called from one thread
+     * (the animation thread). Cues scheduled in the past start as soon
+     * as possible.
+     * @param cue   id returned by load()
+     * @param time  onset time (System.nanoTime() units)
+     */
+    @Override
+    public void play(int cue, long time) {
+        long t = tail.get();
+        if (line == null || t - head.get() >= QUEUE) {
+            return;
+        }
+        queuedCues[(int) t & (QUEUE - 1)] = cue;
+        queuedTimes[(int) t & (QUEUE - 1)] = time;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Stop the audio thread and close the line.
+     */
+    public void close() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (line != null) {
+            line.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            schedule();
+            render();
+            // Blocks once the line buffer is full, pacing the thread
+            line.write(out, 0, out.length);
+            written += BLOCK;
+        }
+    }
+
+    /**
+     * Assign queued cues to voices, at the frame that will be played at
+     * their onset time.
+     */
+    void schedule() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return;
+        }
+        // Time at which the next frame written will be heard
+        long next = System.nanoTime() + (long) ((written
+                - line.getLongFramePosition()) * 1e9 / RATE);
+        for (; h != tail.get(); h++) {
+            int cue = queuedCues[(int) h & (QUEUE - 1)];
+            long delay = queuedTimes[(int) h & (QUEUE - 1)] - next;
+            int voice = 0;
+            for (int i = 0; i < VOICES; i++) {
+                if (voiceCue[i] < 0) {
+                    voice = i;
+                    break;
+                }
+                if (voiceStart[i] < voiceStart[voice]) {
+                    voice = i; // Steal the oldest voice if none are free
+                }
+            }
+            voiceCue[voice] = cue;
+            voiceStart[voice] = written
+                    + Math.max(0, Math.round(delay * RATE / 1e9));
+        }
+        head.lazySet(h);
+    }
+
+    /**
+     * Mix the active voices into the next block of output.
+     */
+    void render() {
+        for (int i = 0; i < BLOCK; i++) {
+            mix[i] = 0;
+        }
+        for (int v = 0; v < VOICES; v++) {
+            if (voiceCue[v] < 0) {
+                continue;
+            }
+            short[] cue = cues.get(voiceCue[v]);
+            long offset = written - voiceStart[v];
+            int from = (int) Math.max(0, -offset);
+            int to = (int) Math.min(BLOCK, cue.length - offset);
+            for (int i = from; i < to; i++) {
+                mix[i] += cue[(int) (offset + i)];
+            }
+            if (offset + BLOCK >= cue.length) {
+                voiceCue[v] = -1; // Finished
+            }
+        }
+        for (int i = 0; i < BLOCK; i++) {
+            int sample = Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, mix[i]));
+            out[2 * i] = (byte) sample;
+            out[2 * i + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    /**
+     * Convert interleaved 16-bit little-endian PCM to mono at RATE.
+     * @param bytes     PCM data
+     * @param channels  number of interleaved channels
+     * @param rate      sample rate of the data (in Hz)
+     * @return          mono samples at RATE
+     */
+    static short[] downmix(byte[] bytes, int channels, float rate) {
+        int frames = bytes.length / (2 * channels);
+        float[] mono = new float[frames];
+        for (int f = 0; f < frames; f++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                int i = 2 * (f * channels + c);
+                sum += (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+            }
+            mono[f] = (float) sum / channels;
+        }
+        // Linear resampling, if the file's rate differs from the line's
+        int length = (int) ((long) frames * RATE / rate);
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            double pos = i * rate / RATE;
+            int j = (int) pos;
+            double frac = pos - j;
+            double next = j + 1 < frames ? mono[j + 1] : mono[j];
+            samples[i] = (short) Math.round(mono[j] * (1 - frac) + next * frac);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,165 @@
+package braintobrain.experiment3;
+
+import braintobrain.online.FilterPipeline;
+import braintobrain.online.OscSampleSource;
+import braintobrain.online.SaccadeDetector;
+import braintobrain.online.SaccadeListener;
+import braintobrain.online.SsvepDetector;
+import braintobrain.online.SsvepListener;
+
+/**
+ * Live brain and eye events for the presenter, in closed-loop mode.
+ *
+ * Receives the OpenBCI GUI's sample stream, filters it, and runs an
+ * SSVEP detector at the flicker frequency and a saccade detector on it.
+ * Detections are stamped with System.nanoTime() on the receiving thread
+ * and read by the animation thread, which fires the next event of the
+ * timeline as soon as the one it is waiting for is confirmed. The delay
+ * from each confirmation to the frame that reacts to it is recorded.
+ */
+public class ClosedLoop implements SsvepListener, SaccadeListener {
+
+    /** Filters for the live samples. */
+    final FilterPipeline pipeline = new FilterPipeline();
+
+    /** Receiver of the live samples. */
+    final OscSampleSource source;
+
+    /** Detector of SSVEP lock-in. */
+    final SsvepDetector ssvep;
+
+    /** Detector of saccades. */
+    final SaccadeDetector saccades = new SaccadeDetector();
+
+    /** Time the SSVEP was last detected, or 0 while it is absent. */
+    volatile long lockTime = 0;
+
+    /** Sample the SSVEP was last detected at. */
+    volatile long lockIndex = 0;
+
+    /** Time the last saccade (not blink) ended, or 0. */
+    volatile long saccadeTime = 0;
+
+    /** Delay from confirmed events to the frame reacting to them. */
+    final LatencyHistogram reaction = new LatencyHistogram();
+
+
+    /**
+     * Start listening for samples.
+     * @param freq  flicker frequency (in Hz)
+     * @param port  UDP port the OpenBCI GUI streams to
+     */
+    public ClosedLoop(double freq, int port) {
+        ssvep = new SsvepDetector(pipeline, freq);
+        ssvep.addListener(this);
+        saccades.addListener(this);
+        pipeline.addListener(ssvep);
+        pipeline.addListener(saccades);
+        source = new OscSampleSource(pipeline, port, OscSampleSource.ADDRESS,
+                OscSampleSource.OZCHANNEL, OscSampleSource.EOGCHANNEL);
+    }
+
+    @Override
+    public void ssvep(long index, boolean present, double snr) {
+        lockIndex = index;
+        lockTime = present ? System.nanoTime() : 0;
+    }
+
+    @Override
+    public void onset(long index) {
+        // Only completed saccades advance the experiment
+    }
+
+    @Override
+    public void offset(long index, boolean blink, float peak) {
+        if (!blink) {
+            saccadeTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Tell the saccade detector a saccade has just been cued.
+     */
+    public void cue() {
+        saccades.mark(pipeline.getCount());
+    }
+
+    /**
+     * Start waiting for the SSVEP afresh, from the next sample: a lock-in
+     * held since before now does not count.
+     * @return  number of the next sample
+     */
+    public long rearm() {
+        long index = pipeline.getCount();
+        ssvep.rearm(index);
+        return index;
+    }
+
+    /**
+     * @param since     first sample of the wait (from rearm())
+     * @return          time the SSVEP was detected on a window starting
+     *                  at or after since, or 0 if it has not been
+     */
+    public long ssvepSince(long since) {
+        long t = lockTime;
+        if (t == 0 || lockIndex - SsvepDetector.WINDOW + 1 < since) {
+            return 0;
+        }
+        return t;
+    }
+
+    /**
+     * @param since     start of the wait (System.nanoTime() units)
+     * @return          time a saccade ended after since, or 0 if none has
+     */
+    public long saccadeSince(long since) {
+        long t = saccadeTime;
+        return t > since ? t : 0;
+    }
+
+    /**
+     * Record the delay from a confirmed event to the frame reacting to it.
+     * @param event     time the event became actionable: its
+     *                  detection, or the end of the minimum hold after
+     *                  the previous event if that was later
+     * @param flip      time the reacting frame reaches the screen
+     */
+    public void reacted(long event, long flip) {
+        reaction.record(flip - event);
+    }
+
+    /**
+     * @return  the pipeline filtering the live samples
+     */
+    public FilterPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return  delays from confirmed events to the frames reacting to them
+     */
+    public LatencyHistogram getReaction() {
+        return reaction;
+    }
+
+    /**
+     * @return  delays from saccade cues to saccade onsets
+     */
+    public LatencyHistogram getSaccadeLatency() {
+        return saccades.getLatency();
+    }
+
+    /**
+     * @return  time spent filtering and detecting, per sample
+     */
+    public LatencyHistogram getProcessing() {
+        return pipeline.getLatency();
+    }
+
+    /**
+     * Stop listening for samples.
+     */
+    public void close() {
+        source.close();
+    }
+}
@@ -0,0 +1,16 @@
+package braintobrain.experiment3;
+
+/**
+ * Destination of the presenter's audio cues: the sound card (see
+ * AudioCueEngine), or memory in a headless session (see EventLog).
+ */
+public interface CueSink {
+
+    /**
+     * Play a cue. Never blocks; called from the animation thread.
+     * @param cue   cue number
+     * @param time  time its onset should be heard (System.nanoTime()
+     *              units)
+     */
+    void play(int cue, long time);
+}
@@ -0,0 +1,125 @@
+package braintobrain.experiment3;
+
+import java.util.Arrays;
+
+/**
+ * In-memory stand-in for the marker sender and the audio engine, for
+ * headless sessions (see HeadlessPresenter): keeps every marker and cue
+ * with its times, in order, to be checked or printed afterwards.
+ *
+ * Not thread-safe; read it from the thread that drove the session.
+ */
+public class EventLog implements MarkerSink, CueSink {
+
+    /** Initial number of markers and cues kept before growing. */
+    public static final int CAPACITY = 64;
+
+
+    /** Code of each marker. */
+    int[] codes = new int[CAPACITY];
+
+    /** Time each marker refers to. */
+    long[] times = new long[CAPACITY];
+
+    /** Time each marker was decided on. */
+    long[] decisions = new long[CAPACITY];
+
+    /** Number of markers. */
+    int markers = 0;
+
+    /** Number of each cue played. */
+    int[] cues = new int[CAPACITY];
+
+    /** Onset time of each cue. */
+    long[] onsets = new long[CAPACITY];
+
+    /** Number of cues. */
+    int played = 0;
+
+
+    @Override
+    public boolean mark(int code, long time, long decided) {
+        if (markers == codes.length) {
+            codes = Arrays.copyOf(codes, 2 * markers);
+            times = Arrays.copyOf(times, 2 * markers);
+            decisions = Arrays.copyOf(decisions, 2 * markers);
+        }
+        codes[markers] = code;
+        times[markers] = time;
+        decisions[markers] = decided;
+        markers++;
+        return true;
+    }
+
+    @Override
+    public void play(int cue, long time) {
+        if (played == cues.length) {
+            cues = Arrays.copyOf(cues, 2 * played);
+            onsets = Arrays.copyOf(onsets, 2 * played);
+        }
+        cues[played] = cue;
+        onsets[played] = time;
+        played++;
+    }
+
+    /**
+     * @return  number of markers
+     */
+    public int getMarkerCount() {
+        return markers;
+    }
+
+    /**
+     * @param i index of a marker
+     * @return  its code
+     */
+    public int getCode(int i) {
+        return codes[i];
+    }
+
+    /**
+     * @param i index of a marker
+     * @return  time it refers to (the frame's presentation time)
+     */
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    /**
+     * @param i index of a marker
+     * @return  time it was decided on
+     */
+    public long getDecided(int i) {
+        return decisions[i];
+    }
+
+    /**
+     * @return  the code of every marker, in order
+     */
+    public int[] getCodes() {
+        return Arrays.copyOf(codes, markers);
+    }
+
+    /**
+     * @return  number of cues
+     */
+    public int getCueCount() {
+        return played;
+    }
+
+    /**
+     * @param i index of a cue
+     * @return  the cue number
+     */
+    public int getCue(int i) {
+        return cues[i];
+    }
+
+    /**
+     * @param i index of a cue
+     * @return  its onset time
+     */
+    public long getOnset(int i) {
+        return onsets[i];
+    }
+}
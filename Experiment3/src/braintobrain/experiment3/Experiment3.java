@@ -3,16 +3,14 @@ package braintobrain.experiment3;
 import processing.core.PApplet;
 import processing.core.PShape;
 
-import java.util.Random;
-import java.util.TreeSet;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 import oscP5.OscP5;
-import oscP5.OscMessage;
 import netP5.NetAddress;
 
-import ddf.minim.Minim;
-import ddf.minim.AudioPlayer;
-
 /**
  * Brain-to-Brain Communication Experiment 3.
  * 
@@ -24,9 +22,11 @@ import ddf.minim.AudioPlayer;
  *  - N1P on Oz
  *  - N2P on Fp2
  *  
- * The experiment displays a Processing window, then performs 15
- * randomized trials, 5 each for the control, experimental, and SSVEP
- * conditions, as follows:
+ * The experiment displays a Processing window, then performs the trials
+ * of a protocol file (see Protocol), given as the first argument or
+ * PROTOCOL by default. The default protocol performs 15 randomized
+ * trials, 5 each for the control, experimental, and SSVEP conditions,
+ * as follows:
  *   - Control:
  *      o  White rectangle with red circle fixation point at center, and
  *         red rectangle saccade target at the rectangle's right edge
@@ -42,9 +42,30 @@ import ddf.minim.AudioPlayer;
  * For all cases, the trial is initiated with an audio cue of one high-
  * pitched beep.
  * 
- * Cues of one system-default beep then signal when the subject should 
+ * Cues of one short alarm-clock ring then signal when the subject should
  * make saccades to the target
  * 
+ * With closed.loop set in the protocol, gazes and trials end as soon as
+ * the live EEG confirms them (see ClosedLoop), with the protocol's timing
+ * as the timeout.
+ *
+ * The timing of every frame is checked (see FrameTelemetry): a trial
+ * with a missed refresh or a wrongly timed flicker is reported invalid
+ * as soon as it happens, and each trial's frame accuracy as it ends.
+ *
+ * The session's state machine is a Presenter, which this sketch steps
+ * once per frame against the real clock; HeadlessPresenter runs the
+ * same session from a virtual clock, without a display, for replays and
+ * timing tests.
+ *
+ * With shader set in the protocol, the SSVEP rectangle, center and
+ * target are drawn by one fragment shader (see ShaderStimulus), which
+ * also offers sinusoidal, checkerboard and pattern-reversal flicker.
+ *
+ * Other variants (such as Experiment 3b, in experiment3b.protocol, or
+ * the multi-frequency SSVEP targets in multitarget.protocol) are
+ * protocol files in the data folder.
+ * 
  * 
  * @author Chris Micek
  * Date: 2016/07/20
@@ -67,65 +88,36 @@ public class Experiment3 extends PApplet {
             "beep-08b.wav";
             //"C:/Users/Chris/git/Experiment3/Experiment3/src/data/beep-08b.wav";
     
+    /** File path to saccade cue file. */
+    public static final String ALARM = "Loud-alarm-clock-sound.wav";
+    
+    /** Length of the saccade cue taken from ALARM (in milliseconds). */
+    public static final int ALARMTIME = 500;
+    
     /** Percentage of the screen for SSVEP rectangle to fill. */
     public static final float SCREENPERCENT = 1f / 5;
-    /* NOTE: Audio timing is hugely affected by the size of the stimulus.
-    Change with caution. */
+    /* NOTE: Audio timing used to be hugely affected by the size of the
+    stimulus; cues are now sample-scheduled by AudioCueEngine. */
     
     /** Percentage of the SSVEP rectangle for target rectangle to fill. */
     public static final float RECTPERCENT = 1f / 10;
     
-    /** Time to delay from idle state to experiment start (in milliseconds). */
-    public static final int IDLETIME = 15000;
-    
-    /** Time for each gaze. */
-    public static final int GAZETIME = 20000;
-    
-    /** Frequency of SSVEP stimulus (in Hz). */
-    public static final double FREQ = 8.0;
-    
-    /** Time to delay draw function. */
-    public static final int DELAYTIME = (int) ((1.0 / FREQ) * 500);
-    
+    /** File path to the default protocol. */
+    public static final String PROTOCOL = "experiment3.protocol";
     
     /** Color to fill a rectangle for SSVEP. */
     public final int ssvepfill = color(255);
     
-    /** Color to fill a rectangle for SSVEP. */
+    /** Color to fill the fixation point. */
     public final int targetfill = color(255, 0, 0);
     
     
     
-    /** Starting time of the program (in milliseconds). */
-    int startTime = millis();
+    /** Experiment variant being run. */
+    Protocol protocol;
     
-    /** Counters for number of times each condition has occurred. */
-    int[] counters = new int[3];
-    
-    /** Counter for number of draw loop iterations.
-     *  Used for flash/sound signals. */
-    int loopCount = 0;
-    
-    /** Set of states excluded in choosing next state. */
-    TreeSet<Integer> exStates = new TreeSet<Integer>();
-    
-    /** Random instance for state generator. */
-    Random seed = new Random();
-    
-    /**
-     * State of the program, sent to EEG output file.
-     * Possible states.
-     * 0 = pre-experiment
-     * 1 = idle
-     * 2 = control
-     * 3 = experimental
-     * 4 = SSVEP only
-     * 5 = post-experiment
-     */
-    int state = 0;
-    
-    /** Stored number of eye saccades. */
-    int gazeNum = 1;
+    /** State machine of the session, stepped once per frame. */
+    Presenter presenter;
     
     
     //For communication with OpenBCI_GUI
@@ -135,105 +127,95 @@ public class Experiment3 extends PApplet {
     /** Location of UDP client (OpenBCI_GUI). */
     NetAddress location1 = new NetAddress("127.0.0.1", CLIENTPORT);
     
-    /** Message to send to client. */
-    OscMessage myMessage2 = new OscMessage("/test");
+    /** Queue of markers to send to client. */
+    MarkerSender markers = new MarkerSender(oscP5Location2, location1,
+            "/test", 64);
+    
+    
+    /** Preloaded, sample-scheduled audio cues. */
+    AudioCueEngine audio = new AudioCueEngine();
     
+    /** Live detections, in closed-loop mode (or null). */
+    ClosedLoop loop;
     
-    /** Minim instance for loading audio. */
-    Minim minim;
+    /** The presenter's own log of the session (or null). */
+    SessionRecorder recorder;
     
-    /** AudioPlayer to play sounds. */
-    AudioPlayer player;
     
-    /** Flashing square for SSVEP. */
+    /** Flashing square for SSVEP, in its white phase.
+     *  Each fill state is a separate shape, built once in setup(), so
+     *  draw() only picks one and never re-uploads vertex colors. */
     PShape ssvepRect;
     
+    /** Flashing square for SSVEP, in its black phase (and for control). */
+    PShape ssvepDark;
+    
+    /** Regions flickering at several frequencies, for multi conditions. */
+    MultiTargetStimulus multi;
+    
+    /** Rectangle, center and target drawn by a shader, or null. */
+    ShaderStimulus stimulus;
+    
     /** Small subtarget for eye saccades. */
     PShape target;
     
     /** Small circle to mark center of SSVEP rectangle. */
     PShape center;
 
-    
-    /**
-     * Change state to newstate, and send state as UDP message.
-     * @param newstate the number of the new state
-     */
-    public void changeState(int newstate) {
-        state = newstate; //update state
-        if (state == 2 || state == 3 || state == 4) {
-            // First digit is state, last 2 are trial #
-            myMessage2.add(state * 100 + 10 * counters[state - 2]);
-        } else {
-            myMessage2.add(newstate);
-        }
-     // Record new state in GUI data
-        oscP5Location2.send(myMessage2, location1);
-        myMessage2.clear();
-        java.awt.Toolkit.getDefaultToolkit().beep();
-        player.play();
-    }
-    
-    /**
-     * Generate a random integer in [start, end], excluding elements in
-     * "exclude".
-     * 
-     * @param rnd       Random instance
-     * @param start     the starting int for the range of numbers
-     * @param end       the ending int for the range of numbers
-     * @param exclude   the set of integers to exclude
-     * @return          a random int in the specified range
-     */
-    public int getRandom(Random rnd, int start, int end, TreeSet<Integer> exclude) {
-        int random = start
-                + rnd.nextInt(end - start + 1 - exclude.size());
-        for (int ex : exclude) {
-            if (random < ex) {
-                break;
-            }
-            random++;
-        }
-        return random;
-    }
-    
-    /**
-     * After the idle state, randomly chooses a new state for
-     * experiment conditions, or the exit state if all trials
-     * have been exhausted.
-     * @return the new current state
-     */
-    public int chooseState() {
-        if (counters[0] == 5 && counters[1] == 5 && counters[2] == 5) {
-            // All trials finished; exit
-            return 5;
-        }
-        if (counters[0] == 5) {
-            // No more state 2
-            exStates.add(2);
-        }
-        if (counters[1] == 5) {
-            // No more state 3
-            exStates.add(3);
-        }
-        if (counters[2] == 5) {
-            // No more state 4
-            exStates.add(4);
-        }
-        // Randomly choose either state 2 or state 3
-        int currState = getRandom(seed, 2, 4, exStates);
-        counters[currState - 2] = counters[currState - 2] + 1;
-        return currState;
-
-    }
-
 
     @Override
     public void setup() {
-        minim = new Minim(this);
-        player = minim.loadFile(BEEP);
+        String file = args != null && args.length > 0 ? args[0] : PROTOCOL;
+        int beep;
+        int alarm;
+        try {
+            protocol = new Protocol(createInput(file));
+            beep = audio.load(createInput(BEEP), 0);
+            alarm = audio.load(createInput(ALARM), ALARMTIME);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load " + file
+                    + " or audio cues", e);
+        }
 //        size(3840, 2160, P2D);
         size(displayWidth, displayHeight, P2D); // Basically fullscreen
+        // Switching to P2D makes Processing run setup() again, from the
+        // top: start threads and open devices only after size()
+        audio.start();
+        if (protocol.record) {
+            String name = protocol.recordFile.isEmpty() ? "session-"
+                    + new SimpleDateFormat("yyyyMMdd-HHmmss").format(
+                    new Date()) + ".log" : protocol.recordFile;
+            try {
+                recorder = new SessionRecorder(new File(sketchPath(name)));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not create " + name, e);
+            }
+            recorder.start();
+        }
+        if (protocol.closedLoop) {
+            // Built once: a second source could not bind the port
+            loop = new ClosedLoop(protocol.getFrequency(),
+                    protocol.closedLoopPort);
+            if (recorder != null) {
+                recorder.listen(loop.getPipeline());
+            }
+        }
         background(0); // Start black
+        // Drawn once: an unseeded protocol gives a new order every time
+        int[] order = protocol.sequence();
+        println(protocol.describe(order)); // Log for analysis
+        presenter = new Presenter(protocol, order,
+                FlickerScheduler.displayRefreshRate(), markers, audio, beep,
+                alarm);
+        if (loop != null) {
+            presenter.setLoop(loop);
+        }
+        if (recorder != null) {
+            presenter.setRecorder(recorder);
+        }
+        frameRate(1000); // Let vsync, not the sketch, pace the loop
+        presenter.getTelemetry().start();
+        markers.start();
         shapeMode(CENTER);
         int rectCenterX = width / 2;
         int rectCenterY = height / 2;
@@ -242,110 +224,106 @@ public class Experiment3 extends PApplet {
                 width * SCREENPERCENT);
         ssvepRect.setFill(ssvepfill);
         
+        ssvepDark = createShape(RECT, rectCenterX, rectCenterY,
+                width * SCREENPERCENT,
+                width * SCREENPERCENT);
+        ssvepDark.setFill(color(0));
+        
         center = createShape(ELLIPSE, rectCenterX, rectCenterY,
                 ssvepRect.getWidth() * RECTPERCENT / 3,
                 ssvepRect.getWidth() * RECTPERCENT / 3);
         center.setFill(targetfill);
         
         target = createShape(RECT,
-                rectCenterX + ssvepRect.getWidth() / 2f
-                - (ssvepRect.getWidth() * RECTPERCENT / 2f), rectCenterY,
+                width * protocol.targetX, height * protocol.targetY,
                 ssvepRect.getWidth() * RECTPERCENT,
                 ssvepRect.getWidth() * RECTPERCENT);
-        target.setFill(targetfill);
-
-        for (int i = 0; i < 3; i++) {
-            counters[i] = 0;
+        target.setFill(0xFF000000 | protocol.targetColor);
+        
+        multi = new MultiTargetStimulus(protocol.multiFrequencies,
+                protocol.multiPhases, rectCenterX, rectCenterY,
+                height * protocol.multiDistance, width * protocol.multiSize);
+        
+        if (protocol.shader) {
+            stimulus = new ShaderStimulus(loadShader(ShaderStimulus.SHADER),
+                    protocol.frequency, width, height);
+            stimulus.setField(rectCenterX, rectCenterY,
+                    width * SCREENPERCENT, protocol.shaderChecks);
+            stimulus.setFixation(rectCenterX, rectCenterY,
+                    ssvepRect.getWidth() * RECTPERCENT / 3, targetfill);
+            stimulus.setTarget(width * protocol.targetX,
+                    height * protocol.targetY,
+                    ssvepRect.getWidth() * RECTPERCENT,
+                    0xFF000000 | protocol.targetColor);
         }
-//        java.awt.Toolkit.getDefaultToolkit().beep();
-        player.play();
     }
 
 
     @Override
     public void draw() {
+        long now = System.nanoTime();
+        presenter.frame(frameCount, now);
         
-        if (millis() - startTime > IDLETIME && state == 0) {
-            changeState(1);
-        }
-        
-        if (millis() - startTime > 2 * IDLETIME && state == 1) {
-            // Randomly choose experiment state.
-            changeState(chooseState());
-        }
-              
-        if (state == 2 || state == 3 || state == 4) {
-            // Update state first
-            if (loopCount != 0 && loopCount
-                    % (int) ((double) GAZETIME / DELAYTIME)  == 0) {
-                changeState(chooseState());
-            }
-            
-            // Keep track of gaze directions
-            if (loopCount == 0 && state < 4) {
-                myMessage2.add(state * 100 + 10 * counters[state - 2] + gazeNum);
-                oscP5Location2.send(myMessage2, location1);
-                myMessage2.clear(); 
-                java.awt.Toolkit.getDefaultToolkit().beep();
-                gazeNum++;
-                
-            } else if (loopCount % 161 == 0 && state < 4) {
-                myMessage2.add(state * 100 + 10 * counters[state - 2] + gazeNum);
-                oscP5Location2.send(myMessage2, location1);
-                myMessage2.clear(); 
-                java.awt.Toolkit.getDefaultToolkit().beep();
-                gazeNum++;
-                if (gazeNum == 3) {
-                    gazeNum = 1;
-                }
-            }
-            
-            if (state == 2) {
-                // No flash
-                ssvepRect.setFill(color(0));
-                shape(ssvepRect);
-                shape(center);
-                shape(target);
-                
-            } else if (state == 3) { // State 3 --> SSVEP with saccades
-                if (loopCount % 2 == 0) {
-                    ssvepRect.setFill(ssvepfill);
+        int condition = presenter.getCondition();
+        FlickerScheduler flicker = presenter.getFlicker();
+        if (condition >= 0) {
+            boolean shaded = stimulus != null && !protocol.multi[condition];
+            if (shaded) {
+                // Rectangle, center and target in one pass
+                stimulus.draw(g, flicker.seconds(), protocol.flicker[condition]
+                        ? protocol.patterns[condition] : ShaderStimulus.DARK,
+                        protocol.target[condition]);
+            } else {
+                if (protocol.multi[condition]) {
+                    multi.draw(g, flicker.seconds());
                 } else {
-                    ssvepRect.setFill(color(0));
+                    shape(protocol.flicker[condition] && flicker.isLight()
+                            ? ssvepRect : ssvepDark);
                 }
-                shape(ssvepRect);
                 shape(center);
-                shape(target);
-                
-            } else if (state == 4) { // State 4 --> only SSVEP
-                if (loopCount % 2 == 0) {
-                    ssvepRect.setFill(ssvepfill);
-                } else {
-                    ssvepRect.setFill(color(0));
+                if (protocol.target[condition]) {
+                    shape(target);
                 }
-                shape(ssvepRect);
-                shape(center);
             }
-            
-           
-            loopCount++;
         }
         
+        presenter.drawn(frameCount, now, System.nanoTime());
         
-        if (state == 5) {
+        if (presenter.isFinished()) {
             exit();
         }
-        
-        // 4 Hz per rectangle color change
-        delay(DELAYTIME);
+    }
+
+    @Override
+    public void exit() {
+        markers.close(); // Flush the last markers before shutting down
+        audio.close();
+        if (loop != null) {
+            loop.close();
+            loop.getReaction().print(System.out, "Detection -> frame");
+            loop.getSaccadeLatency().print(System.out, "Saccade cue -> onset");
+            loop.getProcessing().print(System.out, "Sample processing");
+        }
+        if (recorder != null) {
+            recorder.close(); // Commit the last records
+            recorder.getLatency().print(System.out, "Record -> commit");
+            println(recorder.getCommitted() + " records logged, "
+                    + recorder.getDropped() + " dropped");
+        }
+        presenter.getTelemetry().close(); // Report the last trial
+        presenter.getTelemetry().print(System.out);
+        presenter.getSwapLatency().print(System.out,
+                "Marker decision -> swap");
+        markers.getLatency().print(System.out, "Marker decision -> send");
+        super.exit();
     }
 
     /**
      * Main program for rendering Processing display.
-     * @param args Command-line arguments (do not modify)
+     * @param args Command-line arguments (optional protocol file)
      */
     public static void main(String[] args) {
-        PApplet.main(new String[] {
-                braintobrain.experiment3.Experiment3.class.getName()});
+        PApplet.main(braintobrain.experiment3.Experiment3.class.getName(),
+                args);
     }
 }
\ No newline at end of file
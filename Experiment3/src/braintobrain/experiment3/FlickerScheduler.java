@@ -0,0 +1,161 @@
+package braintobrain.experiment3;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+
+/**
+ * Frame-locked timeline for the SSVEP flicker.
+ *
+ * Every black/white transition is placed on an absolute
+ * System.nanoTime() timeline, anchored at the start of the experiment,
+ * instead of being counted in draw loop iterations. Each frame samples
+ * that timeline at the middle of the refresh interval in which it will
+ * be shown, so a transition lands on whichever frame covers most of it.
+ * Rounding errors never accumulate: at 60 Hz an 8 Hz flicker settles
+ * into a 4-4-4-3 frame pattern whose average is exactly FREQ.
+ *
+ * The refresh period starts at the display mode's refresh rate and is
+ * then refined from the measured interval between frames.
+ */
+public class FlickerScheduler {
+
+    /** Refresh rate to assume when the display does not report one. */
+    public static final double DEFAULTREFRESH = 60.0;
+
+    /** Weight of each new frame interval in the refresh estimate. */
+    public static final double SMOOTHING = 0.05;
+
+    /** Maximum relative deviation of a frame interval from the estimate
+     *  for it to count towards the refresh rate (dropped frames don't). */
+    public static final double TOLERANCE = 0.25;
+
+
+    /** Length of half a flicker period (in nanoseconds). */
+    final double halfPeriod;
+
+    /** Estimated display refresh period (in nanoseconds). */
+    double framePeriod;
+
+    /** Time the previous frame started (in nanoseconds), or 0. */
+    long lastFrame = 0;
+
+    /** Predicted time the current frame reaches the screen. */
+    long flipTime = 0;
+
+    /** Presentation time of the first flicker half-period. */
+    long anchor = 0;
+
+
+    /**
+     * Create a scheduler for the given flicker frequency.
+     * @param freq          flicker frequency (in Hz)
+     * @param refreshRate   initial estimate of the refresh rate (in Hz)
+     */
+    public FlickerScheduler(double freq, double refreshRate) {
+        halfPeriod = 1e9 / (2 * freq);
+        framePeriod = 1e9 / refreshRate;
+    }
+
+    /**
+     * Mark the start of a new frame, and update the refresh estimate.
+     * Call once at the top of every draw().
+     * @param now   current System.nanoTime()
+     */
+    public void frame(long now) {
+        if (lastFrame != 0) {
+            double interval = now - lastFrame;
+            if (Math.abs(interval - framePeriod) < TOLERANCE * framePeriod) {
+                framePeriod += SMOOTHING * (interval - framePeriod);
+            }
+        }
+        lastFrame = now;
+        // Double-buffered with vsync: drawn now, shown at the next refresh
+        flipTime = now + (long) framePeriod;
+    }
+
+    /**
+     * Anchor the flicker timeline so that the current frame shows the
+     * first (white) half-period.
+     */
+    public void start() {
+        anchor = flipTime;
+    }
+
+    /**
+     * Number of flicker half-periods elapsed since start(), sampled at
+     * the middle of the current frame's refresh interval.
+     * @return  the half-period index of the current frame
+     */
+    public int cycle() {
+        return cycleAt(flipTime);
+    }
+
+    /**
+     * Number of flicker half-periods elapsed since start(), sampled at
+     * the middle of the refresh interval starting at a given time, such
+     * as the swap that actually showed a frame.
+     * @param time  start of a refresh interval (System.nanoTime() units)
+     * @return      the half-period index at that refresh
+     */
+    public int cycleAt(long time) {
+        return (int) Math.floor((time + framePeriod / 2 - anchor)
+                / halfPeriod);
+    }
+
+    /**
+     * Time elapsed since start(), sampled at the middle of the current
+     * frame's refresh interval, for stimuli modulated continuously
+     * rather than in half-periods.
+     * @return  the presentation time of the current frame (in seconds)
+     */
+    public double seconds() {
+        return (flipTime + framePeriod / 2 - anchor) / 1e9;
+    }
+
+    /**
+     * @return  true if the current frame is in the white half-period
+     */
+    public boolean isLight() {
+        return cycle() % 2 == 0;
+    }
+
+    /**
+     * @return  predicted time the current frame reaches the screen
+     *          (in System.nanoTime() units)
+     */
+    public long getFlipTime() {
+        return flipTime;
+    }
+
+    /**
+     * @return  measured display refresh period (in nanoseconds)
+     */
+    public double getFramePeriod() {
+        return framePeriod;
+    }
+
+    /**
+     * @return  measured display refresh rate (in Hz)
+     */
+    public double getRefreshRate() {
+        return 1e9 / framePeriod;
+    }
+
+    /**
+     * Refresh rate of the default screen, as reported by its display mode.
+     * @return  the refresh rate (in Hz), or DEFAULTREFRESH if unknown
+     */
+    public static double displayRefreshRate() {
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDisplayMode()
+                    .getRefreshRate();
+            if (rate != DisplayMode.REFRESH_RATE_UNKNOWN) {
+                return rate;
+            }
+        } catch (java.awt.HeadlessException e) {
+            // Fall through to the default
+        }
+        return DEFAULTREFRESH;
+    }
+}
@@ -0,0 +1,485 @@
+package braintobrain.experiment3;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timing of every frame, to tell whether the flicker of each trial was
+ * shown as scheduled.
+ *
+ * For each frame, the animation thread keeps the start and end of its
+ * draw(), the swap that showed it (with vsync, the start of the next
+ * draw(), as in SwapTimer), and the flicker half-period it was drawn for
+ * against the one its swap actually fell in. A frame is flagged:
+ *  - DOUBLED if it missed its refresh, so the previous frame was shown
+ *    again (its swap came more than LATE refreshes after the previous)
+ *  - DROPPED if the previous frame was replaced before it was fully
+ *    shown (the swap came less than EARLY refreshes after it)
+ *  - PHASE if, in a flickering condition, it showed the wrong half of
+ *    the flicker period at the time it was actually on screen (give
+ *    or take JITTER refreshes, since a frame that falls right on a
+ *    transition may show either half)
+ * A trial with any flagged frame is invalid.
+ *
+ * Frames are kept in a ring of the last CAPACITY, filled in place and
+ * published with an ordered store once their swap is known, as in
+ * MarkerSender. A monitor thread reports, within POLL nanoseconds, the
+ * first flagged frame of each trial and the frame accuracy of each trial
+ * as it ends, so no I/O is done on the animation thread. The totals,
+ * trial validity and recent frames can be read live from any thread.
+ */
+public class FrameTelemetry implements Runnable {
+
+    /** Number of frames kept (over a minute at 60 Hz). */
+    public static final int CAPACITY = 1 << 12;
+
+    /** Swap interval (in refreshes) above which a refresh was missed. */
+    public static final double LATE = 1.5;
+
+    /** Swap interval (in refreshes) below which a frame went unseen. */
+    public static final double EARLY = 0.5;
+
+    /** Swap time error (in refreshes) tolerated by the phase check. */
+    public static final double JITTER = 0.25;
+
+    /** Time between reports of the monitor thread (in ns). */
+    public static final long POLL = 100000000L;
+
+    /** Flag: the frame missed its refresh (the previous one repeated). */
+    public static final int DOUBLED = 1;
+
+    /** Flag: the previous frame was replaced before it was shown. */
+    public static final int DROPPED = 2;
+
+    /** Flag: the frame showed the wrong flicker half-period. */
+    public static final int PHASE = 4;
+
+    /** Mask for wrapping frame sequence numbers to slot indices. */
+    static final int MASK = CAPACITY - 1;
+
+
+    /** Flicker timeline the frames are checked against. */
+    final FlickerScheduler flicker;
+
+    /** Frame number (frameCount) of each frame. */
+    final int[] numbers = new int[CAPACITY];
+
+    /** Start of each frame's draw() (System.nanoTime() units). */
+    final long[] starts = new long[CAPACITY];
+
+    /** End of each frame's draw(). */
+    final long[] ends = new long[CAPACITY];
+
+    /** Swap that showed each frame. */
+    final long[] swaps = new long[CAPACITY];
+
+    /** Flicker half-period each frame was drawn for. */
+    final int[] intended = new int[CAPACITY];
+
+    /** Flicker half-period each frame was on screen in. */
+    final int[] shown = new int[CAPACITY];
+
+    /** Whether each frame showed a flickering condition. */
+    final boolean[] flickering = new boolean[CAPACITY];
+
+    /** Flags of each frame. */
+    final int[] flags = new int[CAPACITY];
+
+    /** Trial of each frame, or -1 for none. */
+    final int[] trialOf = new int[CAPACITY];
+
+    /** Frames drawn; the last may still be waiting for its swap. */
+    long drawn = 0;
+
+    /** Frames whose swap is known, and whose slots are complete. */
+    final AtomicLong published = new AtomicLong();
+
+    /** Interval between successive swaps. */
+    final LatencyHistogram intervals = new LatencyHistogram();
+
+    /** Time spent in each draw(). */
+    final LatencyHistogram draws = new LatencyHistogram();
+
+    /** Number of frames shown. */
+    long frames = 0;
+
+    /** Number of DOUBLED frames. */
+    long doubled = 0;
+
+    /** Number of DROPPED frames. */
+    long dropped = 0;
+
+    /** Number of PHASE frames. */
+    long phaseErrors = 0;
+
+
+    /** Marker code of each trial. */
+    final int[] trialCodes;
+
+    /** Frames shown in each trial. */
+    final int[] trialFrames;
+
+    /** DOUBLED frames of each trial. */
+    final int[] trialDoubled;
+
+    /** DROPPED frames of each trial. */
+    final int[] trialDropped;
+
+    /** PHASE frames of each trial. */
+    final int[] trialPhase;
+
+    /** Swap of the first frame of each trial. */
+    final long[] trialFirst;
+
+    /** Swap of the last frame of each trial. */
+    final long[] trialLast;
+
+    /** Longest draw() of each trial. */
+    final long[] trialMaxDraw;
+
+    /** Number of trials started. */
+    int trials = 0;
+
+    /** Trial in progress, or -1 for none. */
+    int current = -1;
+
+    /** Number of trials ended, whose summaries are complete. */
+    final AtomicInteger closed = new AtomicInteger();
+
+
+    /** Monitor thread. */
+    final Thread thread;
+
+    /** False once close() has been called. */
+    volatile boolean running = true;
+
+
+    /**
+     * Create the telemetry of a session. Call start() before the first
+     * frame.
+     * @param flicker   the flicker timeline of the session
+     * @param trials    number of trials to summarize
+     */
+    public FrameTelemetry(FlickerScheduler flicker, int trials) {
+        this.flicker = flicker;
+        trialCodes = new int[trials];
+        trialFrames = new int[trials];
+        trialDoubled = new int[trials];
+        trialDropped = new int[trials];
+        trialPhase = new int[trials];
+        trialFirst = new long[trials];
+        trialLast = new long[trials];
+        trialMaxDraw = new long[trials];
+        thread = new Thread(this, "frame-telemetry");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start the monitor thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Report the swap that showed the last frame drawn, and publish it.
+     * Animation thread only; call at the top of draw(), after the
+     * flicker's frame().
+     * @param time  swap time (System.nanoTime() units)
+     */
+    public void swapped(long time) {
+        long k = drawn - 1;
+        if (k < published.get()) {
+            return; // No frame waiting for its swap
+        }
+        int i = (int) k & MASK;
+        swaps[i] = time;
+        shown[i] = flicker.cycleAt(time);
+        int f = 0;
+        if (k > 0) {
+            long interval = time - swaps[(int) (k - 1) & MASK];
+            intervals.record(interval);
+            double period = flicker.getFramePeriod();
+            if (interval > LATE * period) {
+                f = DOUBLED;
+            } else if (interval < EARLY * period) {
+                f = DROPPED;
+            }
+        }
+        if (flickering[i] && ((shown[i] ^ intended[i]) & 1) != 0) {
+            long jitter = (long) (JITTER * flicker.getFramePeriod());
+            int early = flicker.cycleAt(time - jitter);
+            int late = flicker.cycleAt(time + jitter);
+            if (((early ^ intended[i]) & 1) != 0
+                    && ((late ^ intended[i]) & 1) != 0) {
+                f |= PHASE;
+            }
+        }
+        flags[i] = f;
+        long draw = ends[i] - starts[i];
+        draws.record(draw);
+
+        frames++;
+        int t = trialOf[i];
+        if (t >= 0) {
+            if (trialFrames[t]++ == 0) {
+                trialFirst[t] = time;
+            }
+            trialLast[t] = time;
+            trialMaxDraw[t] = Math.max(trialMaxDraw[t], draw);
+        }
+        if ((f & DOUBLED) != 0) {
+            doubled++;
+            if (t >= 0) {
+                trialDoubled[t]++;
+            }
+        }
+        if ((f & DROPPED) != 0) {
+            dropped++;
+            if (t >= 0) {
+                trialDropped[t]++;
+            }
+        }
+        if ((f & PHASE) != 0) {
+            phaseErrors++;
+            if (t >= 0) {
+                trialPhase[t]++;
+            }
+        }
+        published.lazySet(k + 1); // Publish the slot before the count
+    }
+
+    /**
+     * Report a frame drawn. Animation thread only; call at the end of
+     * draw().
+     * @param frame     frame number (frameCount)
+     * @param start     start of its draw() (System.nanoTime() units)
+     * @param end       end of its draw()
+     * @param cycle     flicker half-period it was drawn for
+     * @param flickers  whether it shows a flickering condition
+     */
+    public void drawn(int frame, long start, long end, int cycle,
+            boolean flickers) {
+        int i = (int) drawn & MASK;
+        numbers[i] = frame;
+        starts[i] = start;
+        ends[i] = end;
+        intended[i] = cycle;
+        flickering[i] = flickers;
+        trialOf[i] = current;
+        drawn++;
+    }
+
+    /**
+     * Start a trial, ending any in progress. Animation thread only.
+     * @param code  marker code of the trial
+     */
+    public void trial(int code) {
+        endTrial();
+        if (trials < trialCodes.length) {
+            current = trials++;
+            trialCodes[current] = code;
+        }
+    }
+
+    /**
+     * End the trial in progress, if any. Animation thread only. Every
+     * frame drawn so far must have been reported swapped.
+     */
+    public void endTrial() {
+        if (current >= 0) {
+            closed.lazySet(current + 1); // Publish its summary
+            current = -1;
+        }
+    }
+
+    /**
+     * @return  number of frames shown so far; safe from any thread
+     */
+    public long getFrames() {
+        published.get(); // See the totals of every published frame
+        return frames;
+    }
+
+    /**
+     * @return  number of DOUBLED frames so far; safe from any thread
+     */
+    public long getDoubled() {
+        published.get();
+        return doubled;
+    }
+
+    /**
+     * @return  number of DROPPED frames so far; safe from any thread
+     */
+    public long getDropped() {
+        published.get();
+        return dropped;
+    }
+
+    /**
+     * @return  number of PHASE frames so far; safe from any thread
+     */
+    public long getPhaseErrors() {
+        published.get();
+        return phaseErrors;
+    }
+
+    /**
+     * @return  number of trials ended so far; safe from any thread
+     */
+    public int getTrials() {
+        return closed.get();
+    }
+
+    /**
+     * @param t index of an ended trial (less than getTrials())
+     * @return  its marker code
+     */
+    public int getTrialCode(int t) {
+        return trialCodes[t];
+    }
+
+    /**
+     * @param t index of an ended trial (less than getTrials())
+     * @return  true if none of its frames was flagged
+     */
+    public boolean isValid(int t) {
+        return trialDoubled[t] + trialDropped[t] + trialPhase[t] == 0;
+    }
+
+    /**
+     * Copy the most recent frames, for a live display. Safe from any
+     * thread.
+     * @param swapTimes     swap time of each frame (output), oldest first
+     * @param drawTimes     time spent in each frame's draw() (output)
+     * @param frameFlags    flags of each frame (output)
+     * @return              number of frames copied, at most the length
+     *                      of the arrays and half of CAPACITY
+     */
+    public int recent(long[] swapTimes, long[] drawTimes, int[] frameFlags) {
+        long end = published.get();
+        int n = (int) Math.min(Math.min(end, CAPACITY / 2),
+                swapTimes.length);
+        // Only the slots after the newest are being rewritten, so the
+        // newest half of the ring stays intact while it is copied
+        for (int j = 0; j < n; j++) {
+            int i = (int) (end - n + j) & MASK;
+            swapTimes[j] = swaps[i];
+            drawTimes[j] = ends[i] - starts[i];
+            frameFlags[j] = flags[i];
+        }
+        return n;
+    }
+
+    /**
+     * @return  histogram of intervals between swaps; only safe to read
+     *          after close()
+     */
+    public LatencyHistogram getIntervals() {
+        return intervals;
+    }
+
+    /**
+     * @return  histogram of time spent in draw(); only safe to read
+     *          after close()
+     */
+    public LatencyHistogram getDrawTimes() {
+        return draws;
+    }
+
+    /**
+     * Print the frame intervals, draw times and totals. Only safe after
+     * close().
+     * @param out   stream to print to
+     */
+    public void print(PrintStream out) {
+        intervals.print(out, "Frame interval");
+        draws.print(out, "Draw time");
+        out.println(frames + " frames: " + doubled + " doubled, "
+                + dropped + " dropped, " + phaseErrors + " phase errors");
+    }
+
+    /**
+     * End any trial in progress, report the remaining frames and trials,
+     * and stop the monitor thread. Animation thread only.
+     */
+    public void close() {
+        endTrial();
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean[] reported = new boolean[trialCodes.length];
+        long seen = 0;
+        int summarized = 0;
+        while (true) {
+            boolean last = !running;
+            long end = published.get();
+            if (end - seen > CAPACITY / 2) {
+                System.err.println("Frame telemetry fell behind: "
+                        + (end - CAPACITY / 2 - seen) + " frames unchecked");
+                seen = end - CAPACITY / 2;
+            }
+            for (; seen < end; seen++) {
+                int i = (int) seen & MASK;
+                int t = trialOf[i];
+                if (flags[i] != 0 && t >= 0 && !reported[t]) {
+                    reported[t] = true;
+                    System.out.println("Trial " + trialCodes[t]
+                            + " invalid from frame " + numbers[i] + ": "
+                            + describe(flags[i]));
+                }
+            }
+            for (int c = closed.get(); summarized < c; summarized++) {
+                System.out.println(summary(summarized));
+            }
+            if (last) {
+                break;
+            }
+            LockSupport.parkNanos(this, POLL);
+        }
+    }
+
+    /**
+     * @param f flags of a frame
+     * @return  the flags, in words
+     */
+    static String describe(int f) {
+        StringBuilder text = new StringBuilder();
+        if ((f & DOUBLED) != 0) {
+            text.append("missed its refresh");
+        }
+        if ((f & DROPPED) != 0) {
+            text.append("replaced the previous frame early");
+        }
+        if ((f & PHASE) != 0) {
+            text.append(text.length() > 0 ? ", " : "")
+                    .append("wrong flicker phase");
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param t index of an ended trial
+     * @return  its frame accuracy, in one line
+     */
+    String summary(int t) {
+        long span = trialLast[t] - trialFirst[t];
+        return String.format("Trial %d: %d frames at %.2f Hz, %d doubled,"
+                + " %d dropped, %d phase errors, longest draw %.1f ms: %s",
+                trialCodes[t], trialFrames[t], span > 0
+                ? (trialFrames[t] - 1) * 1e9 / span : 0.0, trialDoubled[t],
+                trialDropped[t], trialPhase[t], trialMaxDraw[t] / 1e6,
+                isValid(t) ? "valid" : "INVALID");
+    }
+}
@@ -0,0 +1,179 @@
+package braintobrain.experiment3;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+
+/**
+ * A session of Experiment3 without a display, sound card or network, for
+ * deterministic replays and timing tests: the same Presenter, stepped
+ * from a virtual clock that advances one refresh per frame, as fast as
+ * it can. Markers and cues are kept in an EventLog instead of being sent
+ * or played, and nothing is drawn (see PresenterBench for drawing
+ * costs), so a whole session takes milliseconds on any machine.
+ *
+ * Closed-loop protocols run open loop here, on the protocol's timing:
+ * live detections need the OpenBCI GUI. A SessionRecorder can still be
+ * attached to the presenter before run().
+ */
+public class HeadlessPresenter {
+
+    /** Cue number of the state-change beep in the log. */
+    public static final int BEEP = 0;
+
+    /** Cue number of the saccade cue in the log. */
+    public static final int ALARM = 1;
+
+    /** Virtual time of the first frame (0 would mean "no frame yet"). */
+    public static final long START = 1000000000L;
+
+
+    /** Markers and cues of the session. */
+    final EventLog log = new EventLog();
+
+    /** The session's state machine. */
+    final Presenter presenter;
+
+    /** Virtual refresh period (in nanoseconds). */
+    final double framePeriod;
+
+    /** Number of frames stepped. */
+    int frames = 0;
+
+
+    /**
+     * Prepare a session.
+     * @param protocol      the experiment variant
+     * @param order         its trial order (see Protocol.sequence())
+     * @param refreshRate   virtual refresh rate (in Hz)
+     */
+    public HeadlessPresenter(Protocol protocol, int[] order,
+            double refreshRate) {
+        framePeriod = 1e9 / refreshRate;
+        presenter = new Presenter(protocol, order, refreshRate, log, log,
+                BEEP, ALARM);
+    }
+
+    /**
+     * Step one frame, at a given virtual time. Use it instead of run() to
+     * simulate late or early frames.
+     * @param now   start of the frame (virtual System.nanoTime() units)
+     */
+    public void step(long now) {
+        frames++;
+        presenter.frame(frames, now);
+        presenter.drawn(frames, now, now);
+    }
+
+    /**
+     * Run the session to its end state, one refresh per frame, then
+     * close its telemetry.
+     * @return  number of frames stepped in all
+     */
+    public int run() {
+        while (!presenter.isFinished()) {
+            step(START + Math.round(frames * framePeriod));
+        }
+        presenter.getTelemetry().close();
+        return frames;
+    }
+
+    /**
+     * @return  markers and cues of the session so far
+     */
+    public EventLog getLog() {
+        return log;
+    }
+
+    /**
+     * @return  the session's state machine
+     */
+    public Presenter getPresenter() {
+        return presenter;
+    }
+
+    /**
+     * @return  number of frames stepped so far
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Print every marker and cue, with its time since the first frame.
+     * @param out   stream to print to
+     */
+    public void print(PrintStream out) {
+        for (int i = 0; i < log.getMarkerCount(); i++) {
+            out.printf("%10.4f  marker %d%n",
+                    (log.getTime(i) - START) / 1e9, log.getCode(i));
+        }
+        for (int i = 0; i < log.getCueCount(); i++) {
+            out.printf("%10.4f  cue %s%n", (log.getOnset(i) - START) / 1e9,
+                    log.getCue(i) == ALARM ? "alarm" : "beep");
+        }
+    }
+
+    /**
+     * Run sessions of a protocol headless, print the first one's events
+     * and timing, and report the time taken.
+     * @param args  options, then the protocol file: -refresh HZ (60),
+     *              -seed N (the protocol's), -sessions N (1)
+     * @throws IOException  if the protocol cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        double refresh = FlickerScheduler.DEFAULTREFRESH;
+        String seed = null;
+        int sessions = 1;
+        int a = 0;
+        for (; a + 1 < args.length && args[a].startsWith("-"); a += 2) {
+            String value = args[a + 1];
+            if (args[a].equals("-refresh")) {
+                refresh = Double.parseDouble(value);
+            } else if (args[a].equals("-seed")) {
+                seed = value;
+            } else if (args[a].equals("-sessions")) {
+                sessions = Integer.parseInt(value);
+            } else {
+                System.err.println("Unknown option " + args[a]);
+                return;
+            }
+        }
+        if (args.length - a != 1) {
+            System.err.println("Usage: HeadlessPresenter [-refresh HZ]"
+                    + " [-seed N] [-sessions N] protocol");
+            return;
+        }
+        InputStream in = new FileInputStream(args[a]);
+        Properties props = Protocol.load(in);
+        if (seed != null) {
+            props.setProperty("seed", seed);
+        }
+        Protocol protocol = new Protocol(props);
+        int[] order = protocol.sequence();
+        System.out.println(protocol.describe(order));
+
+        long frames = 0;
+        long start = System.nanoTime();
+        HeadlessPresenter first = null;
+        for (int s = 0; s < sessions; s++) {
+            HeadlessPresenter session = new HeadlessPresenter(protocol,
+                    order, refresh);
+            frames += session.run();
+            if (first == null) {
+                first = session;
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        first.print(System.out);
+        first.presenter.getTelemetry().print(System.out);
+        first.presenter.getSwapLatency().print(System.out,
+                "Marker decision -> swap");
+        System.out.printf("%d sessions, %d frames in %.3f s:"
+                + " %.0f frames/s%n", sessions, frames, elapsed,
+                frames / elapsed);
+    }
+}
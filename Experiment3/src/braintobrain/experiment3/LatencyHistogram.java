@@ -0,0 +1,133 @@
+package braintobrain.experiment3;
+
+import java.io.PrintStream;
+
+/**
+ * Log-linear latency histogram, in the style of HdrHistogram.
+ *
+ * Values (in nanoseconds) are counted in buckets whose width doubles
+ * every octave, with SUBBUCKETS buckets per octave, so every recorded
+ * value is kept to within about 3% regardless of magnitude. Recording
+ * is a few shifts and an array increment, with no allocation; a
+ * histogram must only be recorded into from one thread.
+ */
+public class LatencyHistogram {
+
+    /** Number of bits of precision kept for each value. */
+    public static final int PRECISION = 6;
+
+    /** Number of buckets per octave above the linear range. */
+    public static final int SUBBUCKETS = 1 << (PRECISION - 1);
+
+    /** Percentiles listed by print(). */
+    static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+
+    /** Labels of the percentiles listed by print(). */
+    static final String[] LABELS = {"p50", "p90", "p99", "p99.9", "max"};
+
+
+    /** Number of values recorded in each bucket. */
+    final long[] counts = new long[(64 - PRECISION + 2) * SUBBUCKETS];
+
+    /** Number of values recorded. */
+    long total = 0;
+
+    /** Sum of all values recorded. */
+    long sum = 0;
+
+    /** Smallest value recorded. */
+    long min = Long.MAX_VALUE;
+
+    /** Largest value recorded. */
+    long max = 0;
+
+
+    /**
+     * Record a latency. Negative values are counted as 0.
+     * @param value latency (in nanoseconds)
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @return  number of values recorded
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * Value at a given percentile, to within the histogram's precision.
+     * @param percentile    percentile in [0, 100]
+     * @return              the value (in nanoseconds), or 0 if empty
+     */
+    public long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, Math.max(min, highest(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Print a one-line percentile summary (in microseconds).
+     * @param out   stream to print to
+     * @param name  label for the line
+     */
+    public void print(PrintStream out, String name) {
+        StringBuilder line = new StringBuilder(name);
+        line.append(": n=").append(total);
+        if (total > 0) {
+            line.append(String.format(" min=%.1f mean=%.1f",
+                    min / 1e3, sum / 1e3 / total));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                line.append(String.format(" %s=%.1f", LABELS[i],
+                        percentile(PERCENTILES[i]) / 1e3));
+            }
+            line.append(" (us)");
+        }
+        out.println(line);
+    }
+
+    /**
+     * Bucket index of a non-negative value.
+     * @param value the value
+     * @return      its bucket
+     */
+    static int index(long value) {
+        if (value < 2 * SUBBUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (PRECISION - 1);
+        return shift * SUBBUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Largest value that falls in a bucket.
+     * @param index the bucket
+     * @return      its upper bound
+     */
+    static long highest(int index) {
+        if (index < 2 * SUBBUCKETS) {
+            return index;
+        }
+        int shift = index / SUBBUCKETS - 1;
+        long lowest = (long) (index - shift * SUBBUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,195 @@
+package braintobrain.experiment3;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import oscP5.OscP5;
+import oscP5.OscMessage;
+import netP5.NetAddress;
+
+/**
+ * Non-blocking dispatch of state markers to OpenBCI_GUI.
+ *
+ * The animation thread only writes a marker code and its timestamp into
+ * a preallocated slot of a single-producer/single-consumer ring, and
+ * publishes it with an ordered store. A dedicated sender thread drains
+ * the ring and performs the UDP send, so draw() never waits on socket
+ * I/O.
+ *
+ * Each OSC message carries the marker code, followed by the time it
+ * marks (in nanoseconds since the sender was created, as a double). That
+ * is the time passed to mark(), not the time the packet left the socket.
+ * The delay from each marker's decision to its send is recorded in a
+ * LatencyHistogram, readable once the sender has been closed.
+ */
+public class MarkerSender implements Runnable, MarkerSink {
+
+    /** Longest time the sender thread sleeps between polls (in ns). */
+    public static final long MAXWAIT = 1000000L;
+
+
+    /**
+     * Preallocated marker slot.
+     */
+    static final class Slot {
+        /** Marker code, as sent to the EEG output file. */
+        int code;
+
+        /** Time the marker refers to (System.nanoTime() units). */
+        long time;
+
+        /** Time the marker was decided on (System.nanoTime() units). */
+        long decided;
+
+        /** Message reused for every send from this slot. */
+        final OscMessage message;
+
+        /**
+         * @param addrPattern   OSC address pattern of the message
+         */
+        Slot(String addrPattern) {
+            message = new OscMessage(addrPattern);
+        }
+    }
+
+
+    /** Ring of marker slots; length is a power of two. */
+    final Slot[] slots;
+
+    /** Mask for wrapping sequence numbers to slot indices. */
+    final int mask;
+
+    /** Sequence number of the next slot the sender will read. */
+    final AtomicLong head = new AtomicLong();
+
+    /** Sequence number of the next slot the producer will write. */
+    final AtomicLong tail = new AtomicLong();
+
+    /** Number of markers dropped because the ring was full. */
+    int dropped = 0;
+
+    /** Delay from marker decision to send; written by the sender thread. */
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Reference time for outgoing timestamps (System.nanoTime()). */
+    final long epoch = System.nanoTime();
+
+    /** Socket used to send the messages. */
+    final OscP5 osc;
+
+    /** Destination of the messages. */
+    final NetAddress address;
+
+    /** Sender thread. */
+    final Thread thread;
+
+    /** False once close() has been called. */
+    volatile boolean running = true;
+
+
+    /**
+     * Create a sender. Call start() before marking.
+     * @param osc           socket to send from
+     * @param address       destination (OpenBCI_GUI)
+     * @param addrPattern   OSC address pattern of each marker message
+     * @param capacity      minimum number of markers that can be queued
+     */
+    public MarkerSender(OscP5 osc, NetAddress address, String addrPattern,
+            int capacity) {
+        this.osc = osc;
+        this.address = address;
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(addrPattern);
+        }
+        mask = size - 1;
+        thread = new Thread(this, "marker-sender");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start the sender thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue a marker for sending. Never blocks; must only be called from
+     * one thread (the animation thread).
+     * @param code      marker code
+     * @param time      time the marker refers to (System.nanoTime() units)
+     * @param decided   time the marker was decided on
+     * @return          false if the ring was full and the marker was dropped
+     */
+    @Override
+    public boolean mark(int code, long time, long decided) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped++;
+            return false;
+        }
+        Slot slot = slots[(int) t & mask];
+        slot.code = code;
+        slot.time = time;
+        slot.decided = decided;
+        tail.lazySet(t + 1); // Publish slot contents before the new tail
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * @return  number of markers dropped because the ring was full
+     */
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return  histogram of decision-to-send latencies; only safe to read
+     *          after close()
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Send any queued markers, then stop the sender thread.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long h = head.get();
+        while (running || h != tail.get()) {
+            if (h == tail.get()) {
+                LockSupport.parkNanos(this, MAXWAIT);
+                continue;
+            }
+            Slot slot = slots[(int) h & mask];
+            send(slot);
+            head.lazySet(++h); // Hand the slot back to the producer
+        }
+    }
+
+    /**
+     * Send the marker in a slot.
+     * @param slot  the slot to send
+     */
+    void send(Slot slot) {
+        slot.message.clearArguments();
+        slot.message.add(slot.code);
+        slot.message.add((double) (slot.time - epoch));
+        osc.send(slot.message, address);
+        latency.record(System.nanoTime() - slot.decided);
+    }
+}
@@ -0,0 +1,17 @@
+package braintobrain.experiment3;
+
+/**
+ * Destination of the presenter's state markers: the OpenBCI GUI (see
+ * MarkerSender), or memory in a headless session (see EventLog).
+ */
+public interface MarkerSink {
+
+    /**
+     * Take a marker. Never blocks; called from the animation thread.
+     * @param code      marker code
+     * @param time      time the marker refers to (System.nanoTime() units)
+     * @param decided   time the marker was decided on
+     * @return          false if the marker was dropped
+     */
+    boolean mark(int code, long time, long decided);
+}
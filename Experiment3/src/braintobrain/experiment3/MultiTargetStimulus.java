@@ -0,0 +1,104 @@
+package braintobrain.experiment3;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+
+/**
+ * Several SSVEP stimulus regions, each flickering at its own frequency
+ * and phase.
+ *
+ * Instead of alternating black and white on whole frames, which only
+ * gives frequencies that divide the refresh rate, each region's
+ * luminance follows a sampled sinusoid,
+ *
+ *     L(t) = (1 + sin(2 pi (f t + phase))) / 2,
+ *
+ * evaluated once per refresh at the time the frame is on screen. Any
+ * frequency below half the refresh rate (6, 7.5, 8.57, 10 Hz...) can be
+ * presented this way. All regions are drawn as one immediate-mode QUADS
+ * shape with per-quad fills, which P2D sends as a single draw call, so
+ * adding regions costs no extra frame time.
+ */
+public class MultiTargetStimulus {
+
+    /** Frequency of each region (in Hz). */
+    final double[] frequencies;
+
+    /** Phase of each region (in cycles, from 0 to 1). */
+    final double[] phases;
+
+    /** Corners of each region: left, top, right, bottom (in pixels). */
+    final float[] bounds;
+
+
+    /**
+     * Create a stimulus with regions evenly spaced on a circle around a
+     * point, the first to the right of it, going clockwise.
+     * @param frequencies   frequency of each region (in Hz)
+     * @param phases        phase of each region (in cycles)
+     * @param x             horizontal center of the circle (in pixels)
+     * @param y             vertical center of the circle (in pixels)
+     * @param distance      radius of the circle (in pixels)
+     * @param size          side of each (square) region (in pixels)
+     */
+    public MultiTargetStimulus(double[] frequencies, double[] phases,
+            float x, float y, float distance, float size) {
+        if (phases.length != frequencies.length) {
+            throw new IllegalArgumentException(
+                    "Need one phase per stimulus frequency");
+        }
+        this.frequencies = frequencies.clone();
+        this.phases = phases.clone();
+        bounds = new float[4 * frequencies.length];
+        for (int i = 0; i < frequencies.length; i++) {
+            double angle = 2 * Math.PI * i / frequencies.length;
+            float cx = x + distance * (float) Math.cos(angle);
+            float cy = y + distance * (float) Math.sin(angle);
+            bounds[4 * i] = cx - size / 2;
+            bounds[4 * i + 1] = cy - size / 2;
+            bounds[4 * i + 2] = cx + size / 2;
+            bounds[4 * i + 3] = cy + size / 2;
+        }
+    }
+
+    /**
+     * @return  number of regions
+     */
+    public int size() {
+        return frequencies.length;
+    }
+
+    /**
+     * Luminance of a region.
+     * @param region    index of the region
+     * @param seconds   time since the flicker started (in seconds)
+     * @return          luminance, from 0 (black) to 1 (white)
+     */
+    public double luminance(int region, double seconds) {
+        return 0.5 * (1 + Math.sin(2 * Math.PI
+                * (frequencies[region] * seconds + phases[region])));
+    }
+
+    /**
+     * Draw every region, in one batch.
+     * @param g         graphics to draw to
+     * @param seconds   time at which the frame will be on screen, since
+     *                  the flicker started (in seconds)
+     */
+    public void draw(PGraphics g, double seconds) {
+        g.noStroke();
+        g.beginShape(PConstants.QUADS);
+        for (int i = 0; i < frequencies.length; i++) {
+            g.fill((float) (255 * luminance(i, seconds)));
+            float left = bounds[4 * i];
+            float top = bounds[4 * i + 1];
+            float right = bounds[4 * i + 2];
+            float bottom = bounds[4 * i + 3];
+            g.vertex(left, top);
+            g.vertex(right, top);
+            g.vertex(right, bottom);
+            g.vertex(left, bottom);
+        }
+        g.endShape();
+    }
+}
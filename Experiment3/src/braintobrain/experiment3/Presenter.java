@@ -0,0 +1,353 @@
+package braintobrain.experiment3;
+
+/**
+ * The state machine of a session, apart from the display: steps through
+ * the Timeline of a protocol one frame at a time, switching conditions
+ * and sending each event's marker and cue, stamped with the frame that
+ * shows it.
+ *
+ * Every time is given by the caller, so a session runs the same against
+ * the real clock (Experiment3, from draw()) or a virtual one
+ * (HeadlessPresenter). For each frame, call frame() at its start, draw
+ * the current condition, then call drawn().
+ */
+public class Presenter {
+
+    /** Closed-loop wait: for nothing (the protocol's timing only). */
+    public static final int NONE = 0;
+
+    /** Closed-loop wait: for SSVEP lock-in. */
+    public static final int SSVEP = 1;
+
+    /** Closed-loop wait: for a completed saccade. */
+    public static final int SACCADE = 2;
+
+
+    /** Experiment variant being run. */
+    final Protocol protocol;
+
+    /** Every event of the experiment, precomputed from the protocol. */
+    final Timeline timeline;
+
+    /** Vsync-locked timeline for the flicker. */
+    final FlickerScheduler flicker;
+
+    /** Timing of every frame, and the frame accuracy of each trial. */
+    final FrameTelemetry telemetry;
+
+    /** Delay from marker decisions to the swap that shows them. */
+    final SwapTimer swaps = new SwapTimer();
+
+    /** Destination of the markers. */
+    final MarkerSink markers;
+
+    /** Destination of the cues. */
+    final CueSink cues;
+
+    /** Cue for state changes. */
+    final int beep;
+
+    /** Cue for saccades. */
+    final int alarm;
+
+    /** Live detections, in closed-loop mode (or null). */
+    ClosedLoop loop;
+
+    /** The presenter's own log of the session (or null). */
+    SessionRecorder recorder;
+
+    /** Minimum half-periods between gated events. */
+    int minimumCycles;
+
+    /** The same minimum, in nanoseconds. */
+    long minimumTime;
+
+    /** Start of the first frame, or 0 before it. */
+    long startTime = 0;
+
+    /** Index of the next event to fire in the timeline. */
+    int next = 0;
+
+    /** Condition being presented, or -1 for none. */
+    int condition = -1;
+
+    /**
+     * State of the program, sent to EEG output file.
+     * Possible states (with the default protocol).
+     * 0 = pre-experiment
+     * 1 = idle
+     * 2 = control
+     * 3 = experimental
+     * 4 = SSVEP only
+     * 5 = post-experiment
+     */
+    int state = 0;
+
+    /** Half-periods the remaining events have been brought forward by
+     *  closed-loop detections. */
+    int shift = 0;
+
+    /** Half-period at which the last event fired. */
+    int firedCycle = 0;
+
+    /** Time the last event reached the screen. */
+    long firedTime = 0;
+
+    /** First live sample after the last event, in closed-loop mode. */
+    long firedSample = 0;
+
+    /** Detection the next event waits for in closed-loop mode: NONE,
+     *  SSVEP or SACCADE. */
+    int waitFor = NONE;
+
+
+    /**
+     * Create the state machine of a session.
+     * @param protocol      the experiment variant
+     * @param order         its trial order (see Protocol.sequence())
+     * @param refreshRate   initial estimate of the refresh rate (in Hz)
+     * @param markers       destination of the markers
+     * @param cues          destination of the cues
+     * @param beep          cue for state changes
+     * @param alarm         cue for saccades
+     */
+    public Presenter(Protocol protocol, int[] order, double refreshRate,
+            MarkerSink markers, CueSink cues, int beep, int alarm) {
+        this.protocol = protocol;
+        this.markers = markers;
+        this.cues = cues;
+        this.beep = beep;
+        this.alarm = alarm;
+        timeline = protocol.compile(order);
+        flicker = new FlickerScheduler(protocol.getFrequency(), refreshRate);
+        telemetry = new FrameTelemetry(flicker, order.length);
+    }
+
+    /**
+     * Gate events on live detections. Call before the first frame.
+     * @param loop  the live detections
+     */
+    public void setLoop(ClosedLoop loop) {
+        this.loop = loop;
+        minimumCycles = (int) Math.round(protocol.closedLoopMinimum
+                / 1000.0 * 2 * protocol.getFrequency());
+        minimumTime = (long) (minimumCycles * 1e9
+                / (2 * protocol.getFrequency()));
+    }
+
+    /**
+     * Log frames, events and cues. Call before the first frame.
+     * @param recorder  the log
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Change state to newstate, and send state as a marker.
+     * Used for the states before the first trial.
+     * @param newstate  the number of the new state
+     * @param now       start of the current frame
+     */
+    void changeState(int newstate, long now) {
+        state = newstate; //update state
+        // Record new state in GUI data, stamped with the frame it changes
+        markers.mark(newstate, flicker.getFlipTime(), now);
+        if (recorder != null) {
+            recorder.event(newstate, flicker.getFlipTime());
+        }
+        if (protocol.stateCues) {
+            cues.play(beep, flicker.getFlipTime());
+            if (recorder != null) {
+                recorder.cue(beep, flicker.getFlipTime());
+            }
+        }
+    }
+
+    /**
+     * Fire the next event of the timeline: switch to its condition, send
+     * its marker, and play its cue.
+     * @param decided   time the event was decided on
+     */
+    void fire(long decided) {
+        int i = next++;
+        int type = timeline.type(i);
+        condition = timeline.condition(i);
+        if (type == Timeline.END) {
+            state = protocol.endState;
+            telemetry.endTrial();
+        } else {
+            if (type == Timeline.STATE) {
+                telemetry.trial(timeline.code(i));
+            }
+            state = protocol.states[condition];
+            swaps.decided(decided); // Shown by the next drawn()
+        }
+        // Record event in GUI data, stamped with the frame it changes
+        markers.mark(timeline.code(i), flicker.getFlipTime(), decided);
+        if (recorder != null) {
+            recorder.event(timeline.code(i), flicker.getFlipTime());
+        }
+        if (timeline.cued(i)) {
+            int cue = type == Timeline.GAZE ? alarm : beep;
+            cues.play(cue, flicker.getFlipTime());
+            if (recorder != null) {
+                recorder.cue(cue, flicker.getFlipTime());
+            }
+        }
+        firedCycle = flicker.cycle();
+        firedTime = flicker.getFlipTime();
+        if (loop != null) {
+            // Even gazes are saccades; otherwise wait for the flicker
+            if (type == Timeline.GAZE && timeline.code(i) % 2 == 0) {
+                waitFor = SACCADE;
+                loop.cue();
+            } else if (type == Timeline.STATE || type == Timeline.GAZE) {
+                waitFor = protocol.flicker[condition] ? SSVEP : NONE;
+                if (waitFor == SSVEP) {
+                    firedSample = loop.rearm();
+                }
+            } else {
+                waitFor = NONE;
+            }
+        }
+    }
+
+    /**
+     * Check whether the detection the next event waits for has been
+     * confirmed, in closed-loop mode.
+     * @param cycle half-period of the current frame
+     * @return      time the detection became actionable: when it was
+     *              made, or when the minimum hold after the last event
+     *              ended if that was later; 0 if it has not been made
+     *              since the last event (or the last event is too recent
+     *              to cut short)
+     */
+    long confirmed(int cycle) {
+        if (loop == null || waitFor == NONE || next >= timeline.size()
+                || cycle - firedCycle < minimumCycles) {
+            return 0;
+        }
+        long detected = waitFor == SSVEP ? loop.ssvepSince(firedSample)
+                : loop.saccadeSince(firedTime);
+        if (detected == 0) {
+            return 0;
+        }
+        // A detection during the hold only became actionable once the
+        // hold was over
+        return Math.max(detected, firedTime + minimumTime);
+    }
+
+    /**
+     * Start a frame: report the swap of the previous one, and fire every
+     * event due by the time this one is shown. The first frame plays the
+     * opening beep.
+     * @param frame frame number (frameCount)
+     * @param now   start of the frame (System.nanoTime() units); with
+     *              vsync, also the swap that showed the previous one
+     */
+    public void frame(int frame, long now) {
+        swaps.swapped(now); // Previous frame is on screen by now
+        flicker.frame(now);
+        telemetry.swapped(now);
+        if (recorder != null) {
+            recorder.frame(frame, flicker.getFlipTime());
+        }
+        if (startTime == 0) {
+            startTime = now;
+            cues.play(beep, now);
+        }
+
+        long idle = protocol.idleTime * 1000000L;
+        if (now - startTime > idle && state == 0) {
+            changeState(protocol.idleState, now);
+        }
+
+        if (now - startTime > 2 * idle && state == protocol.idleState) {
+            // First trial starts on this frame
+            flicker.start();
+            fire(now);
+        }
+
+        if (next > 0) {
+            int cycle = flicker.cycle();
+            long event = confirmed(cycle);
+            if (event != 0) {
+                // Bring the rest of the timeline forward to this frame
+                shift = timeline.cycle(next) - cycle;
+            }
+            // Fire every event due by this frame
+            while (next < timeline.size()
+                    && timeline.cycle(next) - shift <= cycle) {
+                fire(now);
+            }
+            if (event != 0) {
+                loop.reacted(event, flicker.getFlipTime());
+            }
+        }
+    }
+
+    /**
+     * End a frame, once the current condition has been drawn.
+     * @param frame frame number (frameCount)
+     * @param start start of the frame, as given to frame()
+     * @param end   end of its drawing
+     */
+    public void drawn(int frame, long start, long end) {
+        if (condition >= 0) {
+            swaps.drawn();
+        }
+        telemetry.drawn(frame, start, end, flicker.cycle(),
+                condition >= 0 && protocol.flicker[condition]
+                && !protocol.multi[condition]);
+    }
+
+    /**
+     * @return  true once the session has reached its end state
+     */
+    public boolean isFinished() {
+        return state == protocol.endState;
+    }
+
+    /**
+     * @return  condition being presented, or -1 for none
+     */
+    public int getCondition() {
+        return condition;
+    }
+
+    /**
+     * @return  state of the session (the last state marker sent)
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * @return  the timeline of the session
+     */
+    public Timeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * @return  the flicker timeline of the session
+     */
+    public FlickerScheduler getFlicker() {
+        return flicker;
+    }
+
+    /**
+     * @return  timing of every frame so far
+     */
+    public FrameTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * @return  delays from marker decisions to the swaps that showed them
+     */
+    public LatencyHistogram getSwapLatency() {
+        return swaps.getLatency();
+    }
+}
@@ -0,0 +1,480 @@
+package braintobrain.experiment3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Declarative description of an experiment variant.
+ *
+ * A protocol is read from a properties file, for example:
+ *
+ * <pre>
+ * conditions = control, experimental
+ * trials = 5
+ * trial.time = 22320
+ * gazes = 4
+ * gaze.cues = 2, 4
+ * end.state = 4
+ * control.state = 2
+ * control.target = true
+ * experimental.state = 3
+ * experimental.flicker = true
+ * experimental.target = true
+ * </pre>
+ *
+ * Global keys (with defaults):
+ *  - idle.time (15000): time in each of the pre-experiment and idle
+ *    states (in milliseconds)
+ *  - idle.state (1), end.state: marker codes of the idle and
+ *    post-experiment states
+ *  - trial.time (20000): length of each trial (in milliseconds)
+ *  - trials (5): number of trials of each condition
+ *  - order (random): trial order scheme, random, block or latin (see
+ *    TrialSequence)
+ *  - max.run (0): maximum number of consecutive trials of the same
+ *    condition, or 0 for no limit
+ *  - seed (random): seed for the trial order, to reproduce a session
+ *  - flicker.frequency (8.0): SSVEP frequency (in Hz)
+ *  - gazes (2): number of evenly spaced gaze markers per trial
+ *  - gaze.cues (all): gaze numbers (from 1) that get a saccade cue
+ *  - state.cues (true): whether state changes get an audio cue
+ *  - target.x (0.59), target.y (0.5): center of the saccade target, as
+ *    fractions of the screen width and height
+ *  - target.color (FF0000): RGB fill of the saccade target
+ *  - multi.frequencies (6, 7.5, 8.57, 10): frequency of each region of
+ *    the multi-target stimulus (in Hz)
+ *  - multi.phases (all 0): phase of each region (in cycles, 0 to 1)
+ *  - multi.distance (0.25): distance of the regions from the screen
+ *    center, as a fraction of the screen height
+ *  - multi.size (0.1): side of each region, as a fraction of the screen
+ *    width
+ *  - closed.loop (false): whether gazes and trials end early once the
+ *    live EEG confirms them (see ClosedLoop): a completed saccade after
+ *    even gaze markers, SSVEP lock-in otherwise in flickering
+ *    conditions; the protocol's timing is the timeout
+ *  - closed.loop.port (12345): UDP port the OpenBCI GUI streams to
+ *  - closed.loop.minimum (1000): minimum time between events before one
+ *    can be cut short (in milliseconds)
+ *  - record (false): whether the presenter also logs the session itself,
+ *    with presentation times and any live samples (see SessionRecorder)
+ *  - record.file (session-<start time>.log): file of that log
+ *  - shader (false): whether the SSVEP rectangle, fixation point and
+ *    target are drawn by one fragment shader (see ShaderStimulus)
+ *    rather than shapes
+ *  - shader.checks (8): checks per side of checkerboard patterns
+ *
+ * Per-condition keys, for each name in conditions:
+ *  - NAME.state: state number (first digit of the condition's markers)
+ *  - NAME.flicker (false): whether the SSVEP rectangle flickers
+ *  - NAME.target (false): whether the saccade target is shown
+ *  - NAME.multi (false): whether the multi-target stimulus (see
+ *    MultiTargetStimulus) is shown instead of the SSVEP rectangle
+ *  - NAME.gazes (true): whether the condition has gaze markers and cues
+ *  - NAME.pattern (square): pattern of the flicker, square, sine,
+ *    checkerboard or reversal; all but square need shader = true
+ *
+ * sequence() draws the trial order, and compile() turns it into a flat
+ * Timeline of events.
+ */
+public class Protocol {
+
+    /** Names of the conditions. */
+    final String[] names;
+
+    /** State number of each condition. */
+    final int[] states;
+
+    /** Whether each condition flickers. */
+    final boolean[] flicker;
+
+    /** Whether each condition shows the saccade target. */
+    final boolean[] target;
+
+    /** Whether each condition shows the multi-target stimulus. */
+    final boolean[] multi;
+
+    /** Whether each condition has gaze markers. */
+    final boolean[] gazed;
+
+    /** Flicker pattern of each condition (see ShaderStimulus). */
+    final int[] patterns;
+
+    /** Time in each pre-experiment state (in milliseconds). */
+    final int idleTime;
+
+    /** Marker code of the idle state. */
+    final int idleState;
+
+    /** Marker code of the post-experiment state. */
+    final int endState;
+
+    /** Length of each trial (in milliseconds). */
+    final int trialTime;
+
+    /** Number of trials of each condition. */
+    final int trials;
+
+    /** Trial order scheme. */
+    final String order;
+
+    /** Maximum number of consecutive trials of one condition, or 0. */
+    final int maxRun;
+
+    /** Seed for the trial order. */
+    final long seed;
+
+    /** SSVEP frequency (in Hz). */
+    final double frequency;
+
+    /** Number of gaze markers per trial. */
+    final int gazes;
+
+    /** Whether each gaze number (from 1, index 0 unused) is cued. */
+    final boolean[] gazeCues;
+
+    /** Whether state changes are cued. */
+    final boolean stateCues;
+
+    /** Horizontal position of the target (fraction of screen width). */
+    final float targetX;
+
+    /** Vertical position of the target (fraction of screen height). */
+    final float targetY;
+
+    /** RGB fill of the target. */
+    final int targetColor;
+
+    /** Frequency of each multi-target region (in Hz). */
+    final double[] multiFrequencies;
+
+    /** Phase of each multi-target region (in cycles). */
+    final double[] multiPhases;
+
+    /** Distance of the regions from the center (fraction of height). */
+    final float multiDistance;
+
+    /** Side of each region (fraction of screen width). */
+    final float multiSize;
+
+    /** Whether events are gated on live EEG detections. */
+    final boolean closedLoop;
+
+    /** UDP port of the live sample stream. */
+    final int closedLoopPort;
+
+    /** Minimum time between gated events (in milliseconds). */
+    final int closedLoopMinimum;
+
+    /** Whether the presenter logs the session itself. */
+    final boolean record;
+
+    /** File of the presenter's log, or "" for a timestamped name. */
+    final String recordFile;
+
+    /** Whether the stimulus is drawn by a fragment shader. */
+    final boolean shader;
+
+    /** Checks per side of checkerboard patterns. */
+    final int shaderChecks;
+
+
+    /**
+     * Read a protocol.
+     * @param in            the protocol file
+     * @throws IOException  if the file cannot be read
+     * @throws IllegalArgumentException if a key is missing or invalid
+     */
+    public Protocol(InputStream in) throws IOException {
+        this(load(in));
+    }
+
+    /**
+     * Build a protocol from already loaded properties.
+     * @param props the protocol definition
+     * @throws IllegalArgumentException if a key is missing or invalid
+     */
+    public Protocol(Properties props) {
+        names = list(props, "conditions", null);
+        states = new int[names.length];
+        flicker = new boolean[names.length];
+        target = new boolean[names.length];
+        multi = new boolean[names.length];
+        gazed = new boolean[names.length];
+        patterns = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            states[i] = integer(props, names[i] + ".state", null);
+            flicker[i] = bool(props, names[i] + ".flicker", "false");
+            target[i] = bool(props, names[i] + ".target", "false");
+            multi[i] = bool(props, names[i] + ".multi", "false");
+            gazed[i] = bool(props, names[i] + ".gazes", "true");
+            String pattern = value(props, names[i] + ".pattern", "square");
+            patterns[i] = ShaderStimulus.pattern(pattern);
+            if (patterns[i] == ShaderStimulus.DARK) {
+                throw new IllegalArgumentException("Protocol "
+                        + names[i] + ".pattern: no pattern " + pattern);
+            }
+        }
+        idleTime = integer(props, "idle.time", "15000");
+        idleState = integer(props, "idle.state", "1");
+        endState = integer(props, "end.state", null);
+        trialTime = integer(props, "trial.time", "20000");
+        trials = integer(props, "trials", "5");
+        order = value(props, "order", TrialSequence.RANDOM);
+        maxRun = integer(props, "max.run", "0");
+        try {
+            seed = Long.parseLong(value(props, "seed",
+                    String.valueOf(System.nanoTime())));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "Protocol seed is not an integer", e);
+        }
+        frequency = Double.parseDouble(
+                value(props, "flicker.frequency", "8.0"));
+        gazes = integer(props, "gazes", "2");
+        gazeCues = new boolean[gazes + 1];
+        String cues = props.getProperty("gaze.cues");
+        for (int g = 1; g <= gazes; g++) {
+            gazeCues[g] = cues == null;
+        }
+        if (cues != null) {
+            for (String g : list(props, "gaze.cues", null)) {
+                int gaze = Integer.parseInt(g);
+                if (gaze < 1 || gaze > gazes) {
+                    throw new IllegalArgumentException(
+                            "Protocol gaze.cues: no gaze " + gaze);
+                }
+                gazeCues[gaze] = true;
+            }
+        }
+        stateCues = bool(props, "state.cues", "true");
+        targetX = Float.parseFloat(value(props, "target.x", "0.59"));
+        targetY = Float.parseFloat(value(props, "target.y", "0.5"));
+        targetColor = Integer.parseInt(value(props, "target.color", "FF0000"),
+                16);
+        multiFrequencies = numbers(props, "multi.frequencies",
+                "6, 7.5, 8.57, 10");
+        multiPhases = props.getProperty("multi.phases") == null
+                ? new double[multiFrequencies.length]
+                : numbers(props, "multi.phases", null);
+        if (multiPhases.length != multiFrequencies.length) {
+            throw new IllegalArgumentException(
+                    "Protocol needs one multi.phases per multi.frequencies");
+        }
+        multiDistance = Float.parseFloat(
+                value(props, "multi.distance", "0.25"));
+        multiSize = Float.parseFloat(value(props, "multi.size", "0.1"));
+        closedLoop = bool(props, "closed.loop", "false");
+        closedLoopPort = integer(props, "closed.loop.port", "12345");
+        closedLoopMinimum = integer(props, "closed.loop.minimum", "1000");
+        record = bool(props, "record", "false");
+        recordFile = value(props, "record.file", "");
+        shader = bool(props, "shader", "false");
+        shaderChecks = integer(props, "shader.checks", "8");
+        for (int i = 0; i < names.length; i++) {
+            if (patterns[i] != ShaderStimulus.SQUARE && !shader) {
+                throw new IllegalArgumentException("Protocol "
+                        + names[i] + ".pattern needs shader = true");
+            }
+        }
+        if (trials > 9 || gazes > 9) {
+            // Trial and gaze numbers are single digits of the marker code
+            throw new IllegalArgumentException(
+                    "Protocol trials and gazes must be at most 9");
+        }
+    }
+
+    /**
+     * @return  SSVEP frequency (in Hz)
+     */
+    public double getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * @return  time in each of the pre-experiment and idle states (in
+     *          milliseconds)
+     */
+    public int getIdleTime() {
+        return idleTime;
+    }
+
+    /**
+     * @return  marker code of the idle state
+     */
+    public int getIdleState() {
+        return idleState;
+    }
+
+    /**
+     * @return  marker code of the post-experiment state
+     */
+    public int getEndState() {
+        return endState;
+    }
+
+    /**
+     * @param condition index of a condition
+     * @return          whether its SSVEP rectangle flickers
+     */
+    public boolean isFlickering(int condition) {
+        return flicker[condition];
+    }
+
+    /**
+     * @return  seed of the trial order
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Draw the trial order, from the protocol's seed.
+     * @return  condition index of every trial, in order
+     */
+    public int[] sequence() {
+        return TrialSequence.generate(order, names.length, trials, maxRun,
+                new Random(seed));
+    }
+
+    /**
+     * Describe a trial order, for the session log.
+     * @param sequence  condition index of every trial
+     * @return          the state numbers of the trials, in order
+     */
+    public String describe(int[] sequence) {
+        StringBuilder text = new StringBuilder("Trial order (" + order
+                + ", seed " + seed + "):");
+        for (int condition : sequence) {
+            text.append(' ').append(states[condition]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Precompute every event of the experiment.
+     * @param sequence  condition index of every trial, from sequence()
+     * @return          the events, timed in flicker half-periods from the
+     *                  start of the first trial
+     */
+    public Timeline compile(int[] sequence) {
+        int trialCycles = (int) Math.round(trialTime / 1000.0 * 2 * frequency);
+        int total = sequence.length;
+        Timeline timeline = new Timeline(total * (1 + gazes) + 1);
+
+        int[] counters = new int[names.length];
+        for (int t = 0; t < total; t++) {
+            int condition = sequence[t];
+            counters[condition]++;
+            int start = t * trialCycles;
+            // First digit is state, second is trial #, last is gaze #
+            int code = states[condition] * 100 + 10 * counters[condition];
+            timeline.add(start, Timeline.STATE, code, condition, stateCues);
+            if (gazed[condition]) {
+                for (int g = 1; g <= gazes; g++) {
+                    timeline.add(start + (g - 1) * trialCycles / gazes,
+                            Timeline.GAZE, code + g, condition, gazeCues[g]);
+                }
+            }
+        }
+        timeline.add(total * trialCycles, Timeline.END, endState, -1,
+                stateCues);
+        return timeline;
+    }
+
+    /**
+     * Load a properties file.
+     * @param in            the file
+     * @return              its properties
+     * @throws IOException  if the file cannot be read
+     */
+    static Properties load(InputStream in) throws IOException {
+        Properties props = new Properties();
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return props;
+    }
+
+    /**
+     * Look up a key.
+     * @param props         the protocol
+     * @param key           the key
+     * @param defaultValue  value if the key is absent, or null if required
+     * @return              the trimmed value
+     */
+    static String value(Properties props, String key, String defaultValue) {
+        String value = props.getProperty(key, defaultValue);
+        if (value == null) {
+            throw new IllegalArgumentException("Protocol is missing " + key);
+        }
+        return value.trim();
+    }
+
+    /**
+     * Look up an integer key.
+     * @param props         the protocol
+     * @param key           the key
+     * @param defaultValue  value if the key is absent, or null if required
+     * @return              the value
+     */
+    static int integer(Properties props, String key, String defaultValue) {
+        try {
+            return Integer.parseInt(value(props, key, defaultValue));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Protocol " + key
+                    + " is not an integer", e);
+        }
+    }
+
+    /**
+     * Look up a boolean key.
+     * @param props         the protocol
+     * @param key           the key
+     * @param defaultValue  value if the key is absent, or null if required
+     * @return              the value
+     */
+    static boolean bool(Properties props, String key, String defaultValue) {
+        return Boolean.parseBoolean(value(props, key, defaultValue));
+    }
+
+    /**
+     * Look up a comma-separated list of numbers.
+     * @param props         the protocol
+     * @param key           the key
+     * @param defaultValue  value if the key is absent, or null if required
+     * @return              the values
+     */
+    static double[] numbers(Properties props, String key,
+            String defaultValue) {
+        String[] items = list(props, key, defaultValue);
+        double[] values = new double[items.length];
+        try {
+            for (int i = 0; i < items.length; i++) {
+                values[i] = Double.parseDouble(items[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Protocol " + key
+                    + " is not a list of numbers", e);
+        }
+        return values;
+    }
+
+    /**
+     * Look up a comma-separated list key.
+     * @param props         the protocol
+     * @param key           the key
+     * @param defaultValue  value if the key is absent, or null if required
+     * @return              the trimmed elements
+     */
+    static String[] list(Properties props, String key, String defaultValue) {
+        String[] items = value(props, key, defaultValue).split(",");
+        for (int i = 0; i < items.length; i++) {
+            items[i] = items[i].trim();
+        }
+        return items;
+    }
+}
@@ -0,0 +1,436 @@
+package braintobrain.experiment3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import braintobrain.online.FilterPipeline;
+import braintobrain.online.SampleListener;
+
+/**
+ * The presenter's own record of a session, independent of OpenBCI_GUI's
+ * logging: every frame, stimulus event and audio cue, stamped with the
+ * time it reaches the screen or speakers, and the live EEG samples when
+ * they are streamed (in closed-loop mode).
+ *
+ * As in MarkerSender, producers only fill a preallocated slot of a
+ * single-producer/single-consumer ring and publish it with an ordered
+ * store: one ring for the animation thread, one for the thread receiving
+ * samples. A writer thread drains both into a memory-mapped log file,
+ * preallocated (and grown by the writer when full), and commits in
+ * groups: the committed record count in the header is updated, and the
+ * mapping forced to disk, at most once every COMMIT nanoseconds. The
+ * delay from the oldest record of each group to its commit is recorded
+ * in a LatencyHistogram.
+ *
+ * The log is little-endian: a HEADER-byte header (MAGIC, VERSION, record
+ * size, wall-clock and System.nanoTime() of the start, committed record
+ * count), then RECORD-byte records: type, code, time in nanoseconds
+ * since the start, and two float values.
+ */
+public class SessionRecorder implements Runnable, SampleListener {
+
+    /** First bytes of every log ("B2BL"). */
+    public static final int MAGIC = 0x4C423242;
+
+    /** Version of the layout. */
+    public static final int VERSION = 1;
+
+    /** Bytes in the header. */
+    public static final int HEADER = 32;
+
+    /** Position of the committed record count in the header. */
+    public static final int COUNT = 24;
+
+    /** Bytes in each record. */
+    public static final int RECORD = 24;
+
+    /** Record type: a frame (code: frame number; time: its flip). */
+    public static final int FRAME = 1;
+
+    /** Record type: a stimulus event (code: marker; time: its flip). */
+    public static final int EVENT = 2;
+
+    /** Record type: an audio cue (code: cue number; time: its onset). */
+    public static final int CUE = 3;
+
+    /** Record type: an EEG sample (code: sample number; time: arrival;
+     *  values: raw Oz and Fp2). */
+    public static final int SAMPLE = 4;
+
+    /** Default preallocated size (about an hour of frames and samples). */
+    public static final long CAPACITY = 64L << 20;
+
+    /** Shortest time between commits (in ns). */
+    public static final long COMMIT = 100000000L;
+
+    /** Longest time the writer thread sleeps between polls (in ns). */
+    public static final long MAXWAIT = 1000000L;
+
+
+    /**
+     * Single-producer/single-consumer ring of preallocated records.
+     */
+    static final class Ring {
+        /** Type of each record. */
+        final byte[] types;
+
+        /** Code of each record. */
+        final int[] codes;
+
+        /** Time of each record (System.nanoTime() units). */
+        final long[] times;
+
+        /** Time each record was queued (System.nanoTime() units). */
+        final long[] queued;
+
+        /** First value of each record. */
+        final float[] as;
+
+        /** Second value of each record. */
+        final float[] bs;
+
+        /** Mask for wrapping sequence numbers to slot indices. */
+        final int mask;
+
+        /** Sequence number of the next slot the writer will read. */
+        final AtomicLong head = new AtomicLong();
+
+        /** Sequence number of the next slot the producer will write. */
+        final AtomicLong tail = new AtomicLong();
+
+        /** Number of records dropped because the ring was full. */
+        int dropped = 0;
+
+        /**
+         * @param capacity  minimum number of records that can be queued
+         */
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            types = new byte[size];
+            codes = new int[size];
+            times = new long[size];
+            queued = new long[size];
+            as = new float[size];
+            bs = new float[size];
+            mask = size - 1;
+        }
+
+        /**
+         * Queue a record. Never blocks; must only be called from one
+         * thread.
+         * @param type  record type
+         * @param code  its code
+         * @param time  time it refers to (System.nanoTime() units)
+         * @param a     first value
+         * @param b     second value
+         * @return      false if the ring was full and the record was dropped
+         */
+        boolean put(int type, int code, long time, float a, float b) {
+            long t = tail.get();
+            if (t - head.get() > mask) {
+                dropped++;
+                return false;
+            }
+            int i = (int) t & mask;
+            types[i] = (byte) type;
+            codes[i] = code;
+            times[i] = time;
+            queued[i] = System.nanoTime();
+            as[i] = a;
+            bs[i] = b;
+            tail.lazySet(t + 1); // Publish the record before the new tail
+            return true;
+        }
+    }
+
+
+    /** Ring of the animation thread's records. */
+    final Ring events;
+
+    /** Ring of the sample thread's records. */
+    final Ring samples;
+
+    /** Reference time of the log (System.nanoTime()). */
+    final long epoch = System.nanoTime();
+
+    /** The log file. */
+    final RandomAccessFile raf;
+
+    /** Mapping of the whole log file; replaced when it grows. */
+    MappedByteBuffer map;
+
+    /** Records written to the mapping. */
+    int count = 0;
+
+    /** Records committed. */
+    int committed = 0;
+
+    /** Time the oldest uncommitted record was queued. */
+    long oldest = 0;
+
+    /** Time of the last commit. */
+    long lastCommit = 0;
+
+    /** Delay from the oldest record of each group to its commit. */
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Pipeline the samples are read from, or null. */
+    FilterPipeline pipeline;
+
+    /** Writer thread. */
+    final Thread thread;
+
+    /** False once close() has been called. */
+    volatile boolean running = true;
+
+
+    /**
+     * Create a recorder with the default preallocated size. Call start()
+     * before recording.
+     * @param file          the log file to create
+     * @throws IOException  if the file cannot be created
+     */
+    public SessionRecorder(File file) throws IOException {
+        this(file, CAPACITY, 1 << 12);
+    }
+
+    /**
+     * Create a recorder. Call start() before recording.
+     * @param file          the log file to create
+     * @param size          preallocated size of the file (in bytes)
+     * @param capacity      minimum number of records that can be queued
+     *                      by each thread
+     * @throws IOException  if the file cannot be created
+     */
+    public SessionRecorder(File file, long size, int capacity)
+            throws IOException {
+        events = new Ring(capacity);
+        samples = new Ring(capacity);
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0); // Drop any old log
+        map(Math.max(size, HEADER + RECORD));
+        map.putInt(MAGIC).putShort((short) VERSION).putShort((short) RECORD)
+                .putLong(System.currentTimeMillis()).putLong(epoch)
+                .putInt(0).putInt(0);
+        thread = new Thread(this, "session-recorder");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Map the log file, at a new size.
+     * @param size          size of the file (in bytes)
+     * @throws IOException  if the file cannot be grown
+     */
+    void map(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Session log is too large to map");
+        }
+        raf.setLength(size);
+        int position = map == null ? 0 : map.position();
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        map.position(position);
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Record the live samples of a pipeline (raw, as received).
+     * @param pipeline  the pipeline
+     */
+    public void listen(FilterPipeline pipeline) {
+        this.pipeline = pipeline;
+        pipeline.addListener(this);
+    }
+
+    /**
+     * Record a frame. Animation thread only.
+     * @param frame number of the frame
+     * @param flip  time it reaches the screen
+     */
+    public void frame(int frame, long flip) {
+        events.put(FRAME, frame, flip, 0, 0);
+    }
+
+    /**
+     * Record a stimulus event. Animation thread only.
+     * @param code  its marker code
+     * @param flip  time the frame showing it reaches the screen
+     */
+    public void event(int code, long flip) {
+        events.put(EVENT, code, flip, 0, 0);
+    }
+
+    /**
+     * Record an audio cue. Animation thread only.
+     * @param cue   number of the cue
+     * @param onset time it reaches the speakers
+     */
+    public void cue(int cue, long onset) {
+        events.put(CUE, cue, onset, 0, 0);
+    }
+
+    @Override
+    public void sample(long index, float oz, float eog) {
+        samples.put(SAMPLE, (int) index, System.nanoTime(),
+                pipeline.rawOz(index), pipeline.rawEog(index));
+    }
+
+    /**
+     * @return  number of records dropped because a ring was full
+     */
+    public int getDropped() {
+        return events.dropped + samples.dropped;
+    }
+
+    /**
+     * @return  histogram of queue-to-commit delays of the oldest record
+     *          of each group; only safe to read after close()
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return  number of records committed so far; only safe to read
+     *          after close()
+     */
+    public int getCommitted() {
+        return committed;
+    }
+
+    /**
+     * Write and commit any queued records, then stop the writer thread
+     * and close the log, cut down to the records committed.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (!thread.isAlive()) {
+                // Drop the unused preallocation (fails on systems that
+                // cannot shrink a mapped file; the header's count holds)
+                raf.setLength(HEADER + (long) committed * RECORD);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not trim session log: " + e);
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            System.err.println("Could not close session log: " + e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int drained = drain(events) + drain(samples);
+                long now = System.nanoTime();
+                if (count > committed && (now - lastCommit >= COMMIT
+                        || !running)) {
+                    commit(now);
+                }
+                if (drained == 0) {
+                    if (!running) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, MAXWAIT);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Session recording stopped: " + e);
+        }
+    }
+
+    /**
+     * Write every record queued in a ring to the mapping.
+     * @param ring          the ring
+     * @return              number of records written
+     * @throws IOException  if the log cannot be grown
+     */
+    int drain(Ring ring) throws IOException {
+        long h = ring.head.get();
+        long t = ring.tail.get();
+        for (long s = h; s < t; s++) {
+            if (map.remaining() < RECORD) {
+                map(2L * map.capacity());
+            }
+            int i = (int) s & ring.mask;
+            oldest = count == committed ? ring.queued[i]
+                    : Math.min(oldest, ring.queued[i]);
+            map.put(ring.types[i]).put((byte) 0).putShort((short) 0)
+                    .putInt(ring.codes[i]).putLong(ring.times[i] - epoch)
+                    .putFloat(ring.as[i]).putFloat(ring.bs[i]);
+            count++;
+        }
+        ring.head.lazySet(t); // Hand the slots back to the producer
+        return (int) (t - h);
+    }
+
+    /**
+     * Commit the records written so far.
+     * @param now   current time
+     */
+    void commit(long now) {
+        map.putInt(COUNT, count);
+        map.force();
+        committed = count;
+        lastCommit = now;
+        latency.record(System.nanoTime() - oldest);
+    }
+
+    /**
+     * Summarize a session log: its records of each type, and the time
+     * they span.
+     * @param args          session log
+     * @throws IOException  if the log cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(args[0], "r");
+        try {
+            MappedByteBuffer log = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            log.order(ByteOrder.LITTLE_ENDIAN);
+            if (log.getInt(0) != MAGIC) {
+                throw new IOException(args[0] + " is not a session log");
+            }
+            int records = log.getInt(COUNT);
+            int[] types = new int[SAMPLE + 1];
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+            for (int r = 0; r < records; r++) {
+                int p = HEADER + r * RECORD;
+                int type = log.get(p);
+                if (type >= 0 && type < types.length) {
+                    types[type]++;
+                }
+                long time = log.getLong(p + 8);
+                first = Math.min(first, time);
+                last = Math.max(last, time);
+            }
+            System.out.printf("%s: %d records over %.1f s: %d frames, %d"
+                    + " events, %d cues, %d samples%n", args[0], records,
+                    records > 0 ? (last - first) / 1e9 : 0.0, types[FRAME],
+                    types[EVENT], types[CUE], types[SAMPLE]);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package braintobrain.experiment3;
+
+import processing.core.PGraphics;
+import processing.opengl.PShader;
+
+/**
+ * The SSVEP field, fixation point and saccade target, drawn by one
+ * fragment shader (SHADER, in the data folder) over a full-screen quad.
+ *
+ * Instead of a PShape per element and fill state, every pixel is
+ * computed on the GPU from uniforms: the geometry and colors, set once,
+ * and for each frame its presentation time (FlickerScheduler.seconds()),
+ * the field's pattern and whether the target is shown. A frame costs
+ * three uniform updates and one quad, whatever the resolution or
+ * refresh rate.
+ *
+ * The field flickers at the protocol's frequency in one of the PATTERNS:
+ *  - SQUARE: black and white half-periods, like the PShape rectangle
+ *  - SINE: sinusoidal luminance, as in MultiTargetStimulus
+ *  - CHECKERBOARD: a checkerboard whose white checks flash on and off
+ *  - REVERSAL: a checkerboard whose checks swap black and white every
+ *    half-period (pattern reversal)
+ * or stays DARK, for conditions without flicker.
+ */
+public class ShaderStimulus {
+
+    /** Fragment shader, in the data folder. */
+    public static final String SHADER = "ssvep.frag";
+
+    /** Pattern of a field that does not flicker. */
+    public static final int DARK = -1;
+
+    /** Pattern: black and white half-periods. */
+    public static final int SQUARE = 0;
+
+    /** Pattern: sinusoidal luminance. */
+    public static final int SINE = 1;
+
+    /** Pattern: checkerboard flashing on and off. */
+    public static final int CHECKERBOARD = 2;
+
+    /** Pattern: checkerboard reversing every half-period. */
+    public static final int REVERSAL = 3;
+
+    /** Names of the patterns in protocol files, by number. */
+    static final String[] PATTERNS = {
+        "square", "sine", "checkerboard", "reversal"
+    };
+
+
+    /** The shader. */
+    final PShader shader;
+
+    /** Flicker period (in seconds). */
+    final double period;
+
+
+    /**
+     * Create a stimulus. Set its geometry before drawing it.
+     * @param shader    the shader, loaded from SHADER
+     * @param frequency flicker frequency (in Hz)
+     * @param width     width of the screen (in pixels)
+     * @param height    height of the screen (in pixels)
+     */
+    public ShaderStimulus(PShader shader, double frequency, float width,
+            float height) {
+        this.shader = shader;
+        period = 1 / frequency;
+        shader.set("resolution", width, height);
+        shader.set("frequency", (float) frequency);
+        shader.set("phase", 0f);
+        shader.set("checks", 1f);
+    }
+
+    /**
+     * Look up a pattern by name.
+     * @param name  name of the pattern in a protocol file
+     * @return      its number, or DARK if there is no such pattern
+     */
+    public static int pattern(String name) {
+        for (int i = 0; i < PATTERNS.length; i++) {
+            if (PATTERNS[i].equals(name)) {
+                return i;
+            }
+        }
+        return DARK;
+    }
+
+    /**
+     * Place the flickering field.
+     * @param x         horizontal center (in pixels)
+     * @param y         vertical center (in pixels)
+     * @param side      side of the square field (in pixels)
+     * @param checks    checks per side, for checkerboard patterns
+     */
+    public void setField(float x, float y, float side, int checks) {
+        shader.set("field", x, y, side / 2, side / 2);
+        shader.set("checks", (float) checks);
+    }
+
+    /**
+     * Place the fixation point.
+     * @param x         horizontal center (in pixels)
+     * @param y         vertical center (in pixels)
+     * @param diameter  diameter of the point (in pixels)
+     * @param color     its ARGB color
+     */
+    public void setFixation(float x, float y, float diameter, int color) {
+        shader.set("fixation", x, y, diameter / 2);
+        setColor("fixationColor", color);
+    }
+
+    /**
+     * Place the saccade target.
+     * @param x         horizontal center (in pixels)
+     * @param y         vertical center (in pixels)
+     * @param side      side of the square target (in pixels)
+     * @param color     its ARGB color
+     */
+    public void setTarget(float x, float y, float side, int color) {
+        shader.set("target", x, y, side / 2, side / 2);
+        setColor("targetColor", color);
+    }
+
+    /**
+     * Set a color uniform.
+     * @param name  name of the uniform
+     * @param color ARGB color
+     */
+    void setColor(String name, int color) {
+        shader.set(name, (color >> 16 & 0xFF) / 255f,
+                (color >> 8 & 0xFF) / 255f, (color & 0xFF) / 255f);
+    }
+
+    /**
+     * Draw the field, fixation point and target.
+     * @param g         graphics to draw to (P2D)
+     * @param seconds   time at which the frame will be on screen, since
+     *                  the flicker started (in seconds)
+     * @param pattern   pattern of the field, or DARK
+     * @param target    whether the target is shown
+     */
+    public void draw(PGraphics g, double seconds, int pattern,
+            boolean target) {
+        // Whole periods add nothing, and would cost float precision
+        shader.set("time", (float) (seconds % period));
+        shader.set("pattern", pattern);
+        shader.set("showTarget", target);
+        g.noStroke();
+        g.shader(shader);
+        g.rect(0, 0, g.width, g.height);
+        g.resetShader();
+    }
+}
@@ -0,0 +1,70 @@
+package braintobrain.experiment3;
+
+/**
+ * Measures the delay between deciding on a marker and the buffer swap
+ * that first shows the matching stimulus.
+ *
+ * The animation thread reports each marker decision, then the draw of
+ * the SSVEP rectangle that follows it, then the start of the next frame.
+ * With vsync, the next frame only starts once the previous swap has
+ * completed, so that is taken as the swap time.
+ */
+public class SwapTimer {
+
+    /** Maximum number of markers tracked in a single frame. */
+    public static final int CAPACITY = 8;
+
+
+    /** Delay from marker decision to buffer swap. */
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Decision times of markers not yet on screen. */
+    final long[] decisions = new long[CAPACITY];
+
+    /** Number of entries in decisions. */
+    int pending = 0;
+
+    /** Number of entries in decisions whose stimulus has been drawn. */
+    int drawn = 0;
+
+
+    /**
+     * Record a marker decision.
+     * @param time  decision time (System.nanoTime() units)
+     */
+    public void decided(long time) {
+        if (pending < CAPACITY) {
+            decisions[pending++] = time;
+        }
+    }
+
+    /**
+     * Report that the stimulus for all markers decided so far has been
+     * drawn, and will be shown by the next swap.
+     */
+    public void drawn() {
+        drawn = pending;
+    }
+
+    /**
+     * Report the end of the previous swap, and record the latency of
+     * every marker it showed.
+     * @param time  swap time (System.nanoTime() units)
+     */
+    public void swapped(long time) {
+        for (int i = 0; i < drawn; i++) {
+            latency.record(time - decisions[i]);
+        }
+        // Keep decisions still waiting for their draw
+        System.arraycopy(decisions, drawn, decisions, 0, pending - drawn);
+        pending -= drawn;
+        drawn = 0;
+    }
+
+    /**
+     * @return  histogram of decision-to-swap latencies
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+}
@@ -0,0 +1,118 @@
+package braintobrain.experiment3;
+
+/**
+ * Precomputed, flat list of the events in an experiment.
+ *
+ * Events are stored in parallel primitive arrays, in firing order, and
+ * timed in flicker half-periods from the start of the first trial. The
+ * presenter walks them with a single index, so the frame loop does no
+ * state selection of its own.
+ */
+public class Timeline {
+
+    /** Event type: start of a trial (condition change). */
+    public static final int STATE = 0;
+
+    /** Event type: gaze marker within a trial. */
+    public static final int GAZE = 1;
+
+    /** Event type: end of the experiment. */
+    public static final int END = 2;
+
+
+    /** Half-period at which each event fires. */
+    final int[] cycles;
+
+    /** Type of each event. */
+    final int[] types;
+
+    /** Marker code sent for each event. */
+    final int[] codes;
+
+    /** Condition in effect after each event, or -1 for none. */
+    final int[] conditions;
+
+    /** Whether each event gets an audio cue. */
+    final boolean[] cues;
+
+    /** Number of events. */
+    int length = 0;
+
+
+    /**
+     * Create an empty timeline.
+     * @param capacity  maximum number of events
+     */
+    public Timeline(int capacity) {
+        cycles = new int[capacity];
+        types = new int[capacity];
+        codes = new int[capacity];
+        conditions = new int[capacity];
+        cues = new boolean[capacity];
+    }
+
+    /**
+     * Append an event. Events must be added in firing order.
+     * @param cycle     half-period at which the event fires
+     * @param type      STATE, GAZE or END
+     * @param code      marker code
+     * @param condition condition in effect after the event, or -1
+     * @param cue       whether the event gets an audio cue
+     */
+    public void add(int cycle, int type, int code, int condition,
+            boolean cue) {
+        cycles[length] = cycle;
+        types[length] = type;
+        codes[length] = code;
+        conditions[length] = condition;
+        cues[length] = cue;
+        length++;
+    }
+
+    /**
+     * @return  number of events
+     */
+    public int size() {
+        return length;
+    }
+
+    /**
+     * @param i index of an event
+     * @return  half-period at which the event fires
+     */
+    public int cycle(int i) {
+        return cycles[i];
+    }
+
+    /**
+     * @param i index of an event
+     * @return  STATE, GAZE or END
+     */
+    public int type(int i) {
+        return types[i];
+    }
+
+    /**
+     * @param i index of an event
+     * @return  marker code of the event
+     */
+    public int code(int i) {
+        return codes[i];
+    }
+
+    /**
+     * @param i index of an event
+     * @return  condition in effect after the event, or -1
+     */
+    public int condition(int i) {
+        return conditions[i];
+    }
+
+    /**
+     * @param i index of an event
+     * @return  whether the event gets an audio cue
+     */
+    public boolean cued(int i) {
+        return cues[i];
+    }
+}
@@ -0,0 +1,209 @@
+package braintobrain.experiment3;
+
+import java.util.Random;
+
+/**
+ * Counterbalanced trial orders, generated before the experiment starts.
+ *
+ * An order is a primitive array of condition indices, so moving to the
+ * next trial at run time is a single array access. Three schemes are
+ * supported:
+ *  - RANDOM: any permutation of the trials, conditions drawn in
+ *    proportion to the trials they have left
+ *  - BLOCK: trials in blocks containing every condition once, each
+ *    block shuffled independently
+ *  - LATIN: blocks following the rows of a balanced (Williams) Latin
+ *    square, so each condition follows every other equally often
+ *
+ * Any of them can also limit how many trials of the same condition may
+ * run back to back; orders that break the limit are redrawn.
+ */
+public class TrialSequence {
+
+    /** Name of the RANDOM scheme in protocol files. */
+    public static final String RANDOM = "random";
+
+    /** Name of the BLOCK scheme in protocol files. */
+    public static final String BLOCK = "block";
+
+    /** Name of the LATIN scheme in protocol files. */
+    public static final String LATIN = "latin";
+
+    /** Number of attempts at an order meeting the run limit. */
+    public static final int ATTEMPTS = 1000;
+
+
+    /** This class cannot be instantiated. */
+    private TrialSequence() {
+    }
+
+    /**
+     * Generate a trial order.
+     * @param scheme        RANDOM, BLOCK or LATIN
+     * @param conditions    number of conditions
+     * @param trials        number of trials of each condition
+     * @param maxRun        maximum number of consecutive trials of one
+     *                      condition, or 0 for no limit
+     * @param rnd           source of randomness (seed it to reproduce)
+     * @return              condition index of every trial, in order
+     * @throws IllegalArgumentException if the scheme is unknown, or no
+     *         order meets the run limit
+     */
+    public static int[] generate(String scheme, int conditions, int trials,
+            int maxRun, Random rnd) {
+        if (!RANDOM.equals(scheme) && !BLOCK.equals(scheme)
+                && !LATIN.equals(scheme)) {
+            throw new IllegalArgumentException("Unknown trial order "
+                    + scheme);
+        }
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            int[] order;
+            if (RANDOM.equals(scheme)) {
+                order = random(conditions, trials, maxRun, rnd);
+            } else if (BLOCK.equals(scheme)) {
+                order = block(conditions, trials, rnd);
+            } else {
+                order = latin(conditions, trials, rnd);
+            }
+            if (order != null && longestRun(order) <= (maxRun > 0
+                    ? maxRun : order.length)) {
+                return order;
+            }
+        }
+        throw new IllegalArgumentException("No " + scheme
+                + " trial order has runs of at most " + maxRun);
+    }
+
+    /**
+     * Draw trials one at a time, in proportion to the trials each
+     * condition has left, skipping any condition that would exceed the
+     * run limit.
+     * @param conditions    number of conditions
+     * @param trials        number of trials of each condition
+     * @param maxRun        run limit, or 0 for none
+     * @param rnd           source of randomness
+     * @return              the order, or null at a dead end
+     */
+    static int[] random(int conditions, int trials, int maxRun, Random rnd) {
+        int[] left = new int[conditions];
+        for (int c = 0; c < conditions; c++) {
+            left[c] = trials;
+        }
+        int[] order = new int[conditions * trials];
+        int run = 0;
+        for (int t = 0; t < order.length; t++) {
+            // Condition that may not run again, if any
+            int blocked = maxRun > 0 && run >= maxRun ? order[t - 1] : -1;
+            int weight = order.length - t - (blocked >= 0 ? left[blocked] : 0);
+            if (weight == 0) {
+                return null;
+            }
+            int pick = rnd.nextInt(weight);
+            int c = 0;
+            for (; c < conditions; c++) {
+                if (c != blocked) {
+                    pick -= left[c];
+                    if (pick < 0) {
+                        break;
+                    }
+                }
+            }
+            order[t] = c;
+            left[c]--;
+            run = t > 0 && order[t - 1] == c ? run + 1 : 1;
+        }
+        return order;
+    }
+
+    /**
+     * Shuffle every block of one trial per condition independently.
+     * @param conditions    number of conditions
+     * @param trials        number of blocks
+     * @param rnd           source of randomness
+     * @return              the order
+     */
+    static int[] block(int conditions, int trials, Random rnd) {
+        int[] order = new int[conditions * trials];
+        for (int b = 0; b < trials; b++) {
+            int from = b * conditions;
+            for (int c = 0; c < conditions; c++) {
+                order[from + c] = c;
+            }
+            for (int i = conditions - 1; i > 0; i--) {
+                int j = rnd.nextInt(i + 1);
+                int tmp = order[from + i];
+                order[from + i] = order[from + j];
+                order[from + j] = tmp;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Blocks following consecutive rows of a balanced Latin square,
+     * starting at a random row, with conditions randomly relabelled.
+     * @param conditions    number of conditions
+     * @param trials        number of blocks
+     * @param rnd           source of randomness
+     * @return              the order
+     */
+    static int[] latin(int conditions, int trials, Random rnd) {
+        int[][] square = williams(conditions);
+        int[] label = block(conditions, 1, rnd);
+        int row = rnd.nextInt(square.length);
+        int[] order = new int[conditions * trials];
+        for (int b = 0; b < trials; b++) {
+            int[] seq = square[(row + b) % square.length];
+            for (int c = 0; c < conditions; c++) {
+                order[b * conditions + c] = label[seq[c]];
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Williams design: a Latin square in which every condition
+     * immediately follows every other equally often (with an odd number
+     * of conditions, this needs the mirrored rows as well).
+     * @param n number of conditions
+     * @return  the rows of the square
+     */
+    static int[][] williams(int n) {
+        int[] first = new int[n];
+        // 0, 1, n-1, 2, n-2, ...
+        for (int i = 0, lo = 1, hi = n - 1; i < n; i++) {
+            if (i == 0) {
+                first[i] = 0;
+            } else if (i % 2 == 1) {
+                first[i] = lo++;
+            } else {
+                first[i] = hi--;
+            }
+        }
+        int rows = n % 2 == 0 ? n : 2 * n;
+        int[][] square = new int[rows][n];
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c < n; c++) {
+                square[r][c] = (first[c] + r) % n;
+                if (rows > n) {
+                    square[r + n][n - 1 - c] = square[r][c];
+                }
+            }
+        }
+        return square;
+    }
+
+    /**
+     * @param order a trial order
+     * @return      length of its longest run of one condition
+     */
+    static int longestRun(int[] order) {
+        int longest = 0;
+        int run = 0;
+        for (int t = 0; t < order.length; t++) {
+            run = t > 0 && order[t] == order[t - 1] ? run + 1 : 1;
+            longest = Math.max(longest, run);
+        }
+        return longest;
+    }
+}
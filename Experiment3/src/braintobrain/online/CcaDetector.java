@@ -0,0 +1,127 @@
+package braintobrain.online;
+
+import braintobrain.analysis.Butterworth;
+import braintobrain.analysis.CcaClassifier;
+import braintobrain.analysis.Recording;
+import braintobrain.analysis.SosFilter;
+
+/**
+ * Live multi-target SSVEP classification by CCA.
+ *
+ * Listens to a FilterPipeline, highpasses its raw Oz and Fp2 samples to
+ * remove the electrode offsets, and feeds them to a CcaClassifier over a
+ * sliding window. Every STEP samples (100 ms), the candidate frequency
+ * with the highest canonical correlation is published, for polling from
+ * any thread and to listeners.
+ */
+public class CcaDetector implements SampleListener {
+
+    /** Length of the sliding window (2 s). */
+    public static final int WINDOW = 500;
+
+    /** Samples between classifications (100 ms). */
+    public static final int STEP = 25;
+
+    /** Number of harmonics in the references, including the fundamental. */
+    public static final int HARMONICS = 2;
+
+    /** Cutoff of the highpass applied to each channel (in Hz). */
+    public static final double HIGHPASS = 2;
+
+
+    /** Pipeline to read raw samples from. */
+    final FilterPipeline pipeline;
+
+    /** Highpass removing the electrode offsets. */
+    final SosFilter highpass;
+
+    /** State of the highpass, for Oz then Fp2. */
+    final double[] ozState, eogState;
+
+    /** Classifier. */
+    final CcaClassifier cca;
+
+    /** Current sample of each channel. */
+    final double[] x = new double[2];
+
+    /** Correlation of each candidate frequency. */
+    final double[] rho;
+
+    /** Listeners, called in order. */
+    TargetListener[] listeners = new TargetListener[0];
+
+    /** Samples seen. */
+    long count = 0;
+
+    /** Latest best candidate, or -1 before the first classification. */
+    volatile int target = -1;
+
+    /** Canonical correlation of the latest best candidate. */
+    volatile double correlation = 0;
+
+
+    /**
+     * Create a detector.
+     * @param pipeline  pipeline to read raw Oz and Fp2 from
+     * @param freqs     candidate stimulus frequencies (in Hz)
+     */
+    public CcaDetector(FilterPipeline pipeline, double[] freqs) {
+        this.pipeline = pipeline;
+        highpass = Butterworth.highpass(2, HIGHPASS, Recording.SAMPLERATE);
+        ozState = new double[2 * highpass.getSections()];
+        eogState = new double[2 * highpass.getSections()];
+        cca = new CcaClassifier(2, freqs, HARMONICS, WINDOW,
+                Recording.SAMPLERATE);
+        rho = new double[freqs.length];
+    }
+
+    /**
+     * Add a listener. Call before samples start arriving.
+     * @param listener  the listener
+     */
+    public synchronized void addListener(TargetListener listener) {
+        TargetListener[] more = new TargetListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, more, 0, listeners.length);
+        more[listeners.length] = listener;
+        listeners = more;
+    }
+
+    @Override
+    public void sample(long index, float oz, float eog) {
+        float rawOz = pipeline.rawOz(index);
+        float rawEog = pipeline.rawEog(index);
+        if (count++ == 0) {
+            highpass.prime(rawOz, ozState);
+            highpass.prime(rawEog, eogState);
+        }
+        x[0] = highpass.step(rawOz, ozState);
+        x[1] = highpass.step(rawEog, eogState);
+        cca.add(x);
+        if (count >= WINDOW && count % STEP == 0) {
+            int best = cca.classify(rho);
+            if (best >= 0) {
+                correlation = rho[best];
+                target = best;
+                for (TargetListener listener : listeners) {
+                    listener.target(index, best, rho[best]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  index of the latest best candidate frequency, or -1 (safe
+     *          to poll from any thread)
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * @return  canonical correlation of the latest best candidate (safe
+     *          to poll from any thread)
+     */
+    public double getCorrelation() {
+        return correlation;
+    }
+}
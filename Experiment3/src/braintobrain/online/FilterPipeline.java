@@ -0,0 +1,200 @@
+package braintobrain.online;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import braintobrain.analysis.Butterworth;
+import braintobrain.analysis.Recording;
+import braintobrain.analysis.SosFilter;
+import braintobrain.experiment3.LatencyHistogram;
+
+/**
+ * Causal filtering of live samples, one at a time.
+ *
+ * Each raw Oz and Fp2 sample goes through its band's second-order
+ * sections (the same designs as the offline analysis, run forwards
+ * only), and the raw and filtered values are written to ring buffers
+ * that other threads can read back. Listeners are then called with the
+ * filtered values. Pushing a sample allocates nothing; the time it takes
+ * is recorded in a latency histogram.
+ *
+ * push() must only be called from one thread (the receiving thread).
+ */
+public class FilterPipeline {
+
+    /** Default number of samples kept in the ring buffers (~16 s). */
+    public static final int CAPACITY = 4096;
+
+    /** Default SSVEP band for Oz (in Hz). */
+    public static final double SSVEPLOW = 7, SSVEPHIGH = 8;
+
+    /** Default EOG band for Fp2 (in Hz). */
+    public static final double EOGLOW = 1.5, EOGHIGH = 10;
+
+
+    /** Filter for Oz. */
+    final SosFilter ssvep;
+
+    /** Filter for Fp2. */
+    final SosFilter eog;
+
+    /** State of the Oz filter. */
+    final double[] ssvepState;
+
+    /** State of the Fp2 filter. */
+    final double[] eogState;
+
+    /** Raw Oz samples. */
+    final float[] rawOz;
+
+    /** Raw Fp2 samples. */
+    final float[] rawEog;
+
+    /** Filtered Oz samples. */
+    final float[] filteredOz;
+
+    /** Filtered Fp2 samples. */
+    final float[] filteredEog;
+
+    /** Ring buffer capacity minus one. */
+    final int mask;
+
+    /** Number of samples pushed (published after the buffers). */
+    final AtomicLong count = new AtomicLong();
+
+    /** Listeners, called in order; replaced whole, so listeners can be
+     *  added while samples arrive. */
+    volatile SampleListener[] listeners = new SampleListener[0];
+
+    /** Time spent in push(), per sample. */
+    final LatencyHistogram latency = new LatencyHistogram();
+
+
+    /**
+     * Create a pipeline with the bands of the offline analysis (order 3,
+     * as BatchAnalysis.ORDER), at the OpenBCI rate.
+     */
+    public FilterPipeline() {
+        this(Butterworth.bandpass(3, SSVEPLOW, SSVEPHIGH,
+                Recording.SAMPLERATE),
+                Butterworth.bandpass(3, EOGLOW, EOGHIGH,
+                        Recording.SAMPLERATE),
+                CAPACITY);
+    }
+
+    /**
+     * Create a pipeline.
+     * @param ssvep     filter for Oz
+     * @param eog       filter for Fp2
+     * @param capacity  samples kept in the ring buffers (a power of two)
+     */
+    public FilterPipeline(SosFilter ssvep, SosFilter eog, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                    "Capacity must be a power of two");
+        }
+        this.ssvep = ssvep;
+        this.eog = eog;
+        ssvepState = new double[2 * ssvep.getSections()];
+        eogState = new double[2 * eog.getSections()];
+        rawOz = new float[capacity];
+        rawEog = new float[capacity];
+        filteredOz = new float[capacity];
+        filteredEog = new float[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Add a listener. Call before samples start arriving.
+     * @param listener  the listener
+     */
+    public synchronized void addListener(SampleListener listener) {
+        SampleListener[] more = new SampleListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, more, 0, listeners.length);
+        more[listeners.length] = listener;
+        listeners = more;
+    }
+
+    /**
+     * Filter and publish one sample.
+     * @param oz    raw Oz (in microvolts)
+     * @param fp2   raw Fp2 (in microvolts)
+     */
+    public void push(float oz, float fp2) {
+        long start = System.nanoTime();
+        long n = count.get();
+        if (n == 0) {
+            ssvep.prime(oz, ssvepState);
+            eog.prime(fp2, eogState);
+        }
+        float fOz = (float) ssvep.step(oz, ssvepState);
+        float fEog = (float) eog.step(fp2, eogState);
+        int i = (int) n & mask;
+        rawOz[i] = oz;
+        rawEog[i] = fp2;
+        filteredOz[i] = fOz;
+        filteredEog[i] = fEog;
+        count.lazySet(n + 1);
+        for (SampleListener listener : listeners) {
+            listener.sample(n, fOz, fEog);
+        }
+        latency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return  number of samples pushed so far
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return  number of samples kept in the ring buffers
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Filtered Oz sample. Only the last getCapacity() samples are kept.
+     * @param index number of the sample
+     * @return      the filtered value
+     */
+    public float oz(long index) {
+        return filteredOz[(int) index & mask];
+    }
+
+    /**
+     * Filtered Fp2 sample. Only the last getCapacity() samples are kept.
+     * @param index number of the sample
+     * @return      the filtered value
+     */
+    public float eog(long index) {
+        return filteredEog[(int) index & mask];
+    }
+
+    /**
+     * Raw Oz sample. Only the last getCapacity() samples are kept.
+     * @param index number of the sample
+     * @return      the raw value
+     */
+    public float rawOz(long index) {
+        return rawOz[(int) index & mask];
+    }
+
+    /**
+     * Raw Fp2 sample. Only the last getCapacity() samples are kept.
+     * @param index number of the sample
+     * @return      the raw value
+     */
+    public float rawEog(long index) {
+        return rawEog[(int) index & mask];
+    }
+
+    /**
+     * @return  time spent processing each sample (read once samples
+     *          stop arriving)
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+}
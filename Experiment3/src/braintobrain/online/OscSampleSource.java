@@ -0,0 +1,138 @@
+package braintobrain.online;
+
+import java.io.File;
+import java.io.IOException;
+
+import braintobrain.analysis.OpenBCIReader;
+
+import netP5.NetAddress;
+import oscP5.OscEventListener;
+import oscP5.OscMessage;
+import oscP5.OscP5;
+import oscP5.OscStatus;
+
+/**
+ * Live samples from the OpenBCI GUI's OSC stream.
+ *
+ * Listens with oscP5, the same stack Experiment3 uses for markers, for
+ * one message per sample whose float arguments are the channel values,
+ * and pushes the Oz and Fp2 channels into a FilterPipeline on oscP5's
+ * receiving thread.
+ */
+public class OscSampleSource implements OscEventListener {
+
+    /** Default port the OpenBCI GUI streams to. */
+    public static final int PORT = 12345;
+
+    /** Default address pattern of the OpenBCI GUI's messages. */
+    public static final String ADDRESS = "/openbci";
+
+    /** Default argument of channel 1 (N1P, on Oz). */
+    public static final int OZCHANNEL = 0;
+
+    /** Default argument of channel 2 (N2P, on Fp2). */
+    public static final int EOGCHANNEL = 1;
+
+
+    /** Pipeline the samples go to. */
+    final FilterPipeline pipeline;
+
+    /** Address pattern of sample messages. */
+    final String address;
+
+    /** Argument holding Oz. */
+    final int ozChannel;
+
+    /** Argument holding Fp2. */
+    final int eogChannel;
+
+    /** Messages ignored for having too few arguments. */
+    volatile long malformed = 0;
+
+    /** Receiving socket. */
+    final OscP5 osc;
+
+
+    /**
+     * Listen with the defaults of the OpenBCI GUI.
+     * @param pipeline  pipeline the samples go to
+     */
+    public OscSampleSource(FilterPipeline pipeline) {
+        this(pipeline, PORT, ADDRESS, OZCHANNEL, EOGCHANNEL);
+    }
+
+    /**
+     * Start listening.
+     * @param pipeline      pipeline the samples go to
+     * @param port          UDP port to listen on
+     * @param address       address pattern of sample messages
+     * @param ozChannel     argument holding Oz
+     * @param eogChannel    argument holding Fp2
+     */
+    public OscSampleSource(FilterPipeline pipeline, int port, String address,
+            int ozChannel, int eogChannel) {
+        this.pipeline = pipeline;
+        this.address = address;
+        this.ozChannel = ozChannel;
+        this.eogChannel = eogChannel;
+        osc = new OscP5(this, port);
+    }
+
+    @Override
+    public void oscEvent(OscMessage message) {
+        if (!message.checkAddrPattern(address)) {
+            return;
+        }
+        if (message.typetag().length() <= Math.max(ozChannel, eogChannel)) {
+            malformed++;
+            return;
+        }
+        pipeline.push(message.get(ozChannel).floatValue(),
+                message.get(eogChannel).floatValue());
+    }
+
+    @Override
+    public void oscStatus(OscStatus status) {
+        // Nothing to do
+    }
+
+    /**
+     * @return  number of messages ignored for having too few arguments
+     */
+    public long getMalformed() {
+        return malformed;
+    }
+
+    /**
+     * Stop listening.
+     */
+    public void close() {
+        osc.stop();
+    }
+
+    /**
+     * Replay a recording to a local pipeline over OSC, standing in for
+     * the OpenBCI GUI, and report the per-sample processing time.
+     * @param args  OpenBCI text export, and optionally the replay speed
+     *              (1 for real time, the default)
+     * @throws IOException          if the file cannot be read
+     * @throws InterruptedException if interrupted while replaying
+     */
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        FilterPipeline pipeline = new FilterPipeline();
+        OscSampleSource source = new OscSampleSource(pipeline);
+        OscP5 sender = new OscP5(new Object(), PORT + 1);
+        ReplaySource replay = new ReplaySource(
+                OpenBCIReader.read(new File(args[0])), sender,
+                new NetAddress("127.0.0.1", PORT), ADDRESS,
+                args.length > 1 ? Double.parseDouble(args[1]) : 1);
+        replay.run();
+        Thread.sleep(100); // Let the last packets arrive
+        source.close();
+        sender.stop();
+        System.out.println(replay.getSent() + " samples sent, "
+                + pipeline.getCount() + " received");
+        pipeline.getLatency().print(System.out, "Sample processing");
+    }
+}
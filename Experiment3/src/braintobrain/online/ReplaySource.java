@@ -0,0 +1,97 @@
+package braintobrain.online;
+
+import java.util.concurrent.locks.LockSupport;
+
+import braintobrain.analysis.Recording;
+
+import netP5.NetAddress;
+import oscP5.OscMessage;
+import oscP5.OscP5;
+
+/**
+ * Stand-in for the OpenBCI GUI's OSC stream, for testing without a
+ * board: replays the channels of a recorded session as one OSC message
+ * per sample, paced at the sampling rate (or a multiple of it).
+ */
+public class ReplaySource implements Runnable {
+
+    /** Number of EEG channels sent per sample. */
+    public static final int CHANNELS = 8;
+
+
+    /** Recording to replay. */
+    final Recording recording;
+
+    /** Socket to send from. */
+    final OscP5 osc;
+
+    /** Address to send to. */
+    final NetAddress target;
+
+    /** Reusable message. */
+    final OscMessage message;
+
+    /** Replay speed (1 for real time). */
+    final double speed;
+
+    /** Number of samples sent so far. */
+    volatile long sent = 0;
+
+    /** False once stop() has been called. */
+    volatile boolean running = true;
+
+
+    /**
+     * Create a replay.
+     * @param recording     recording to replay
+     * @param osc           socket to send from
+     * @param target        address of the receiving pipeline
+     * @param address       address pattern of the messages
+     * @param speed         replay speed (1 for real time, or 0 for as
+     *                      fast as possible)
+     */
+    public ReplaySource(Recording recording, OscP5 osc, NetAddress target,
+            String address, double speed) {
+        this.recording = recording;
+        this.osc = osc;
+        this.target = target;
+        this.speed = speed;
+        message = new OscMessage(address);
+    }
+
+    @Override
+    public void run() {
+        long period = speed > 0
+                ? (long) (1e9 / (recording.getSampleRate() * speed)) : 0;
+        int channels = Math.min(CHANNELS,
+                recording.getColumnCount() - Recording.OZ);
+        long next = System.nanoTime();
+        for (int i = 0; i < recording.length() && running; i++) {
+            message.clearArguments();
+            for (int c = 0; c < channels; c++) {
+                message.add(recording.getColumn(Recording.OZ + c)[i]);
+            }
+            osc.send(message, target);
+            sent++;
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Stop replaying.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return  number of samples sent so far
+     */
+    public long getSent() {
+        return sent;
+    }
+}
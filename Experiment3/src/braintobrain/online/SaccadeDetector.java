@@ -0,0 +1,337 @@
+package braintobrain.online;
+
+import java.util.Arrays;
+
+import braintobrain.analysis.Butterworth;
+import braintobrain.analysis.Recording;
+import braintobrain.analysis.SegmentIndex;
+import braintobrain.analysis.SosFilter;
+import braintobrain.experiment3.LatencyHistogram;
+
+/**
+ * Saccade (EOG) detection from a sliding-window RMS, live or offline.
+ *
+ * Section 8 of the MATLAB analysis recomputes the RMS of a whole window
+ * at every sample. Here the window's sum of squares is kept up to date
+ * in O(1) per sample from a ring buffer (and rebuilt once per window
+ * length, so rounding errors cannot accumulate).
+ *
+ * The threshold is per subject rather than fixed:
+ *  - once calibrated with the mean RMS of known saccades, it is RATIO
+ *    times that mean, as in the analysis
+ *  - until then, it adapts to the subject's resting EOG: a slow average
+ *    of the RMS outside events, plus SPREAD times its mean deviation
+ *    (and at least MARGIN times the average itself)
+ * An event starts when the RMS rises above the threshold and ends when
+ * it falls back HYSTERESIS of the way from the threshold to the resting
+ * level. Events whose RMS reaches BLINK times the threshold are reported
+ * as blinks.
+ *
+ * Gaze cues can be marked with mark(); the delay from each cue to the
+ * next saccade onset is recorded in a latency histogram.
+ */
+public class SaccadeDetector implements SampleListener {
+
+    /** Default window length (1 s, as in the analysis). */
+    public static final int WINDOW = 250;
+
+    /** Threshold as a fraction of the calibrated mean saccade RMS. */
+    public static final double RATIO = 0.6;
+
+    /** Fraction of the way back to the resting level that ends events. */
+    public static final double HYSTERESIS = 0.5;
+
+    /** Blink threshold, as a multiple of the saccade threshold. */
+    public static final double BLINK = 3;
+
+    /** Mean deviations above the resting RMS for the adaptive threshold. */
+    public static final double SPREAD = 4;
+
+    /** Minimum margin of the adaptive threshold over the resting RMS,
+     *  as a fraction of it. */
+    public static final double MARGIN = 1;
+
+    /** Weight of each new sample in the resting averages (~10 s). */
+    public static final double SMOOTHING = 1.0 / 2500;
+
+    /** Resting samples needed before the adaptive threshold is used. */
+    public static final int WARMUP = 2500;
+
+
+    /** Squared samples in the window. */
+    final double[] squares;
+
+    /** Position of the oldest sample in squares. */
+    int pos = 0;
+
+    /** Sum of squares. */
+    double sum = 0;
+
+    /** Samples since reset(). */
+    long count = 0;
+
+    /** Calibrated mean saccade RMS, or 0 to adapt. */
+    double calibration = 0;
+
+    /** Average resting RMS. */
+    double rest = 0;
+
+    /** Mean deviation of the resting RMS. */
+    double deviation = 0;
+
+    /** Samples the resting averages have learned from. */
+    long rested = 0;
+
+    /** Whether an event is in progress. */
+    boolean active = false;
+
+    /** Whether the current event reached the blink threshold. */
+    boolean blink = false;
+
+    /** Highest RMS of the current event. */
+    double peak = 0;
+
+    /** Sample of the latest unanswered gaze cue, or -1 (set by mark()
+     *  from any thread). */
+    volatile long cue = -1;
+
+    /** Delay from gaze cues to saccade onsets (in nanoseconds). */
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Listeners, called in order. */
+    SaccadeListener[] listeners = new SaccadeListener[0];
+
+    /** Latest RMS. */
+    volatile double rms = 0;
+
+    /** Number of saccades (not blinks) completed so far. */
+    volatile long saccades = 0;
+
+
+    /**
+     * Create a detector with the analysis's 1 s window.
+     */
+    public SaccadeDetector() {
+        this(WINDOW);
+    }
+
+    /**
+     * Create a detector.
+     * @param window    window length (in samples)
+     */
+    public SaccadeDetector(int window) {
+        squares = new double[window];
+    }
+
+    /**
+     * Add a listener. Call before samples start arriving.
+     * @param listener  the listener
+     */
+    public synchronized void addListener(SaccadeListener listener) {
+        SaccadeListener[] more = new SaccadeListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, more, 0, listeners.length);
+        more[listeners.length] = listener;
+        listeners = more;
+    }
+
+    /**
+     * Fix the threshold from known saccades.
+     * @param saccadeRms    mean RMS of a window over each saccade, or 0
+     *                      to go back to the adaptive threshold
+     */
+    public void calibrate(double saccadeRms) {
+        calibration = saccadeRms;
+    }
+
+    /**
+     * Empty the window, ending any event silently. The calibration and
+     * resting averages are kept.
+     */
+    public void reset() {
+        Arrays.fill(squares, 0);
+        pos = 0;
+        sum = 0;
+        count = 0;
+        active = false;
+        cue = -1;
+    }
+
+    /**
+     * Mark a gaze cue, to measure the delay to the next saccade onset.
+     * May be called from any thread, such as the presenter's.
+     * @param index number of the sample the cue was given at
+     */
+    public void mark(long index) {
+        cue = index;
+    }
+
+    @Override
+    public void sample(long index, float oz, float eog) {
+        update(index, eog);
+    }
+
+    /**
+     * Add one filtered EOG sample.
+     * @param index number of the sample
+     * @param eog   Fp2, filtered to the EOG band (in microvolts)
+     */
+    public void update(long index, float eog) {
+        double old = squares[pos];
+        double sq = (double) eog * eog;
+        squares[pos] = sq;
+        pos = pos + 1 == squares.length ? 0 : pos + 1;
+        count++;
+        if (pos == 0) {
+            sum = 0;
+            for (double s : squares) {
+                sum += s;
+            }
+        } else {
+            sum += sq - old;
+        }
+        if (count < squares.length) {
+            return; // Window not full yet
+        }
+        double r = Math.sqrt(Math.max(0, sum) / squares.length);
+        rms = r;
+
+        double threshold = getThreshold();
+        if (!active) {
+            // Learn the resting level from outside events
+            if (rested++ == 0) {
+                rest = r;
+            }
+            deviation += SMOOTHING * (Math.abs(r - rest) - deviation);
+            rest += SMOOTHING * (r - rest);
+            if (r > threshold && threshold > 0) {
+                active = true;
+                blink = false;
+                peak = r;
+                if (cue >= 0) {
+                    latency.record((long) ((index - cue) * 1e9
+                            / Recording.SAMPLERATE));
+                    cue = -1;
+                }
+                for (SaccadeListener listener : listeners) {
+                    listener.onset(index);
+                }
+            }
+        } else {
+            peak = Math.max(peak, r);
+            blink |= r > BLINK * threshold;
+            if (r < threshold - HYSTERESIS * (threshold - rest)) {
+                active = false;
+                if (!blink) {
+                    saccades++;
+                }
+                for (SaccadeListener listener : listeners) {
+                    listener.offset(index, blink, (float) peak);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  the current onset threshold (in microvolts RMS), or 0
+     *          while the adaptive threshold is still warming up
+     */
+    public double getThreshold() {
+        if (calibration > 0) {
+            return RATIO * calibration;
+        }
+        if (rested < WARMUP) {
+            return 0;
+        }
+        return rest + Math.max(SPREAD * deviation, MARGIN * rest);
+    }
+
+    /**
+     * @return  latest RMS (safe to poll from any thread)
+     */
+    public double getRms() {
+        return rms;
+    }
+
+    /**
+     * @return  number of saccades completed so far (safe to poll from
+     *          any thread)
+     */
+    public long getSaccades() {
+        return saccades;
+    }
+
+    /**
+     * @return  delays from gaze cues to saccade onsets
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Detect the saccades in every trial of a condition of a recording,
+     * as Sections 7 and 8 of the analysis do: Fp2 is filtered to the EOG
+     * band (zero-phase), the threshold is calibrated from the first
+     * second after each even (saccade) gaze marker, and each even gaze
+     * marker counts as a cue.
+     * @param rec       the recording
+     * @param index     its segment index
+     * @param state     state number of the condition
+     * @param listener  receives the events, numbered by recording sample
+     * @return          the detector, holding the cue-to-onset latencies
+     */
+    public static SaccadeDetector scan(Recording rec, SegmentIndex index,
+            int state, SaccadeListener listener) {
+        SosFilter eog = Butterworth.bandpass(3, FilterPipeline.EOGLOW,
+                FilterPipeline.EOGHIGH, Recording.SAMPLERATE);
+        float[] column = rec.getColumn(Recording.FP2);
+        float[] filtered = new float[rec.length()];
+        double[] work = new double[0];
+        // Filter each trial, and calibrate on the saccade windows
+        double total = 0;
+        int saccades = 0;
+        for (int s = 0; s < index.size(); s++) {
+            if (index.state(s) != state || !index.isTrialStart(s)) {
+                continue;
+            }
+            int from = index.start(s);
+            int to = index.end(index.trialEnd(s) - 1);
+            if (work.length < eog.workLength(to - from)) {
+                work = new double[eog.workLength(to - from)];
+            }
+            eog.filtfilt(column, from, to, filtered, from, work);
+            for (int g = s; g < index.trialEnd(s); g++) {
+                if (index.gaze(g) > 0 && index.gaze(g) % 2 == 0) {
+                    int end = Math.min(index.end(g),
+                            index.start(g) + WINDOW);
+                    int start = index.start(g);
+                    double sq = 0;
+                    for (int i = start; i < end; i++) {
+                        sq += (double) filtered[i] * filtered[i];
+                    }
+                    total += Math.sqrt(sq / Math.max(1, end - start));
+                    saccades++;
+                }
+            }
+        }
+        SaccadeDetector detector = new SaccadeDetector();
+        if (listener != null) {
+            detector.addListener(listener);
+        }
+        detector.calibrate(saccades > 0 ? total / saccades : 0);
+        for (int s = 0; s < index.size(); s++) {
+            if (index.state(s) != state || index.trial(s) == 0) {
+                continue;
+            }
+            if (index.isTrialStart(s)) {
+                detector.reset();
+            }
+            if (index.gaze(s) > 0 && index.gaze(s) % 2 == 0) {
+                detector.mark(index.start(s));
+            }
+            for (int i = index.start(s); i < index.end(s); i++) {
+                detector.update(i, filtered[i]);
+            }
+        }
+        return detector;
+    }
+}
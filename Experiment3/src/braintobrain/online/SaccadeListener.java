@@ -0,0 +1,27 @@
+package braintobrain.online;
+
+/**
+ * Receiver of eye movement events from a SaccadeDetector.
+ *
+ * Called on the thread that feeds the detector, so implementations must
+ * be quick and must not block.
+ */
+public interface SaccadeListener {
+
+    /**
+     * Handle the start of an eye movement: the EOG RMS rose above the
+     * threshold.
+     * @param index number of the sample at which it started
+     */
+    void onset(long index);
+
+    /**
+     * Handle the end of an eye movement: the EOG RMS fell back below
+     * the threshold.
+     * @param index number of the sample at which it ended
+     * @param blink true if the RMS reached the blink threshold, so the
+     *              event was a blink rather than a saccade
+     * @param peak  highest RMS during the event (in microvolts)
+     */
+    void offset(long index, boolean blink, float peak);
+}
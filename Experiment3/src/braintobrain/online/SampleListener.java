@@ -0,0 +1,18 @@
+package braintobrain.online;
+
+/**
+ * Receiver of filtered samples from a FilterPipeline.
+ *
+ * Called on the thread that receives the samples, once per sample, so
+ * implementations must be quick and must not block.
+ */
+public interface SampleListener {
+
+    /**
+     * Handle one filtered sample.
+     * @param index     number of the sample, from 0
+     * @param oz        Oz, filtered to the SSVEP band (in microvolts)
+     * @param eog       Fp2, filtered to the EOG band (in microvolts)
+     */
+    void sample(long index, float oz, float eog);
+}
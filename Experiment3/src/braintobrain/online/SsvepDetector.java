@@ -0,0 +1,295 @@
+package braintobrain.online;
+
+import braintobrain.analysis.Butterworth;
+import braintobrain.analysis.Recording;
+import braintobrain.analysis.SosFilter;
+
+/**
+ * Live SSVEP detection at the stimulus frequency, by sliding DFT.
+ *
+ * The offline analysis looks for the SSVEP peak in the FFT of whole
+ * trials. Online, only a handful of frequencies matter: the stimulus
+ * frequency and its harmonics, plus the bins on either side of each to
+ * estimate the noise floor. Each of these bins is a sliding DFT over the
+ * last WINDOW samples, kept up to date in O(1) per sample by adding the
+ * newest sample and removing the oldest. Any frequency can be tracked,
+ * not just multiples of the bin width.
+ *
+ * Every STEP samples, the power of the stimulus bins is compared to the
+ * mean power of their neighbours. The SSVEP is declared present once
+ * this signal-to-noise ratio has stayed above the threshold for HOLD
+ * evaluations, and absent once it has stayed below it as long.
+ * rearm() declares it absent again, to be reported afresh only from
+ * windows that start after a given sample, such as an event's.
+ *
+ * Reads raw Oz from a FilterPipeline (after its own highpass to remove
+ * the electrode offset), since the pipeline's SSVEP band would hide the
+ * harmonics and noise bins.
+ */
+public class SsvepDetector implements SampleListener {
+
+    /** Length of the sliding window (2 s, for 0.5 Hz bins). */
+    public static final int WINDOW = 500;
+
+    /** Samples between evaluations (100 ms). */
+    public static final int STEP = 25;
+
+    /** Number of harmonics tracked, including the fundamental. */
+    public static final int HARMONICS = 2;
+
+    /** Number of noise bins on each side of each harmonic. */
+    public static final int NEIGHBOURS = 3;
+
+    /** Default signal-to-noise ratio for detection. */
+    public static final double THRESHOLD = 4;
+
+    /** Consecutive evaluations needed to change the detection state. */
+    public static final int HOLD = 5;
+
+    /** Cutoff of the highpass applied before the DFT (in Hz). */
+    public static final double HIGHPASS = 2;
+
+
+    /** Pipeline to read raw Oz from. */
+    final FilterPipeline pipeline;
+
+    /** Highpass removing the electrode offset. */
+    final SosFilter highpass;
+
+    /** State of the highpass. */
+    final double[] highpassState;
+
+    /** Highpassed samples in the window. */
+    final double[] window = new double[WINDOW];
+
+    /** Position of the oldest sample in window. */
+    int pos = 0;
+
+    /** Number of bins per harmonic. */
+    final int perHarmonic = 2 * NEIGHBOURS + 1;
+
+    /** Running DFT sum of each bin (real and imaginary parts). */
+    final double[] sumRe, sumIm;
+
+    /** Phasor e^(-j w n) of each bin at the current sample. */
+    final double[] phaseRe, phaseIm;
+
+    /** Per-sample rotation e^(-j w) of each bin. */
+    final double[] stepRe, stepIm;
+
+    /** Rotation e^(j w WINDOW) from the current phasor to the oldest. */
+    final double[] backRe, backIm;
+
+    /** Signal-to-noise ratio for detection. */
+    final double threshold;
+
+    /** Listeners, called in order. */
+    SsvepListener[] listeners = new SsvepListener[0];
+
+    /** Samples seen. */
+    long count = 0;
+
+    /** Evaluations in a row disagreeing with the current state. */
+    int streak = 0;
+
+    /** Latest signal-to-noise ratio. */
+    volatile double snr = 0;
+
+    /** Whether the SSVEP is currently detected. */
+    volatile boolean present = false;
+
+    /** First sample of the windows that may be evaluated, or -1 (set by
+     *  rearm() from any thread). */
+    volatile long armed = -1;
+
+    /** Latest value of armed acted on by evaluate(). */
+    long rearmed = -1;
+
+
+    /**
+     * Create a detector with the default threshold.
+     * @param pipeline  pipeline to read raw Oz from
+     * @param freq      stimulus frequency (in Hz)
+     */
+    public SsvepDetector(FilterPipeline pipeline, double freq) {
+        this(pipeline, freq, THRESHOLD);
+    }
+
+    /**
+     * Create a detector.
+     * @param pipeline  pipeline to read raw Oz from
+     * @param freq      stimulus frequency (in Hz)
+     * @param threshold signal-to-noise ratio for detection
+     */
+    public SsvepDetector(FilterPipeline pipeline, double freq,
+            double threshold) {
+        this.pipeline = pipeline;
+        this.threshold = threshold;
+        double fs = Recording.SAMPLERATE;
+        highpass = Butterworth.highpass(2, HIGHPASS, fs);
+        highpassState = new double[2 * highpass.getSections()];
+        int bins = HARMONICS * perHarmonic;
+        sumRe = new double[bins];
+        sumIm = new double[bins];
+        phaseRe = new double[bins];
+        phaseIm = new double[bins];
+        stepRe = new double[bins];
+        stepIm = new double[bins];
+        backRe = new double[bins];
+        backIm = new double[bins];
+        double resolution = fs / WINDOW;
+        for (int h = 0; h < HARMONICS; h++) {
+            for (int k = -NEIGHBOURS; k <= NEIGHBOURS; k++) {
+                int b = h * perHarmonic + k + NEIGHBOURS;
+                double w = 2 * Math.PI * ((h + 1) * freq + k * resolution)
+                        / fs;
+                phaseRe[b] = 1;
+                stepRe[b] = Math.cos(w);
+                stepIm[b] = -Math.sin(w);
+                backRe[b] = Math.cos(w * WINDOW);
+                backIm[b] = Math.sin(w * WINDOW);
+            }
+        }
+    }
+
+    /**
+     * Add a listener. Call before samples start arriving.
+     * @param listener  the listener
+     */
+    public synchronized void addListener(SsvepListener listener) {
+        SsvepListener[] more = new SsvepListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, more, 0, listeners.length);
+        more[listeners.length] = listener;
+        listeners = more;
+    }
+
+    /**
+     * Forget the current detection, and only evaluate windows starting at
+     * or after a sample from now on, so that a lock-in is reported anew
+     * from those samples alone. May be called from any thread, such as
+     * the presenter's.
+     * @param index number of the first sample to evaluate
+     */
+    public void rearm(long index) {
+        armed = index;
+    }
+
+    @Override
+    public void sample(long index, float oz, float eog) {
+        update(index, pipeline.rawOz(index));
+    }
+
+    /**
+     * Add one raw sample, and evaluate the detection every STEP samples.
+     * @param index number of the sample
+     * @param raw   raw Oz (in microvolts)
+     */
+    public void update(long index, float raw) {
+        if (count == 0) {
+            highpass.prime(raw, highpassState);
+        }
+        double x = highpass.step(raw, highpassState);
+        double old = window[pos];
+        window[pos] = x;
+        pos = pos + 1 == WINDOW ? 0 : pos + 1;
+        count++;
+
+        boolean renormalize = count % WINDOW == 0;
+        for (int b = 0; b < sumRe.length; b++) {
+            double pr = phaseRe[b], pi = phaseIm[b];
+            // Phasor of the sample leaving the window
+            double qr = pr * backRe[b] - pi * backIm[b];
+            double qi = pr * backIm[b] + pi * backRe[b];
+            sumRe[b] += x * pr - old * qr;
+            sumIm[b] += x * pi - old * qi;
+            double nr = pr * stepRe[b] - pi * stepIm[b];
+            double ni = pr * stepIm[b] + pi * stepRe[b];
+            if (renormalize) {
+                // Keep rounding errors from changing the phasor's length
+                double norm = 1 / Math.sqrt(nr * nr + ni * ni);
+                nr *= norm;
+                ni *= norm;
+            }
+            phaseRe[b] = nr;
+            phaseIm[b] = ni;
+        }
+        if (count >= WINDOW && count % STEP == 0) {
+            evaluate(index);
+        }
+    }
+
+    /**
+     * Compute the signal-to-noise ratio, and update the detection state.
+     * @param index number of the current sample
+     */
+    void evaluate(long index) {
+        long since = armed;
+        if (since != rearmed) {
+            rearmed = since;
+            streak = 0;
+            if (present) {
+                present = false;
+                for (SsvepListener listener : listeners) {
+                    listener.ssvep(index, false, snr);
+                }
+            }
+        }
+        if (index - WINDOW + 1 < since) {
+            return; // Window still holds samples from before rearm()
+        }
+        double signal = 0;
+        double noise = 0;
+        for (int h = 0; h < HARMONICS; h++) {
+            for (int k = 0; k < perHarmonic; k++) {
+                int b = h * perHarmonic + k;
+                double power = sumRe[b] * sumRe[b] + sumIm[b] * sumIm[b];
+                if (k == NEIGHBOURS) {
+                    signal += power;
+                } else {
+                    noise += power / (2 * NEIGHBOURS);
+                }
+            }
+        }
+        double ratio = noise > 0 ? signal / noise : 0;
+        snr = ratio;
+        if ((ratio > threshold) != present) {
+            if (++streak >= HOLD) {
+                streak = 0;
+                present = !present;
+                for (SsvepListener listener : listeners) {
+                    listener.ssvep(index, present, ratio);
+                }
+            }
+        } else {
+            streak = 0;
+        }
+    }
+
+    /**
+     * @return  true if the SSVEP is currently detected (safe to poll
+     *          from any thread)
+     */
+    public boolean isPresent() {
+        return present;
+    }
+
+    /**
+     * @return  latest signal-to-noise ratio (safe to poll from any
+     *          thread)
+     */
+    public double getSnr() {
+        return snr;
+    }
+
+    /**
+     * Power at a tracked bin, for plotting.
+     * @param harmonic  harmonic number, from 1
+     * @param offset    bin offset from the harmonic, from -NEIGHBOURS to
+     *                  NEIGHBOURS
+     * @return          squared magnitude of the bin's DFT
+     */
+    public double power(int harmonic, int offset) {
+        int b = (harmonic - 1) * perHarmonic + offset + NEIGHBOURS;
+        return sumRe[b] * sumRe[b] + sumIm[b] * sumIm[b];
+    }
+}
@@ -0,0 +1,19 @@
+package braintobrain.online;
+
+/**
+ * Receiver of SSVEP detection events from an SsvepDetector.
+ *
+ * Called on the thread that receives the samples, so implementations
+ * must be quick and must not block; the presenter can instead poll the
+ * detector from its animation thread.
+ */
+public interface SsvepListener {
+
+    /**
+     * Handle a change in SSVEP detection.
+     * @param index     number of the sample at which it changed
+     * @param present   true if the SSVEP is now detected
+     * @param snr       signal-to-noise ratio at that sample
+     */
+    void ssvep(long index, boolean present, double snr);
+}
@@ -0,0 +1,19 @@
+package braintobrain.online;
+
+/**
+ * Receiver of classifications from a CcaDetector.
+ *
+ * Called on the thread that receives the samples, so implementations
+ * must be quick and must not block; the presenter can instead poll the
+ * detector from its animation thread.
+ */
+public interface TargetListener {
+
+    /**
+     * Handle a classification.
+     * @param index         number of the sample it was made at
+     * @param target        index of the best candidate frequency
+     * @param correlation   canonical correlation of that frequency
+     */
+    void target(long index, int target, double correlation);
+}
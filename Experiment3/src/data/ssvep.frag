@@ -0,0 +1,61 @@
+// SSVEP field, fixation point and saccade target of Experiment3, drawn
+// over one full-screen quad (see braintobrain.experiment3.ShaderStimulus).
+// Positions are in pixels, from the top left corner as in Processing.
+
+#ifdef GL_ES
+precision highp float;
+precision mediump int;
+#endif
+
+#define PROCESSING_COLOR_SHADER
+
+// Pattern of the field: dark, or one of ShaderStimulus.PATTERNS
+#define DARK -1
+#define SQUARE 0
+#define SINE 1
+#define CHECKERBOARD 2
+#define REVERSAL 3
+
+const float TWO_PI = 6.28318531;
+
+uniform vec2 resolution;       // Size of the screen
+uniform vec4 field;            // Field: center x, y, half width, height
+uniform float checks;          // Checks per side of the field
+uniform vec3 fixation;         // Fixation point: center x, y, radius
+uniform vec3 fixationColor;
+uniform vec4 target;           // Target: center x, y, half width, height
+uniform vec3 targetColor;
+uniform float frequency;       // Flicker frequency (in Hz)
+uniform float phase;           // Flicker phase (in cycles)
+uniform float time;            // Time since the flicker started (in s)
+uniform int pattern;           // Pattern of the field
+uniform bool showTarget;       // Whether the target is shown
+
+varying vec4 vertColor;
+
+void main() {
+  vec2 p = vec2(gl_FragCoord.x, resolution.y - gl_FragCoord.y);
+  vec3 color = vec3(0.0);
+
+  vec2 offset = p - field.xy;
+  if (pattern != DARK && all(lessThanEqual(abs(offset), field.zw))) {
+    float cycles = frequency * time + phase;
+    // 1 in the first half of each period, 0 in the second
+    float light = 1.0 - mod(floor(2.0 * cycles), 2.0);
+    if (pattern == SINE) {
+      light = 0.5 * (1.0 + sin(TWO_PI * cycles));
+    } else if (pattern == CHECKERBOARD || pattern == REVERSAL) {
+      vec2 cell = floor((offset + field.zw) * checks / (2.0 * field.zw));
+      float check = mod(cell.x + cell.y, 2.0);
+      light = pattern == CHECKERBOARD ? light * check : abs(light - check);
+    }
+    color = vec3(light);
+  }
+  if (distance(p, fixation.xy) <= fixation.z) {
+    color = fixationColor;
+  }
+  if (showTarget && all(lessThanEqual(abs(p - target.xy), target.zw))) {
+    color = targetColor;
+  }
+  gl_FragColor = vec4(color, 1.0);
+}